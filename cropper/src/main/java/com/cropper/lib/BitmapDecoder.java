@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes source images for the library. Install a custom implementation with
+ * {@code Cropper.setBitmapDecoder} to share an existing decoding stack, bitmap pool or cache.
+ * <p/>
+ * Each call gets a fresh stream positioned at the start of the image. The stream is closed by
+ * the library.
+ */
+public interface BitmapDecoder
+{
+	/**
+	 * Decode only the dimensions of the image.
+	 *
+	 * @param in   Image data.
+	 * @param type Format sniffed from the image data.
+	 * @return Array holding the width and height, or {@code null} if the image can't be decoded.
+	 */
+	int[] decodeBounds(InputStream in, ImageType type) throws IOException;
+
+	/**
+	 * Decode the whole image.
+	 *
+	 * @param in         Image data.
+	 * @param type       Format sniffed from the image data.
+	 * @param sampleSize Subsampling factor as in {@code BitmapFactory.Options.inSampleSize}.
+	 * @return Decoded bitmap or {@code null} if the image can't be decoded.
+	 */
+	Bitmap decode(InputStream in, ImageType type, int sampleSize) throws IOException;
+
+	/**
+	 * Decode a region of the image.
+	 *
+	 * @param in         Image data.
+	 * @param type       Format sniffed from the image data.
+	 * @param region     Region in full resolution image coordinates.
+	 * @param sampleSize Subsampling factor as in {@code BitmapFactory.Options.inSampleSize}.
+	 * @return Decoded region or {@code null} if region decoding isn't supported for the format,
+	 * in which case the library decodes the whole image and crops it.
+	 */
+	Bitmap decodeRegion(InputStream in, ImageType type, Rect region, int sampleSize)
+		throws IOException;
+}
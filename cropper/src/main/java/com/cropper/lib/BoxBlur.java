@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+/**
+ * Blurs a raster in place with repeated box filters. Three passes come close to a Gaussian,
+ * and each pass costs the same regardless of the radius thanks to running sums.
+ */
+final class BoxBlur
+{
+	private BoxBlur()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * @param radius Radius of the box in pixels.
+	 * @param passes How many times both directions are filtered.
+	 */
+	public static void blur(Raster raster, int radius, int passes)
+	{
+		if (radius <= 0)
+		{
+			return;
+		}
+		int[] line = new int[Math.max(raster.width, raster.height)];
+		for (int i = 0; i < passes; i++)
+		{
+			for (int y = 0; y < raster.height; y++)
+			{
+				blurLine(raster.pixels, y * raster.width, 1, raster.width, radius, line);
+			}
+			for (int x = 0; x < raster.width; x++)
+			{
+				blurLine(raster.pixels, x, raster.width, raster.height, radius, line);
+			}
+		}
+	}
+
+	// Box filters one line of pixels, clamping samples beyond the ends.
+	private static void blurLine(int[] pixels, int offset, int stride, int length, int radius, int[] line)
+	{
+		for (int i = 0, p = offset; i < length; i++, p += stride)
+		{
+			line[i] = pixels[p];
+		}
+
+		int size = 2 * radius + 1;
+		int a = 0, r = 0, g = 0, b = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			int c = line[Math.max(0, Math.min(length - 1, i))];
+			a += c >>> 24;
+			r += (c >> 16) & 0xFF;
+			g += (c >> 8) & 0xFF;
+			b += c & 0xFF;
+		}
+
+		for (int i = 0, p = offset; i < length; i++, p += stride)
+		{
+			pixels[p] = ((a / size) << 24) | ((r / size) << 16) | ((g / size) << 8) | (b / size);
+
+			int in = line[Math.min(length - 1, i + radius + 1)];
+			int out = line[Math.max(0, i - radius)];
+			a += (in >>> 24) - (out >>> 24);
+			r += ((in >> 16) & 0xFF) - ((out >> 16) & 0xFF);
+			g += ((in >> 8) & 0xFF) - ((out >> 8) & 0xFF);
+			b += (in & 0xFF) - (out & 0xFF);
+		}
+	}
+}
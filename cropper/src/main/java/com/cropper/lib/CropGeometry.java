@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+// The geometry behind HighlightView: hit testing, moving and growing the crop rectangle and
+// mapping it to the screen, on plain floats so that it can run and be measured off the device.
+// The crop and image rectangles are in image space. The screen rectangle is derived from them
+// with an affine matrix, in the layout of android.graphics.Matrix values, and cached until
+// either changes.
+final class CropGeometry
+{
+	@SuppressWarnings("PointlessBitwiseExpression")
+	static final int GROW_NONE = (1 << 0);
+	static final int GROW_LEFT_EDGE = (1 << 1);
+	static final int GROW_RIGHT_EDGE = (1 << 2);
+	static final int GROW_TOP_EDGE = (1 << 3);
+	static final int GROW_BOTTOM_EDGE = (1 << 4);
+	static final int MOVE = (1 << 5);
+
+	// Default distance from an edge within which it can be grabbed, in screen pixels.
+	static final float DEFAULT_HIT_SLOP = 20F;
+	// The crop rectangle doesn't shrink below this size in image space.
+	private static final float MIN_SIZE = 25F;
+
+	// Image and crop rectangles in image space: left, top, right, bottom.
+	private float mImageLeft, mImageTop, mImageRight, mImageBottom;
+	private float mLeft, mTop, mRight, mBottom;
+
+	// Affine part of the image to screen matrix.
+	private float mScaleX = 1F, mSkewX, mTransX, mSkewY, mScaleY = 1F, mTransY;
+
+	// Cached screen rectangle, rounded like android.graphics.RectF.round().
+	private int mDrawLeft, mDrawTop, mDrawRight, mDrawBottom;
+	private boolean mDrawDirty = true;
+	// Times the screen rectangle was computed, to check the caching.
+	private int mDrawUpdates;
+
+	private boolean mCircle;
+	private boolean mMaintainAspectRatio;
+	private float mAspectRatio;
+	private float mHitSlop = DEFAULT_HIT_SLOP;
+
+	void setup(float imageLeft, float imageTop, float imageRight, float imageBottom,
+	           float left, float top, float right, float bottom,
+	           boolean circle, boolean maintainAspectRatio)
+	{
+		mImageLeft = imageLeft;
+		mImageTop = imageTop;
+		mImageRight = imageRight;
+		mImageBottom = imageBottom;
+		mCircle = circle;
+		mMaintainAspectRatio = maintainAspectRatio || circle;
+		setCrop(left, top, right, bottom);
+		mAspectRatio = (right - left) / (bottom - top);
+	}
+
+	void setHitSlop(float hitSlop)
+	{
+		mHitSlop = hitSlop;
+	}
+
+	float getHitSlop()
+	{
+		return mHitSlop;
+	}
+
+	// Takes the values of an affine matrix, see android.graphics.Matrix.getValues().
+	void setMatrix(float[] values)
+	{
+		if (values[0] != mScaleX || values[1] != mSkewX || values[2] != mTransX
+			|| values[3] != mSkewY || values[4] != mScaleY || values[5] != mTransY)
+		{
+			mScaleX = values[0];
+			mSkewX = values[1];
+			mTransX = values[2];
+			mSkewY = values[3];
+			mScaleY = values[4];
+			mTransY = values[5];
+			mDrawDirty = true;
+		}
+	}
+
+	void setCrop(float left, float top, float right, float bottom)
+	{
+		mLeft = left;
+		mTop = top;
+		mRight = right;
+		mBottom = bottom;
+		mDrawDirty = true;
+	}
+
+	float getLeft()
+	{
+		return mLeft;
+	}
+
+	float getTop()
+	{
+		return mTop;
+	}
+
+	float getRight()
+	{
+		return mRight;
+	}
+
+	float getBottom()
+	{
+		return mBottom;
+	}
+
+	float getWidth()
+	{
+		return mRight - mLeft;
+	}
+
+	float getHeight()
+	{
+		return mBottom - mTop;
+	}
+
+	int getDrawLeft()
+	{
+		updateDrawRect();
+		return mDrawLeft;
+	}
+
+	int getDrawTop()
+	{
+		updateDrawRect();
+		return mDrawTop;
+	}
+
+	int getDrawRight()
+	{
+		updateDrawRect();
+		return mDrawRight;
+	}
+
+	int getDrawBottom()
+	{
+		updateDrawRect();
+		return mDrawBottom;
+	}
+
+	int getDrawUpdates()
+	{
+		return mDrawUpdates;
+	}
+
+	// Determines which edges are hit by touching at (x, y) in screen space.
+	int getHit(float x, float y)
+	{
+		updateDrawRect();
+		float hysteresis = mHitSlop;
+
+		if (mCircle)
+		{
+			float distX = x - (mDrawLeft + mDrawRight) / 2;
+			float distY = y - (mDrawTop + mDrawBottom) / 2;
+			int distanceFromCenter = (int) Math.sqrt(distX * distX + distY * distY);
+			int radius = (mDrawRight - mDrawLeft) / 2;
+			int delta = distanceFromCenter - radius;
+			if (Math.abs(delta) <= hysteresis)
+			{
+				if (Math.abs(distY) > Math.abs(distX))
+				{
+					return distY < 0 ? GROW_TOP_EDGE : GROW_BOTTOM_EDGE;
+				}
+				return distX < 0 ? GROW_LEFT_EDGE : GROW_RIGHT_EDGE;
+			}
+			return distanceFromCenter < radius ? MOVE : GROW_NONE;
+		}
+
+		// verticalCheck makes sure the position is between the top and
+		// the bottom edge (with some tolerance). Similar for horizCheck.
+		boolean verticalCheck = (y >= mDrawTop - hysteresis) && (y < mDrawBottom + hysteresis);
+		boolean horizCheck = (x >= mDrawLeft - hysteresis) && (x < mDrawRight + hysteresis);
+
+		// Check whether the position is near some edge(s).
+		int retval = GROW_NONE;
+		if ((Math.abs(mDrawLeft - x) < hysteresis) && verticalCheck)
+		{
+			retval |= GROW_LEFT_EDGE;
+		}
+		if ((Math.abs(mDrawRight - x) < hysteresis) && verticalCheck)
+		{
+			retval |= GROW_RIGHT_EDGE;
+		}
+		if ((Math.abs(mDrawTop - y) < hysteresis) && horizCheck)
+		{
+			retval |= GROW_TOP_EDGE;
+		}
+		if ((Math.abs(mDrawBottom - y) < hysteresis) && horizCheck)
+		{
+			retval |= GROW_BOTTOM_EDGE;
+		}
+
+		// Not near any edge but inside the rectangle: move.
+		if (retval == GROW_NONE && mDrawLeft < mDrawRight && mDrawTop < mDrawBottom
+			&& (int) x >= mDrawLeft && (int) x < mDrawRight
+			&& (int) y >= mDrawTop && (int) y < mDrawBottom)
+		{
+			retval = MOVE;
+		}
+		return retval;
+	}
+
+	// Handles motion (dx, dy) in screen space. The "edge" parameter specifies which edges
+	// the user is dragging. Returns false if nothing was dragged.
+	boolean handleMotion(int edge, float dx, float dy)
+	{
+		updateDrawRect();
+		if (edge == GROW_NONE)
+		{
+			return false;
+		}
+
+		// Convert to image space.
+		float xScale = getWidth() / (mDrawRight - mDrawLeft);
+		float yScale = getHeight() / (mDrawBottom - mDrawTop);
+		if (edge == MOVE)
+		{
+			moveBy(dx * xScale, dy * yScale);
+		}
+		else
+		{
+			if (((GROW_LEFT_EDGE | GROW_RIGHT_EDGE) & edge) == 0)
+			{
+				dx = 0;
+			}
+
+			if (((GROW_TOP_EDGE | GROW_BOTTOM_EDGE) & edge) == 0)
+			{
+				dy = 0;
+			}
+
+			growBy((((edge & GROW_LEFT_EDGE) != 0) ? -1 : 1) * dx * xScale,
+				(((edge & GROW_TOP_EDGE) != 0) ? -1 : 1) * dy * yScale);
+		}
+		return true;
+	}
+
+	// Moves the cropping rectangle by (dx, dy) in image space.
+	void moveBy(float dx, float dy)
+	{
+		float left = mLeft + dx;
+		float top = mTop + dy;
+		float right = mRight + dx;
+		float bottom = mBottom + dy;
+
+		// Put the cropping rectangle inside image rectangle.
+		float offsetX = Math.max(0, mImageLeft - left);
+		float offsetY = Math.max(0, mImageTop - top);
+		left += offsetX;
+		right += offsetX;
+		top += offsetY;
+		bottom += offsetY;
+
+		offsetX = Math.min(0, mImageRight - right);
+		offsetY = Math.min(0, mImageBottom - bottom);
+		setCrop(left + offsetX, top + offsetY, right + offsetX, bottom + offsetY);
+	}
+
+	// Grows the cropping rectangle by (dx, dy) in image space.
+	void growBy(float dx, float dy)
+	{
+		if (mMaintainAspectRatio)
+		{
+			if (dx != 0)
+			{
+				dy = dx / mAspectRatio;
+			}
+			else if (dy != 0)
+			{
+				dx = dy * mAspectRatio;
+			}
+		}
+
+		// Don't let the cropping rectangle grow too fast.
+		// Grow at most half of the difference between the image rectangle and
+		// the cropping rectangle.
+		float imageWidth = mImageRight - mImageLeft;
+		float imageHeight = mImageBottom - mImageTop;
+		if (dx > 0F && getWidth() + 2 * dx > imageWidth)
+		{
+			dx = (imageWidth - getWidth()) / 2F;
+			if (mMaintainAspectRatio)
+			{
+				dy = dx / mAspectRatio;
+			}
+		}
+		if (dy > 0F && getHeight() + 2 * dy > imageHeight)
+		{
+			dy = (imageHeight - getHeight()) / 2F;
+			if (mMaintainAspectRatio)
+			{
+				dx = dy * mAspectRatio;
+			}
+		}
+
+		float left = mLeft - dx;
+		float top = mTop - dy;
+		float right = mRight + dx;
+		float bottom = mBottom + dy;
+
+		// Don't let the cropping rectangle shrink too fast.
+		if (right - left < MIN_SIZE)
+		{
+			float grow = (MIN_SIZE - (right - left)) / 2F;
+			left -= grow;
+			right += grow;
+		}
+		float heightCap = mMaintainAspectRatio ? (MIN_SIZE / mAspectRatio) : MIN_SIZE;
+		if (bottom - top < heightCap)
+		{
+			float grow = (heightCap - (bottom - top)) / 2F;
+			top -= grow;
+			bottom += grow;
+		}
+
+		// Put the cropping rectangle inside the image rectangle.
+		float offsetX = 0F;
+		if (left < mImageLeft)
+		{
+			offsetX = mImageLeft - left;
+		}
+		else if (right > mImageRight)
+		{
+			offsetX = mImageRight - right;
+		}
+		float offsetY = 0F;
+		if (top < mImageTop)
+		{
+			offsetY = mImageTop - top;
+		}
+		else if (bottom > mImageBottom)
+		{
+			offsetY = mImageBottom - bottom;
+		}
+		setCrop(left + offsetX, top + offsetY, right + offsetX, bottom + offsetY);
+	}
+
+	// Maps the cropping rectangle from image space to screen space.
+	private void updateDrawRect()
+	{
+		if (!mDrawDirty)
+		{
+			return;
+		}
+		mDrawDirty = false;
+		mDrawUpdates++;
+
+		// Bounds of the four mapped corners.
+		float x0 = mScaleX * mLeft + mSkewX * mTop;
+		float x1 = mScaleX * mRight + mSkewX * mTop;
+		float x2 = mScaleX * mRight + mSkewX * mBottom;
+		float x3 = mScaleX * mLeft + mSkewX * mBottom;
+		float y0 = mSkewY * mLeft + mScaleY * mTop;
+		float y1 = mSkewY * mRight + mScaleY * mTop;
+		float y2 = mSkewY * mRight + mScaleY * mBottom;
+		float y3 = mSkewY * mLeft + mScaleY * mBottom;
+		mDrawLeft = Math.round(Math.min(Math.min(x0, x1), Math.min(x2, x3)) + mTransX);
+		mDrawRight = Math.round(Math.max(Math.max(x0, x1), Math.max(x2, x3)) + mTransX);
+		mDrawTop = Math.round(Math.min(Math.min(y0, y1), Math.min(y2, y3)) + mTransY);
+		mDrawBottom = Math.round(Math.max(Math.max(y0, y1), Math.max(y2, y3)) + mTransY);
+	}
+}
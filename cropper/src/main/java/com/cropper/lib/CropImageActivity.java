@@ -21,6 +21,7 @@ package com.cropper.lib;
 
 import android.app.Activity;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.*;
 import android.net.Uri;
@@ -30,19 +31,38 @@ import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * The activity can crop specific region of interest from an image.
  */
 public class CropImageActivity extends MonitoredActivity
 {
-	private final static int IMAGE_MIN_SIZE = 512;
+	final static int IMAGE_MIN_SIZE = 512;
+	private static final String RESULT_CACHE_DIR = "cropper-results";
+	private static final long FACE_DETECTION_BUDGET_MS = 300;
+	// How much room to leave around faces when fitting the default crop rectangle.
+	private static final float FACE_PADDING = 1.5F;
+	// Largest tilt in degrees corrected by automatic straightening.
+	private static final float MAX_STRAIGHTEN_ANGLE = 15F;
+	// Default crop rectangle size relative to the largest one fitting the image.
+	private static final float DEFAULT_CROP_SCALE = 0.8F;
 	private static final String TAG = "CropImageActivity";
 
 	// These are various options can be specified in the intent.
@@ -51,6 +71,16 @@ public class CropImageActivity extends MonitoredActivity
 	// These options specify the output image size and whether we should
 	// scale the output to fit it (or just crop it).
 	private boolean mScaleUp = true;
+	// Whether to fill the bars around an output that isn't scaled up with a blurred copy.
+	private boolean mBlurBackground;
+	// Whether to copy JPEG crops without re-encoding them, see LosslessJpeg.
+	private boolean mLossless;
+	// Connection to the worker process that saves the crop, if isolatedProcess was requested.
+	private CropWorkerClient mWorker;
+	// Whether to carry the Exif and ICC profile of a JPEG source over to a JPEG output.
+	private boolean mKeepMetadata;
+	private boolean mKeepGps;
+	private boolean mKeepAnimation;
 
 	boolean mSaving;  // Whether the "save" button is already clicked.
 
@@ -58,6 +88,7 @@ public class CropImageActivity extends MonitoredActivity
 	private int mAspectY;
 	private int mOutputX;
 	private int mOutputY;
+	private int mPreviewSize;
 	private int highlightColorResId;
 	private int highlightSelectedColorResId;
 	private int verticalIconResId;
@@ -65,12 +96,43 @@ public class CropImageActivity extends MonitoredActivity
 	private int borderSizeResId;
 
 	private Bitmap.CompressFormat mOutputFormat = Bitmap.CompressFormat.PNG;
+	private long mMaxFileSize;
+	private int mPngCompressionLevel;
+	private int mRotation;
+	private Uri mSourceUri;
+	private ResultCache mResultCache;
+	// Additional sizes of the output, null if there are none.
+	private OutputLadder mOutputLadder;
+	private String[] mOutputPaths;
+	// Destinations of the crop regions besides the main one, see CropImageView.addRegion.
+	private Uri[] mRegionUris;
+	private String[] mRegionPaths;
+	// Preview of the output shown while cropping, null unless requested.
+	private LivePreview mLivePreview;
+	private ImageView mLivePreviewView;
+	private final FrameScheduler mPreviewFrame = FrameScheduler.create(new Runnable()
+	{
+		public void run()
+		{
+			updateLivePreview();
+		}
+	});
 	private Uri mSaveUri = null;
 	private CropImageView mImageView;
 	private ContentResolver mContentResolver;
 	private Bitmap mBitmap;
 
 	HighlightView mCrop;
+	private SpeculativeSave mSpeculativeSave;
+	// Region the default crop rectangle is fitted around, in bitmap coordinates, and the room
+	// to leave around it.
+	private RectF mSubjectRect;
+	private float mSubjectPadding;
+	private boolean mAutoStraighten;
+	// Whether the crop area is a quad rectified into the output, see QuadHighlightView.
+	private boolean mPerspective;
+	// Arbitrary rotation in degrees that levels the image, applied on top of mRotation.
+	private float mStraighten;
 
 	private final Handler mHandler = new Handler();
 
@@ -78,6 +140,7 @@ public class CropImageActivity extends MonitoredActivity
 	public void onCreate(Bundle icicle)
 	{
 		super.onCreate(icicle);
+		Cropper.setUpRemoteFetcher(this);
 		mContentResolver = getContentResolver();
 
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -94,6 +157,26 @@ public class CropImageActivity extends MonitoredActivity
 		}
 
 		mImageView = (CropImageView) findViewById(R.id.cropper_image);
+		mImageView.setListener(new CropImageView.Listener()
+		{
+			public void onCropIdle()
+			{
+				startSpeculativeSave();
+			}
+
+			public void onCropTouched()
+			{
+				cancelSpeculativeSave();
+			}
+
+			public void onCropChanged()
+			{
+				if (mLivePreview != null)
+				{
+					mPreviewFrame.schedule();
+				}
+			}
+		});
 
 		showStorageToast(this);
 
@@ -176,8 +259,64 @@ public class CropImageActivity extends MonitoredActivity
 
 			Log.i(TAG, "Output X " + mOutputX + ", output Y " + mOutputY);
 
+			mPreviewSize = extras.getInt(Cropper.PREVIEW_SIZE, 0);
+			mMaxFileSize = extras.getLong(Cropper.MAX_FILE_SIZE, 0);
+			mPngCompressionLevel = extras.getInt(Cropper.PNG_COMPRESSION_LEVEL,
+				PngEncoder.DEFAULT_COMPRESSION_LEVEL);
+			mPerspective = extras.getBoolean(Cropper.PERSPECTIVE, false);
+			mImageView.setTouchPrediction(extras.getBoolean(Cropper.TOUCH_PREDICTION, false));
+			// The quad corrects any tilt by itself.
+			mAutoStraighten = extras.getBoolean(Cropper.AUTO_STRAIGHTEN, false) && !mPerspective;
+			String[] regionPaths = extras.getStringArray(Cropper.REGION_URIS);
+			if (regionPaths != null && !mPerspective)
+			{
+				mRegionUris = new Uri[regionPaths.length];
+				for (int i = 0; i < regionPaths.length; i++)
+				{
+					mRegionUris[i] = Uri.parse(regionPaths[i]);
+				}
+			}
+			if ((mPerspective || mRegionUris != null) && Build.VERSION.SDK_INT > Build.VERSION_CODES.HONEYCOMB)
+			{
+				// Clipping the dimmed area to the quad or the regions needs a software layer.
+				mImageView.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+			}
+			long resultCacheSize = extras.getLong(Cropper.RESULT_CACHE_SIZE, 0);
+			if (resultCacheSize > 0)
+			{
+				mResultCache = new ResultCache(new File(getCacheDir(), RESULT_CACHE_DIR), resultCacheSize);
+			}
+			if (extras.containsKey(Cropper.OUTPUT_FORMAT))
+			{
+				mOutputFormat = Bitmap.CompressFormat.valueOf(extras.getString(Cropper.OUTPUT_FORMAT));
+			}
+
 			mScale = extras.getBoolean(Cropper.SCALE, true);
 			mScaleUp = extras.getBoolean(Cropper.SCALE_UP_IF_NEEDED, true);
+			mBlurBackground = extras.getBoolean(Cropper.BLUR_BACKGROUND, false);
+			mLossless = extras.getBoolean(Cropper.LOSSLESS, false);
+			if (extras.getBoolean(Cropper.ISOLATED_PROCESS, false))
+			{
+				// Bind early so the worker process is up by the time the user saves.
+				mWorker = new CropWorkerClient(this);
+				mWorker.bind();
+			}
+			mKeepMetadata = extras.getBoolean(Cropper.KEEP_METADATA, false);
+			mKeepGps = extras.getBoolean(Cropper.KEEP_GPS, false);
+			mKeepAnimation = extras.getBoolean(Cropper.KEEP_ANIMATION, false);
+			mLivePreviewView = (ImageView) findViewById(R.id.cropper_preview);
+			if (extras.getBoolean(Cropper.LIVE_PREVIEW, false) && mLivePreviewView != null)
+			{
+				mLivePreview = new LivePreview(getResources().getDimensionPixelSize(R.dimen.cropper_preview_size),
+					mOutputX, mOutputY, mScale, mScaleUp, mCircleCrop, mBlurBackground);
+				mLivePreviewView.setVisibility(View.VISIBLE);
+			}
+			if (extras.containsKey(Cropper.OUTPUT_SIZES))
+			{
+				mOutputLadder = new OutputLadder(mContentResolver, extras.getIntArray(Cropper.OUTPUT_SIZES),
+					extras.getStringArray(Cropper.OUTPUT_FORMATS), extras.getStringArray(Cropper.OUTPUT_PATHS),
+					mPngCompressionLevel);
+			}
 
 			String uri = extras.getString(Cropper.IMAGE_PATH);
 			if (TextUtils.isEmpty(uri))
@@ -192,7 +331,8 @@ public class CropImageActivity extends MonitoredActivity
 			}
 			mSaveUri = Uri.parse(saveUri);
 
-			mBitmap = getBitmap(Uri.parse(uri));
+			mSourceUri = Uri.parse(uri);
+			mBitmap = getBitmap(mSourceUri);
 
 			if (mOutputX > mOutputY)
 			{
@@ -257,9 +397,11 @@ public class CropImageActivity extends MonitoredActivity
 			{
 				public void onClick(View v)
 				{
+					cancelSpeculativeSave();
+					mSubjectRect = null;
 					mBitmap = Util.rotateImage(mBitmap, -90);
-					RotateBitmap rotateBitmap = new RotateBitmap(mBitmap);
-					mImageView.setImageRotateBitmapResetBase(rotateBitmap, true);
+					mRotation = (mRotation + 270) % 360;
+					mImageView.setImageRotateBitmapResetBase(newRotateBitmap(mBitmap), true);
 					mSetupHighlightRunnable.run();
 				}
 			});
@@ -269,9 +411,11 @@ public class CropImageActivity extends MonitoredActivity
 			{
 				public void onClick(View v)
 				{
+					cancelSpeculativeSave();
+					mSubjectRect = null;
 					mBitmap = Util.rotateImage(mBitmap, 90);
-					RotateBitmap rotateBitmap = new RotateBitmap(mBitmap);
-					mImageView.setImageRotateBitmapResetBase(rotateBitmap, true);
+					mRotation = (mRotation + 90) % 360;
+					mImageView.setImageRotateBitmapResetBase(newRotateBitmap(mBitmap), true);
 					mSetupHighlightRunnable.run();
 				}
 			});
@@ -280,34 +424,16 @@ public class CropImageActivity extends MonitoredActivity
 
 	private Bitmap getBitmap(Uri uri)
 	{
-		InputStream in;
+		int size = Math.max(mOutputX, mOutputY);
 		try
 		{
-			in = mContentResolver.openInputStream(uri);
-
-			//Decode image size
-			BitmapFactory.Options o = new BitmapFactory.Options();
-			o.inJustDecodeBounds = true;
-
-			BitmapFactory.decodeStream(in, null, o);
-			in.close();
-
-			int scale = 1;
-			int size = Math.max(mOutputX, mOutputY);
-//			size = size < IMAGE_MIN_SIZE ? IMAGE_MIN_SIZE : size;
-			if (o.outHeight > size || o.outWidth > size)
+			// Cropper started decoding when the crop was requested.
+			Bitmap b = DecodeHandoff.take(uri, size);
+			if (b != null)
 			{
-				scale = (int) Math.pow(2, (int) Math.round(Math.log(IMAGE_MIN_SIZE / (double) Math.max(o.outHeight, o.outWidth)) / Math.log(0.5)));
+				return b;
 			}
-
-			BitmapFactory.Options o2 = new BitmapFactory.Options();
-			o2.inSampleSize = scale;
-			o2.inScaled = false;
-			in = mContentResolver.openInputStream(uri);
-			Bitmap b = BitmapFactory.decodeStream(in, null, o2);
-			in.close();
-
-			return b;
+			return DecodeHandoff.decode(mContentResolver, uri, null, size);
 		}
 		catch (IOException e)
 		{
@@ -332,16 +458,25 @@ public class CropImageActivity extends MonitoredActivity
 				{
 					final CountDownLatch latch = new CountDownLatch(1);
 					final Bitmap b = mBitmap;
+					if (mAutoStraighten && b != null)
+					{
+						mStraighten = HorizonDetector.detect(
+							createProxy(b, HorizonDetector.ANALYSIS_SIZE), MAX_STRAIGHTEN_ANGLE);
+					}
 					mHandler.post(new Runnable()
 					{
 						public void run()
 						{
 							if (b != mBitmap && b != null)
 							{
-								mImageView.setImageBitmapResetBase(b, true);
+								mImageView.setImageRotateBitmapResetBase(newRotateBitmap(b), true);
 								mBitmap = null;
 								mBitmap = b;
 							}
+							else if (mStraighten != 0F)
+							{
+								mImageView.setImageRotateBitmapResetBase(newRotateBitmap(mBitmap), true);
+							}
 							if (mImageView.getScale() == 1F)
 							{
 								mImageView.center(true, true);
@@ -349,6 +484,13 @@ public class CropImageActivity extends MonitoredActivity
 							latch.countDown();
 						}
 					});
+					mSubjectRect = FaceLocator.locate(b, FACE_DETECTION_BUDGET_MS);
+					mSubjectPadding = FACE_PADDING;
+					if (mSubjectRect == null && b != null)
+					{
+						mSubjectRect = suggestCropRect(b);
+						mSubjectPadding = 1F;
+					}
 					try
 					{
 						latch.await();
@@ -362,13 +504,68 @@ public class CropImageActivity extends MonitoredActivity
 			}, mHandler);
 	}
 
+	// Most salient window of the default crop size, found on a small copy of the bitmap.
+	private RectF suggestCropRect(Bitmap b)
+	{
+		Raster proxy = createProxy(b, 2 * SmartCrop.ANALYSIS_SIZE);
+		float[] window = SmartCrop.suggest(proxy, mAspectX, mAspectY, DEFAULT_CROP_SCALE);
+		float sx = (float) b.getWidth() / proxy.width;
+		float sy = (float) b.getHeight() / proxy.height;
+		return new RectF(window[0] * sx, window[1] * sy, window[2] * sx, window[3] * sy);
+	}
+
+	// Copy of the bitmap for analysis, scaled down so its longer side is at most maxSize.
+	private static Raster createProxy(Bitmap b, int maxSize)
+	{
+		float scale = Math.min(1F, (float) maxSize / Math.max(b.getWidth(), b.getHeight()));
+		Bitmap proxy = Bitmap.createScaledBitmap(b,
+			Math.max(1, Math.round(b.getWidth() * scale)),
+			Math.max(1, Math.round(b.getHeight() * scale)),
+			true);
+		Raster raster = Util.toRaster(proxy);
+		if (proxy != b)
+		{
+			proxy.recycle();
+		}
+		return raster;
+	}
+
+	private RotateBitmap newRotateBitmap(Bitmap b)
+	{
+		RotateBitmap rotateBitmap = new RotateBitmap(b);
+		rotateBitmap.setStraighten(mStraighten);
+		return rotateBitmap;
+	}
+
 	private void onSaveClicked() throws Exception
 	{
-		// TODO this code needs to change to use the decode/crop/encode single
-		// step api so that we don't require that the whole (possibly large)
-		// bitmap doesn't have to be read into memory
 		if (mSaving) return;
 
+		final QuadHighlightView quadView = mImageView.getQuadView();
+		if (quadView != null)
+		{
+			mSaving = true;
+			final float[] quad = quadView.getQuad();
+			Util.startBackgroundJob(this,
+				new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							savePerspective(quad);
+						}
+						catch (Exception e)
+						{
+							Log.e(TAG, "Cannot save image", e);
+							setResult(RESULT_CANCELED);
+							finish();
+						}
+					}
+				}, mHandler);
+			return;
+		}
+
 		if (mCrop == null)
 		{
 			return;
@@ -376,112 +573,684 @@ public class CropImageActivity extends MonitoredActivity
 
 		mSaving = true;
 
-		Rect r = mCrop.getCropRect();
+		final Rect r = mCrop.getCropRect();
+		final SpeculativeSave speculativeSave = mSpeculativeSave;
+		List<HighlightView> regions = mImageView.getRegions();
+		final Rect[] regionRects = new Rect[regions.size() - 1];
+		for (int i = 0; i < regionRects.length; i++)
+		{
+			regionRects[i] = regions.get(i + 1).getCropRect();
+		}
+		Util.startBackgroundJob(this,
+			new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						save(r, regionRects, speculativeSave);
+					}
+					catch (Exception e)
+					{
+						Log.e(TAG, "Cannot save image", e);
+						setResult(RESULT_CANCELED);
+						finish();
+					}
+				}
+			}, mHandler);
+	}
 
-		int width = r.width();
-		int height = r.height();
+	private void save(Rect r, Rect[] regions, SpeculativeSave speculativeSave) throws Exception
+	{
+		if (mOutputLadder != null)
+		{
+			mOutputPaths = mStraighten != 0F
+				? mOutputLadder.write(mBitmap, r, mStraighten, mCircleCrop)
+				: mOutputLadder.write(getFullCrop(r), mCircleCrop);
+		}
+		if (regions.length > 0)
+		{
+			mRegionPaths = saveRegions(regions);
+		}
 
-		Log.i(TAG, "Rect width/height " + width + "/" + height);
+		if (mKeepAnimation && !mCircleCrop && mStraighten == 0F && mRotation == 0 && saveAnimatedGif(r))
+		{
+			return;
+		}
 
-		// If we are circle cropping, we want alpha channel, which is the
-		// third param here.
-		Bitmap croppedImage;
-		try
+		if (isLosslessOutput() && mStraighten == 0F && saveLossless(r))
 		{
-			croppedImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			return;
 		}
-		catch (Exception e)
+
+		// If the user didn't touch anything since the speculative save started, its result is
+		// exactly what we would produce now.
+		if (speculativeSave != null && speculativeSave.matches(r, mBitmap, mStraighten))
 		{
-			throw e;
+			try
+			{
+				speculativeSave.future.get();
+			}
+			catch (CancellationException e)
+			{
+				// Fall through to the regular path
+			}
+			catch (ExecutionException e)
+			{
+				Log.w(TAG, "Speculative save failed", e);
+			}
+			if (speculativeSave.encoded != null)
+			{
+				saveOutput(speculativeSave.croppedImage, speculativeSave.encoded,
+					mResultCache != null ? getCacheKey(describeRect(r)) : null);
+				return;
+			}
 		}
-		if (croppedImage == null)
+
+		String cacheKey = null;
+		if (mResultCache != null)
 		{
+			cacheKey = getCacheKey(describeRect(r));
+			if (saveCachedOutput(cacheKey))
+			{
+				return;
+			}
+		}
+
+		if (mWorker != null)
+		{
+			saveIsolated(r, cacheKey);
 			return;
 		}
 
-		Canvas canvas = new Canvas(croppedImage);
-		Rect dstRect = new Rect(0, 0, width, height);
-		canvas.drawBitmap(mBitmap, r, dstRect, null);
+		Bitmap croppedImage = cropImage(mBitmap, r, mStraighten);
+		if (croppedImage != null)
+		{
+			saveOutput(croppedImage, null, cacheKey);
+		}
+	}
+
+	// Has the worker process decode the source again and write the output itself.
+	private void saveIsolated(Rect r, String cacheKey) throws IOException, InterruptedException
+	{
+		ParcelFileDescriptor fd = mContentResolver.openFileDescriptor(mSaveUri, "w");
+		if (fd == null)
+		{
+			throw new IOException("Cannot open file: " + mSaveUri);
+		}
 
-		if (mCircleCrop)
+		Bundle job = new Bundle();
+		job.putString(CropWorkerService.KEY_SOURCE, mSourceUri.toString());
+		job.putInt(CropWorkerService.KEY_SIZE, Math.max(mOutputX, mOutputY));
+		job.putInt(CropWorkerService.KEY_ROTATION, mRotation);
+		job.putIntArray(CropWorkerService.KEY_RECT, new int[]{r.left, r.top, r.right, r.bottom});
+		job.putFloat(CropWorkerService.KEY_STRAIGHTEN, mStraighten);
+		job.putBundle(CropWorkerService.KEY_OPTIONS, newCropOptions().toBundle());
+		job.putBoolean(CropWorkerService.KEY_KEEP_METADATA, mKeepMetadata);
+		job.putBoolean(CropWorkerService.KEY_KEEP_GPS, mKeepGps);
+		job.putParcelable(CropWorkerService.KEY_OUTPUT, fd);
+		boolean saved;
+		try
+		{
+			saved = mWorker.crop(job);
+		}
+		finally
+		{
+			fd.close();
+		}
+		if (!saved)
 		{
-			// OK, so what's all this about?
-			// Bitmaps are inherently rectangular but we want to return
-			// something that's basically a circle.  So we fill in the
-			// area around the circle with alpha.  Note the all important
-			// PortDuff.Mode.CLEAR.
-			Canvas c = new Canvas(croppedImage);
-			Path p = new Path();
-			p.addCircle(width / 2F, height / 2F, width / 2F,
-				Path.Direction.CW);
-			c.clipPath(p, Region.Op.DIFFERENCE);
-			c.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
+			throw new IOException("Crop worker failed");
+		}
+		if (cacheKey != null)
+		{
+			// The worker wrote the file, read it back into the cache.
+			mResultCache.put(cacheKey, ImageLoader.open(mContentResolver, mSaveUri));
 		}
 
-		/* If the output is required to a specific size then scale or fill */
-		if (mOutputX != 0 && mOutputY != 0)
+		// The rectangle is in the same bitmap the worker decoded, so the preview can come from ours.
+		Bitmap preview = null;
+		if (mPreviewSize > 0)
 		{
-			if (mScale)
+			preview = createPreview(Bitmap.createBitmap(mBitmap, r.left, r.top, r.width(), r.height()));
+		}
+		deliverResult(preview);
+		finish();
+	}
+
+	private void savePerspective(float[] quad) throws Exception
+	{
+		Bitmap rectified = null;
+		if (mOutputLadder != null)
+		{
+			rectified = rectify(mBitmap, quad);
+			mOutputPaths = mOutputLadder.write(Util.toRaster(rectified), mCircleCrop);
+		}
+
+		String cacheKey = null;
+		if (mResultCache != null)
+		{
+			cacheKey = getCacheKey(describeQuad(quad));
+			if (saveCachedOutput(cacheKey))
 			{
-			    /* Scale the image to the required dimensions */
-				croppedImage = Util.transform(new Matrix(), croppedImage, mOutputX, mOutputY, mScaleUp);
+				return;
 			}
-			else
+		}
+
+		if (rectified == null)
+		{
+			rectified = rectify(mBitmap, quad);
+		}
+		Bitmap croppedImage = cropImage(rectified,
+			new Rect(0, 0, rectified.getWidth(), rectified.getHeight()), 0F);
+		if (croppedImage != null)
+		{
+			saveOutput(croppedImage, null, cacheKey);
+		}
+	}
+
+	private void updateLivePreview()
+	{
+		if (mBitmap == null || mSaving)
+		{
+			return;
+		}
+		Bitmap preview;
+		QuadHighlightView quadView = mImageView.getQuadView();
+		if (quadView != null)
+		{
+			preview = mLivePreview.renderQuad(mBitmap, quadView.getQuad());
+		}
+		else if (mCrop != null)
+		{
+			preview = mLivePreview.render(mBitmap, mCrop.getCropRect(), mStraighten);
+		}
+		else
+		{
+			return;
+		}
+		// The same bitmap is drawn into again as long as the output size stays the same.
+		mLivePreviewView.setImageBitmap(preview);
+		mLivePreviewView.invalidate();
+	}
+
+	// Crops the other regions out of the decoded image one after another and encodes them in
+	// parallel. Each region is cropped like the main one.
+	private String[] saveRegions(Rect[] regions) throws Exception
+	{
+		List<Future<Void>> encodes = new ArrayList<Future<Void>>(regions.length);
+		try
+		{
+			for (int i = 0; i < regions.length; i++)
+			{
+				Bitmap croppedImage = cropImage(mBitmap, regions[i], mStraighten);
+				if (croppedImage == null)
+				{
+					throw new InterruptedException();
+				}
+				encodes.add(Workers.encode().submit(newRegionEncode(croppedImage, mRegionUris[i])));
+			}
+			for (Future<Void> f : encodes)
+			{
+				f.get();
+			}
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
 			{
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			for (Future<Void> f : encodes)
+			{
+				f.cancel(true);
+			}
+		}
 
-				/* Don't scale the image crop it to the size requested.
-				 * Create an new image with the cropped image in the center and
-				 * the extra space filled.
-				 */
+		String[] paths = new String[regions.length];
+		for (int i = 0; i < paths.length; i++)
+		{
+			paths[i] = mRegionUris[i].toString();
+		}
+		return paths;
+	}
 
-				// Don't scale the image but instead fill it so it's the
-				// required dimension
-				Bitmap b = Bitmap.createBitmap(mOutputX, mOutputY, Bitmap.Config.ARGB_8888);
-				canvas = new Canvas(b);
+	private Callable<Void> newRegionEncode(final Bitmap croppedImage, final Uri uri)
+	{
+		return new Callable<Void>()
+		{
+			public Void call() throws IOException
+			{
+				OutputStream out = mContentResolver.openOutputStream(uri);
+				if (out == null)
+				{
+					throw new IOException("Cannot open " + uri);
+				}
+				try
+				{
+					JpegMetadata metadata = readOutputMetadata(croppedImage);
+					if (metadata != null)
+					{
+						out = metadata.inject(out);
+					}
+					newOutputEncoder(metadata).encode(croppedImage, out);
+				}
+				finally
+				{
+					Util.closeSilently(out);
+				}
+				return null;
+			}
+		};
+	}
 
-				Rect srcRect = mCrop.getCropRect();
-				dstRect = new Rect(0, 0, mOutputX, mOutputY);
+	// Whether the options allow copying the crop out of the source, which can't be scaled,
+	// converted or made to fit a file size.
+	private boolean isLosslessOutput()
+	{
+		return mLossless && !mCircleCrop && !(mScale && mOutputX != 0 && mOutputY != 0)
+			&& mOutputFormat == Bitmap.CompressFormat.JPEG && mMaxFileSize == 0;
+	}
 
-				int dx = (srcRect.width() - dstRect.width()) / 2;
-				int dy = (srcRect.height() - dstRect.height()) / 2;
+	// Copies the crop straight out of a baseline JPEG, returns false if the source isn't one.
+	private boolean saveLossless(Rect r) throws IOException
+	{
+		// Progressive and other unsupported sources are told apart by their headers alone.
+		int[] bounds;
+		InputStream header = ImageLoader.open(mContentResolver, mSourceUri);
+		try
+		{
+			bounds = LosslessJpeg.readSize(header);
+		}
+		finally
+		{
+			Util.closeSilently(header);
+		}
+		if (bounds == null)
+		{
+			return false;
+		}
 
-				/* If the srcRect is too big, use the center part of it. */
-				srcRect.inset(Math.max(0, dx), Math.max(0, dy));
+		// The rectangle is in the rotated and subsampled bitmap, map it back to the source.
+		boolean swap = mRotation == 90 || mRotation == 270;
+		int width = swap ? mBitmap.getHeight() : mBitmap.getWidth();
+		int height = swap ? mBitmap.getWidth() : mBitmap.getHeight();
+		Rect source;
+		switch (mRotation)
+		{
+			case 90:
+				source = new Rect(r.top, height - r.right, r.bottom, height - r.left);
+				break;
+			case 180:
+				source = new Rect(width - r.right, height - r.bottom, width - r.left, height - r.top);
+				break;
+			case 270:
+				source = new Rect(width - r.bottom, r.left, width - r.top, r.right);
+				break;
+			default:
+				source = new Rect(r);
+				break;
+		}
+		float sx = (float) bounds[0] / width;
+		float sy = (float) bounds[1] / height;
+
+		// The crop is only needed for the preview and the Exif thumbnail.
+		Bitmap crop = mPreviewSize > 0 || mKeepMetadata
+			? Bitmap.createBitmap(mBitmap, r.left, r.top, r.width(), r.height()) : null;
+		InputStream in = ImageLoader.open(mContentResolver, mSourceUri);
+		OutputStream out = null;
+		try
+		{
+			out = mContentResolver.openOutputStream(mSaveUri);
+			// The size of the output depends on the snapping, so its dimension tags are removed.
+			if (out == null || !LosslessJpeg.transform(in, injectMetadata(out, 0, 0, crop),
+				Math.round(source.left * sx), Math.round(source.top * sy),
+				Math.round(source.right * sx), Math.round(source.bottom * sy), mRotation))
+			{
+				return false;
+			}
+		}
+		finally
+		{
+			Util.closeSilently(in);
+			Util.closeSilently(out);
+		}
 
-				/* If the dstRect is too big, use the center part of it. */
-				dstRect.inset(Math.max(0, -dx), Math.max(0, -dy));
+		deliverResult(mPreviewSize > 0 ? createPreview(crop) : null);
+		finish();
+		return true;
+	}
 
-				/* Draw the cropped bitmap in the center */
-				canvas.drawBitmap(mBitmap, srcRect, dstRect, null);
+	// Crops all frames of a GIF source into a GIF, returns false if the source isn't one.
+	private boolean saveAnimatedGif(Rect r) throws IOException
+	{
+		if (ImageLoader.sniff(mContentResolver, mSourceUri) != ImageType.GIF)
+		{
+			return false;
+		}
 
-				/* Set the cropped bitmap as the new bitmap */
-				croppedImage = b;
+		// The rectangle is in the subsampled bitmap, map it back to the logical screen.
+		int[] bounds = ImageLoader.decodeBounds(mContentResolver, mSourceUri);
+		if (bounds == null)
+		{
+			return false;
+		}
+		float sx = (float) bounds[0] / mBitmap.getWidth();
+		float sy = (float) bounds[1] / mBitmap.getHeight();
+		int left = Math.round(r.left * sx);
+		int top = Math.round(r.top * sy);
+		int width = Math.max(1, Math.min(bounds[0], Math.round(r.right * sx)) - left);
+		int height = Math.max(1, Math.min(bounds[1], Math.round(r.bottom * sy)) - top);
+
+		int outputWidth = width;
+		int outputHeight = height;
+		if (mScale && mOutputX != 0 && mOutputY != 0)
+		{
+			float scale = Math.min((float) mOutputX / width, (float) mOutputY / height);
+			if (!mScaleUp)
+			{
+				scale = Math.min(scale, 1F);
 			}
+			outputWidth = Math.max(1, Math.round(width * scale));
+			outputHeight = Math.max(1, Math.round(height * scale));
 		}
 
-		final Bitmap b = croppedImage;
-		Util.startBackgroundJob(this,
-			new Runnable()
+		InputStream in = new BufferedInputStream(ImageLoader.open(mContentResolver, mSourceUri));
+		OutputStream out = null;
+		try
+		{
+			out = mContentResolver.openOutputStream(mSaveUri);
+			if (out == null)
 			{
-				public void run()
+				return false;
+			}
+			GifCropper.crop(in, out, left, top, width, height, outputWidth, outputHeight);
+		}
+		finally
+		{
+			Util.closeSilently(in);
+			Util.closeSilently(out);
+		}
+
+		deliverResult(mPreviewSize > 0
+			? createPreview(Bitmap.createBitmap(mBitmap, r.left, r.top, r.width(), r.height())) : null);
+		finish();
+		return true;
+	}
+
+	// Wraps the output of a JPEG encoder to insert the metadata of the source into it.
+	private OutputStream injectMetadata(OutputStream out, int width, int height, Bitmap image)
+		throws IOException
+	{
+		JpegMetadata metadata = readMetadata(width, height, image);
+		return metadata != null ? metadata.inject(out) : out;
+	}
+
+	// Metadata for an encoded JPEG output, trimmed to its share of the maximum file size.
+	private JpegMetadata readOutputMetadata(Bitmap image) throws IOException
+	{
+		if (!mKeepMetadata || mOutputFormat != Bitmap.CompressFormat.JPEG)
+		{
+			return null;
+		}
+		return CropPipeline.readOutputMetadata(mContentResolver, mSourceUri, image, mKeepGps, mMaxFileSize);
+	}
+
+	// Metadata of the source adapted to the output, or null if there is none to keep.
+	private JpegMetadata readMetadata(int width, int height, Bitmap image) throws IOException
+	{
+		if (!mKeepMetadata)
+		{
+			return null;
+		}
+		return CropPipeline.readMetadata(mContentResolver, mSourceUri, width, height, image, mKeepGps);
+	}
+
+	// The crop at the resolution of the bitmap, which the additional outputs are scaled from.
+	// Straightened crops are rotated by the ladder itself, so they are resampled only once.
+	private Raster getFullCrop(Rect r)
+	{
+		Raster raster = new Raster(r.width(), r.height());
+		mBitmap.getPixels(raster.pixels, 0, raster.width, r.left, r.top, raster.width, raster.height);
+		return raster;
+	}
+
+	// Warps the quad into a rectangle. Only the pixels of the region covered by the quad are read.
+	private static Bitmap rectify(Bitmap source, float[] quad) throws InterruptedException
+	{
+		RectF bounds = new RectF(quad[0], quad[1], quad[0], quad[1]);
+		for (int i = 2; i < 8; i += 2)
+		{
+			bounds.union(quad[i], quad[i + 1]);
+		}
+		Rect region = new Rect((int) Math.floor(bounds.left), (int) Math.floor(bounds.top),
+			(int) Math.ceil(bounds.right) + 1, (int) Math.ceil(bounds.bottom) + 1);
+		if (!region.intersect(0, 0, source.getWidth(), source.getHeight()))
+		{
+			throw new IllegalArgumentException("Quad outside of the image");
+		}
+
+		Raster raster = new Raster(region.width(), region.height());
+		source.getPixels(raster.pixels, 0, raster.width, region.left, region.top,
+			raster.width, raster.height);
+		int[] size = PerspectiveWarp.getOutputSize(quad);
+		Raster rectified = PerspectiveWarp.warp(raster, region.left, region.top, quad,
+			size[0], size[1], Workers.compute(), Workers.parallelism());
+		return Util.toBitmap(rectified);
+	}
+
+	// Crops and encodes the current rectangle in the background at low priority, so the result
+	// is ready if the user saves without changing it.
+	private void startSpeculativeSave()
+	{
+		if (mSaving || isLosslessOutput() || mKeepAnimation || mWorker != null || mCrop == null || mBitmap == null || mSaveUri == null)
+		{
+			return;
+		}
+
+		Rect r = mCrop.getCropRect();
+		if (mSpeculativeSave != null && mSpeculativeSave.matches(r, mBitmap, mStraighten))
+		{
+			return;
+		}
+		cancelSpeculativeSave();
+
+		final SpeculativeSave speculativeSave = new SpeculativeSave(r, mBitmap, mStraighten);
+		final OutputEncoder encoder = newOutputEncoder();
+		speculativeSave.future = Workers.background().submit(new Runnable()
+		{
+			public void run()
+			{
+				Bitmap croppedImage = cropImage(speculativeSave.source, speculativeSave.rect,
+					speculativeSave.straighten);
+				if (croppedImage == null || Thread.currentThread().isInterrupted())
 				{
-					saveOutput(b);
+					return;
 				}
-			}, mHandler);
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				try
+				{
+					encoder.encode(croppedImage, encoded);
+				}
+				catch (IOException e)
+				{
+					return;
+				}
+				if (!Thread.currentThread().isInterrupted())
+				{
+					speculativeSave.croppedImage = croppedImage;
+					speculativeSave.encoded = encoded;
+				}
+			}
+		});
+		mSpeculativeSave = speculativeSave;
+	}
+
+	private void cancelSpeculativeSave()
+	{
+		if (mSpeculativeSave != null)
+		{
+			mSpeculativeSave.future.cancel(true);
+			mSpeculativeSave = null;
+		}
+	}
+
+	private OutputEncoder newOutputEncoder()
+	{
+		return newOutputEncoder(null);
+	}
+
+	private OutputEncoder newOutputEncoder(JpegMetadata metadata)
+	{
+		return newCropOptions().newEncoder(metadata);
+	}
+
+	// Crop rectangle relative to the bitmap size, independent of the decoded sample size.
+	private String describeRect(Rect r)
+	{
+		float width = mBitmap.getWidth();
+		float height = mBitmap.getHeight();
+		return String.format(Locale.US, "%.4f,%.4f,%.4f,%.4f@%d%+.2f",
+			r.left / width, r.top / height, r.right / width, r.bottom / height,
+			mRotation, mStraighten);
+	}
+
+	private String describeQuad(float[] quad)
+	{
+		StringBuilder sb = new StringBuilder("quad");
+		for (int i = 0; i < 8; i += 2)
+		{
+			sb.append(String.format(Locale.US, ",%.4f,%.4f",
+				quad[i] / mBitmap.getWidth(), quad[i + 1] / mBitmap.getHeight()));
+		}
+		return sb.append('@').append(mRotation).toString();
+	}
+
+	// Key of the result in the result cache. It has to cover the source content, the crop
+	// geometry and every option affecting the output.
+	private String getCacheKey(String geometry) throws IOException
+	{
+		return ResultCache.key(
+			ResultCache.hash(ImageLoader.open(mContentResolver, mSourceUri)),
+			geometry,
+			mOutputX + "x" + mOutputY,
+			"scale=" + mScale,
+			"scaleUp=" + mScaleUp,
+			"blurBackground=" + mBlurBackground,
+			"circle=" + mCircleCrop,
+			"format=" + mOutputFormat,
+			"quality=" + OutputEncoder.DEFAULT_QUALITY,
+			"maxFileSize=" + mMaxFileSize,
+			"pngCompressionLevel=" + mPngCompressionLevel,
+			"metadata=" + mKeepMetadata + (mKeepGps ? "+gps" : ""));
+	}
+
+	private boolean saveCachedOutput(String cacheKey) throws IOException
+	{
+		OutputStream outputStream = mContentResolver.openOutputStream(mSaveUri);
+		if (outputStream == null)
+		{
+			return false;
+		}
+		try
+		{
+			if (!mResultCache.get(cacheKey, outputStream))
+			{
+				return false;
+			}
+		}
+		finally
+		{
+			Util.closeSilently(outputStream);
+		}
+
+		Bitmap preview = null;
+		if (mPreviewSize > 0)
+		{
+			File file = mResultCache.getFile(cacheKey);
+			if (file != null)
+			{
+				preview = decodePreview(file);
+			}
+		}
+		deliverResult(preview);
+		finish();
+		return true;
+	}
+
+	// Decodes the cached output at about the preview size.
+	private Bitmap decodePreview(File file)
+	{
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), o);
+		int sampleSize = 1;
+		while (Math.max(o.outWidth, o.outHeight) / (sampleSize * 2) >= mPreviewSize)
+		{
+			sampleSize *= 2;
+		}
+		o = new BitmapFactory.Options();
+		o.inSampleSize = sampleSize;
+		Bitmap b = BitmapFactory.decodeFile(file.getPath(), o);
+		return b != null ? createPreview(b) : null;
+	}
+
+	private Bitmap cropImage(Bitmap source, Rect r, float straighten)
+	{
+		return CropPipeline.crop(source, r, straighten, newCropOptions());
+	}
+
+	private CropOptions newCropOptions()
+	{
+		return new CropOptions(mOutputX, mOutputY, mScale, mScaleUp, mCircleCrop, mBlurBackground,
+			mOutputFormat, mMaxFileSize, mPngCompressionLevel);
 	}
 
-	private void saveOutput(Bitmap croppedImage)
+	private void saveOutput(Bitmap croppedImage, ByteArrayOutputStream encoded, String cacheKey)
 	{
 		if (mSaveUri != null)
 		{
 			OutputStream outputStream = null;
+			ResultCache.Writer cacheWriter = null;
 
 			try
 			{
 				outputStream = mContentResolver.openOutputStream(mSaveUri);
 				if (outputStream != null)
 				{
-					croppedImage.compress(mOutputFormat, 90, outputStream);
+					OutputStream out = outputStream;
+					if (cacheKey != null)
+					{
+						cacheWriter = mResultCache.writer(cacheKey, outputStream);
+						out = cacheWriter;
+					}
+					JpegMetadata metadata = readOutputMetadata(croppedImage);
+					if (metadata != null)
+					{
+						out = metadata.inject(out);
+						// The speculative encode had the whole size limit to itself.
+						if (encoded != null && mMaxFileSize > 0 && encoded.size() + metadata.size() > mMaxFileSize)
+						{
+							encoded = null;
+						}
+					}
+					if (encoded != null)
+					{
+						encoded.writeTo(out);
+					}
+					else
+					{
+						newOutputEncoder(metadata).encode(croppedImage, out);
+					}
+					if (cacheWriter != null)
+					{
+						cacheWriter.commit();
+						cacheWriter = null;
+					}
 				}
 			}
 			catch (IOException ex)
@@ -494,17 +1263,14 @@ public class CropImageActivity extends MonitoredActivity
 			}
 			finally
 			{
-
+				if (cacheWriter != null)
+				{
+					cacheWriter.abort();
+				}
 				Util.closeSilently(outputStream);
 			}
 
-			Bundle extras = new Bundle();
-
-			Intent intent = new Intent();
-			intent.putExtras(extras);
-			intent.putExtra(Cropper.SAVE_PATH, mSaveUri.toString());
-			intent.putExtra(Cropper.ORIENTATION_IN_DEGREES, Util.getOrientationInDegree(this));
-			setResult(RESULT_OK, intent);
+			deliverResult(mPreviewSize > 0 ? createPreview(croppedImage) : null);
 		}
 		else
 		{
@@ -515,13 +1281,81 @@ public class CropImageActivity extends MonitoredActivity
 		finish();
 	}
 
+	private void deliverResult(Bitmap preview)
+	{
+		Bundle extras = new Bundle();
+
+		Intent intent = new Intent();
+		intent.putExtras(extras);
+		intent.putExtra(Cropper.SAVE_PATH, mSaveUri.toString());
+		intent.putExtra(Cropper.ORIENTATION_IN_DEGREES, Util.getOrientationInDegree(this));
+		if (preview != null)
+		{
+			intent.putExtra(Cropper.PREVIEW, PreviewHandoff.put(preview));
+		}
+		if (mOutputPaths != null)
+		{
+			intent.putExtra(Cropper.SAVE_PATHS, mOutputPaths);
+		}
+		if (mRegionPaths != null)
+		{
+			intent.putExtra(Cropper.REGION_PATHS, mRegionPaths);
+		}
+		setResult(RESULT_OK, intent);
+	}
+
+	// Scales the already cropped image down to the requested preview size.
+	private Bitmap createPreview(Bitmap croppedImage)
+	{
+		int width = croppedImage.getWidth();
+		int height = croppedImage.getHeight();
+		float scale = (float) mPreviewSize / Math.max(width, height);
+		if (scale >= 1F)
+		{
+			return croppedImage;
+		}
+		return Util.resize(croppedImage,
+			Math.max(1, Math.round(width * scale)),
+			Math.max(1, Math.round(height * scale)));
+	}
+
 	@Override
 	protected void onDestroy()
 	{
 		super.onDestroy();
+		cancelSpeculativeSave();
+		mPreviewFrame.cancel();
+		if (mWorker != null)
+		{
+			mWorker.unbind();
+		}
 		mBitmap = null;
 	}
 
+	// Result of cropping and encoding ahead of time, valid for one rectangle of one bitmap.
+	private static class SpeculativeSave
+	{
+		final Rect rect;
+		final Bitmap source;
+		final float straighten;
+		Future<?> future;
+		// Written by the background task, read after waiting on the future.
+		volatile Bitmap croppedImage;
+		volatile ByteArrayOutputStream encoded;
+
+		SpeculativeSave(Rect rect, Bitmap source, float straighten)
+		{
+			this.rect = rect;
+			this.source = source;
+			this.straighten = straighten;
+		}
+
+		boolean matches(Rect r, Bitmap b, float s)
+		{
+			return rect.equals(r) && source == b && straighten == s;
+		}
+	}
+
 	Runnable mSetupHighlightRunnable = new Runnable()
 	{
 		@SuppressWarnings("hiding")
@@ -533,10 +1367,13 @@ public class CropImageActivity extends MonitoredActivity
 		{
 			HighlightView hv = new HighlightView(mImageView);
 
-			int width = mBitmap.getWidth();
-			int height = mBitmap.getHeight();
+			// The crop rectangle has to stay inside the straightened image.
+			RectF bounds = Util.getStraightenedBounds(mBitmap.getWidth(), mBitmap.getHeight(), mStraighten);
+			Rect imageRect = new Rect((int) Math.ceil(bounds.left), (int) Math.ceil(bounds.top),
+				(int) Math.floor(bounds.right), (int) Math.floor(bounds.bottom));
 
-			Rect imageRect = new Rect(0, 0, width, height);
+			int width = imageRect.width();
+			int height = imageRect.height();
 
 			// make the default size about 4/5 of the width or height
 			int cropWidth = Math.min(width, height) * 4 / 5;
@@ -557,20 +1394,113 @@ public class CropImageActivity extends MonitoredActivity
 				}
 			}
 
-			int x = (width - cropWidth) / 2;
-			int y = (height - cropHeight) / 2;
-
-			RectF cropRect = new RectF(x, y, x + cropWidth, y + cropHeight);
+			RectF subject = null;
+			if (mSubjectRect != null)
+			{
+				// The subject was found in the unrotated bitmap.
+				subject = new RectF(mSubjectRect);
+				Matrix m = new Matrix();
+				m.setRotate(mStraighten, mBitmap.getWidth() / 2F, mBitmap.getHeight() / 2F);
+				m.mapRect(subject);
+			}
+			RectF cropRect = fitCropRect(imageRect, cropWidth, cropHeight, subject, mSubjectPadding);
+			List<HighlightView> regionViews = new ArrayList<HighlightView>();
+			if (mPerspective)
+			{
+				QuadHighlightView qv = new QuadHighlightView(mImageView);
+				qv.setup(mImageMatrix, imageRect, cropRect, highlightColorResId,
+					highlightSelectedColorResId, verticalIconResId, borderSizeResId);
+				mImageView.setQuadView(qv);
+				return;
+			}
+			if (mRegionUris != null)
+			{
+				// Lay the regions out in a grid so they can all be grabbed.
+				int regions = mRegionUris.length + 1;
+				int columns = (int) Math.ceil(Math.sqrt(regions));
+				int rows = (regions + columns - 1) / columns;
+				for (int i = 0; i < regions; i++)
+				{
+					Rect cell = new Rect(
+						imageRect.left + width * (i % columns) / columns,
+						imageRect.top + height * (i / columns) / rows,
+						imageRect.left + width * (i % columns + 1) / columns,
+						imageRect.top + height * (i / columns + 1) / rows);
+					RectF regionRect = getDefaultCropRect(cell);
+					if (i == 0)
+					{
+						cropRect = regionRect;
+						continue;
+					}
+					HighlightView region = new HighlightView(mImageView);
+					region.setup(mImageMatrix, imageRect, regionRect, mCircleCrop,
+						mAspectX != 0 && mAspectY != 0, highlightColorResId, highlightSelectedColorResId,
+						verticalIconResId, horizontalIconResId, borderSizeResId);
+					regionViews.add(region);
+				}
+			}
 			hv.setup(mImageMatrix, imageRect, cropRect, mCircleCrop,
 				mAspectX != 0 && mAspectY != 0, highlightColorResId, highlightSelectedColorResId,
 				verticalIconResId, horizontalIconResId, borderSizeResId);
 
 			mImageView.setHighlightView(hv);
+			for (HighlightView region : regionViews)
+			{
+				mImageView.addRegion(region);
+			}
+		}
+
+		// The crop rectangle centered in an area, at about 4/5 of its size.
+		private RectF getDefaultCropRect(Rect area)
+		{
+			int cropWidth = Math.min(area.width(), area.height()) * 4 / 5;
+			int cropHeight = cropWidth;
+			if (mAspectX != 0 && mAspectY != 0)
+			{
+				if (mAspectX > mAspectY)
+				{
+					cropHeight = cropWidth * mAspectY / mAspectX;
+				}
+				else
+				{
+					cropWidth = cropHeight * mAspectX / mAspectY;
+				}
+			}
+			return fitCropRect(area, cropWidth, cropHeight, null, 0F);
+		}
+
+		// Places the crop rectangle around the subject, growing it while keeping the aspect ratio
+		// if the subject doesn't fit. Without a subject the rectangle is centered.
+		private RectF fitCropRect(Rect imageRect, float cropWidth, float cropHeight,
+		                          RectF subject, float padding)
+		{
+			int width = imageRect.width();
+			int height = imageRect.height();
+			float cx = imageRect.exactCenterX();
+			float cy = imageRect.exactCenterY();
+			if (subject != null)
+			{
+				float grow = Math.max(subject.width() * padding / cropWidth,
+					subject.height() * padding / cropHeight);
+				if (grow > 1F)
+				{
+					float shrink = Math.min(width / (cropWidth * grow), height / (cropHeight * grow));
+					grow *= Math.min(1F, shrink);
+					cropWidth *= grow;
+					cropHeight *= grow;
+				}
+				cx = subject.centerX();
+				cy = subject.centerY();
+			}
+
+			float x = Math.max(imageRect.left, Math.min(imageRect.right - cropWidth, cx - cropWidth / 2F));
+			float y = Math.max(imageRect.top, Math.min(imageRect.bottom - cropHeight, cy - cropHeight / 2F));
+			return new RectF(x, y, x + cropWidth, y + cropHeight);
 		}
 
 		public void run()
 		{
-			mImageMatrix = mImageView.getImageMatrix();
+			mImageMatrix = new Matrix(mImageView.getCropMatrix());
 			mScale = 1.0F / mScale;
 
 			mHandler.post(new Runnable()
@@ -581,7 +1511,14 @@ public class CropImageActivity extends MonitoredActivity
 
 					mImageView.invalidate();
 					mCrop = mImageView.getHiglightView();
-					mCrop.setFocus(true);
+					if (mCrop != null)
+					{
+						mCrop.setFocus(true);
+					}
+					if (mLivePreview != null)
+					{
+						mPreviewFrame.schedule();
+					}
 				}
 			});
 		}
@@ -592,7 +1529,8 @@ public class CropImageActivity extends MonitoredActivity
 
 	public static void showStorageToast(Activity activity)
 	{
-		showStorageToast(activity, calculatePicturesRemaining(activity));
+		Integer remaining = Prewarm.getPicturesRemaining();
+		showStorageToast(activity, remaining != null ? remaining : calculatePicturesRemaining(activity));
 	}
 
 	public static void showStorageToast(Activity activity, int remaining)
@@ -622,7 +1560,7 @@ public class CropImageActivity extends MonitoredActivity
 		}
 	}
 
-	public static int calculatePicturesRemaining(Activity activity)
+	public static int calculatePicturesRemaining(Context activity)
 	{
 		try
 		{
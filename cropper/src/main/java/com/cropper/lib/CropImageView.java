@@ -18,19 +18,88 @@ package com.cropper.lib;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class CropImageView extends ImageViewTouchBase
 {
+	// How long the crop rectangle has to stay untouched to be considered final.
+	private static final long IDLE_DELAY_MS = 400;
+	// How far ahead of the newest touch sample the crop is drawn when prediction is on, about
+	// the time it takes the frame to reach the display.
+	private static final long PREDICTION_MS = 16;
+
+	interface Listener
+	{
+		// The crop rectangle hasn't changed for a while after the user let go of it.
+		void onCropIdle();
+
+		// The user started changing the crop rectangle.
+		void onCropTouched();
+
+		// The crop rectangle or quad changed, at most once per frame while dragging.
+		void onCropChanged();
+	}
+
+	// Position the crop was last moved to, and the newest position of the finger.
 	private float mLastX, mLastY;
-	private int mMotionEdge;
+	private float mTouchX, mTouchY;
+	private final float[] mPredicted = new float[2];
+	private TouchPredictor mPredictor;
+	private int mMotionEdge = HighlightView.GROW_NONE;
 	private Context mContext;
 	private ScaleGestureDetector mScaleGestureDetector;
+	// The region being changed, one of mRegions.
 	private HighlightView mHiglightView;
+	// All crop regions, the main one first, indexed in image space by mRegionIndex.
+	private final List<HighlightView> mRegions = new ArrayList<HighlightView>();
+	private final RegionIndex mRegionIndex = new RegionIndex();
+	private int[] mRegionHits = new int[0];
+	private final Matrix mInverse = new Matrix();
+	private final float[] mPoint = new float[2];
+	private final Paint mDimPaint = new Paint();
+	private final Path mDimPath = new Path();
+	private QuadHighlightView mQuadView;
+	private int mQuadHit = QuadHighlightView.NONE;
+	private Listener mListener;
+
+	private final Runnable mIdleRunnable = new Runnable()
+	{
+		public void run()
+		{
+			if (mListener != null)
+			{
+				mListener.onCropIdle();
+			}
+		}
+	};
+
+	// Moves are coalesced and applied once per frame.
+	private final FrameScheduler mMotionFrame = FrameScheduler.create(new Runnable()
+	{
+		public void run()
+		{
+			float x = mTouchX;
+			float y = mTouchY;
+			if (mPredictor != null)
+			{
+				mPredictor.predict(PREDICTION_MS, mPredicted);
+				x = mPredicted[0];
+				y = mPredicted[1];
+			}
+			applyMotion(x, y);
+		}
+	});
 
 	@Override
 	protected void onLayout(boolean changed, int left, int top, int right, int bottom)
@@ -38,14 +107,19 @@ class CropImageView extends ImageViewTouchBase
 		super.onLayout(changed, left, top, right, bottom);
 		if (mBitmapDisplayed.getBitmap() != null)
 		{
-			if (mHiglightView != null)
+			for (HighlightView hv : mRegions)
 			{
-				mHiglightView.mMatrix.set(getImageMatrix());
-				mHiglightView.invalidate();
-				if (mHiglightView.mIsFocused)
-				{
-					centerBasedOnHighlightView(mHiglightView);
-				}
+				hv.mMatrix.set(getCropMatrix());
+				hv.invalidate();
+			}
+			if (mHiglightView != null && mHiglightView.mIsFocused)
+			{
+				centerBasedOnHighlightView(mHiglightView);
+			}
+			if (mQuadView != null)
+			{
+				mQuadView.mMatrix.set(getCropMatrix());
+				mQuadView.invalidate();
 			}
 		}
 	}
@@ -71,16 +145,18 @@ class CropImageView extends ImageViewTouchBase
 			{
 				if (mHiglightView != null)
 				{
-					int width = mHiglightView.getCropRect().width();
-					int height = mHiglightView.getCropRect().height();
-
-					int newWidth = (int) (width * detector.getScaleFactor());
-					int newHeight = (int) (height * detector.getScaleFactor());
+					float width = mHiglightView.mGeometry.getWidth();
+					float height = mHiglightView.mGeometry.getHeight();
 
-					int dx = newWidth - width;
-					int dy = newHeight - height;
+					float dx = width * detector.getScaleFactor() - width;
+					float dy = height * detector.getScaleFactor() - height;
 
 					mHiglightView.growBy(dx, dy);
+					updateRegionIndex();
+					if (mListener != null)
+					{
+						mListener.onCropChanged();
+					}
 				}
 				return true;
 			}
@@ -97,6 +173,7 @@ class CropImageView extends ImageViewTouchBase
 			}
 		};
 		mScaleGestureDetector = new ScaleGestureDetector(context, mOnScaleGestureListener);
+		mDimPaint.setARGB(125, 50, 50, 50);
 	}
 
 	@Override
@@ -104,11 +181,7 @@ class CropImageView extends ImageViewTouchBase
 	{
 		super.zoomTo(scale, centerX, centerY);
 
-		if (mHiglightView != null)
-		{
-			mHiglightView.mMatrix.set(getImageMatrix());
-			mHiglightView.invalidate();
-		}
+		updateHighlightMatrix();
 	}
 
 	@Override
@@ -116,11 +189,7 @@ class CropImageView extends ImageViewTouchBase
 	{
 		super.zoomIn();
 
-		if (mHiglightView != null)
-		{
-			mHiglightView.mMatrix.set(getImageMatrix());
-			mHiglightView.invalidate();
-		}
+		updateHighlightMatrix();
 	}
 
 	@Override
@@ -128,11 +197,7 @@ class CropImageView extends ImageViewTouchBase
 	{
 		super.zoomOut();
 
-		if (mHiglightView != null)
-		{
-			mHiglightView.mMatrix.set(getImageMatrix());
-			mHiglightView.invalidate();
-		}
+		updateHighlightMatrix();
 	}
 
 	@Override
@@ -140,10 +205,29 @@ class CropImageView extends ImageViewTouchBase
 	{
 		super.postTranslate(deltaX, deltaY);
 
-		if (mHiglightView != null)
+		for (HighlightView hv : mRegions)
+		{
+			hv.mMatrix.postTranslate(deltaX, deltaY);
+			hv.invalidate();
+		}
+		if (mQuadView != null)
+		{
+			mQuadView.mMatrix.postTranslate(deltaX, deltaY);
+			mQuadView.invalidate();
+		}
+	}
+
+	private void updateHighlightMatrix()
+	{
+		for (HighlightView hv : mRegions)
+		{
+			hv.mMatrix.set(getCropMatrix());
+			hv.invalidate();
+		}
+		if (mQuadView != null)
 		{
-			mHiglightView.mMatrix.postTranslate(deltaX, deltaY);
-			mHiglightView.invalidate();
+			mQuadView.mMatrix.set(getCropMatrix());
+			mQuadView.invalidate();
 		}
 	}
 
@@ -156,17 +240,27 @@ class CropImageView extends ImageViewTouchBase
 			return false;
 		}
 
+		if (mQuadView != null)
+		{
+			return onQuadTouchEvent(event);
+		}
+
 		mScaleGestureDetector.onTouchEvent(event);
 
 		switch (event.getAction())
 		{
 			case MotionEvent.ACTION_DOWN:
-				int edge = mHiglightView.getHit(event.getX(), event.getY());
+				removeCallbacks(mIdleRunnable);
+				if (mListener != null)
+				{
+					mListener.onCropTouched();
+				}
+				mMotionEdge = HighlightView.GROW_NONE;
+				int edge = hitRegion(event.getX(), event.getY());
 				if (edge != HighlightView.GROW_NONE)
 				{
 					mMotionEdge = edge;
-					mLastX = event.getX();
-					mLastY = event.getY();
+					startMotion(event);
 					mHiglightView.setMode(
 						(edge == HighlightView.MOVE)
 							? HighlightView.ModifyMode.Move
@@ -175,52 +269,229 @@ class CropImageView extends ImageViewTouchBase
 				}
 				break;
 			case MotionEvent.ACTION_UP:
+				// A touch that hit nothing doesn't move the crop.
+				if (mMotionEdge != HighlightView.GROW_NONE)
+				{
+					finishMotion(event);
+					mMotionEdge = HighlightView.GROW_NONE;
+				}
+				postDelayed(mIdleRunnable, IDLE_DELAY_MS);
 				centerBasedOnHighlightView(mHiglightView);
 				mHiglightView.setMode(
 					HighlightView.ModifyMode.None);
 				break;
 			case MotionEvent.ACTION_MOVE:
-				mHiglightView.handleMotion(mMotionEdge,
-					event.getX() - mLastX,
-					event.getY() - mLastY);
-				mLastX = event.getX();
-				mLastY = event.getY();
-
-				// This section of code is optional. It has some user
-				// benefit in that moving the crop rectangle against
-				// the edge of the screen causes scrolling but it means
-				// that the crop rectangle is no longer fixed under
-				// the user's finger.
-				ensureVisible(mHiglightView);
+				if (mMotionEdge != HighlightView.GROW_NONE)
+				{
+					addMotion(event);
+				}
 				break;
 		}
 
+		if (event.getAction() == MotionEvent.ACTION_UP)
+		{
+			center(true, true);
+		}
+
+		return true;
+	}
+
+	private void startMotion(MotionEvent event)
+	{
+		mMotionFrame.cancel();
+		mLastX = mTouchX = event.getX();
+		mLastY = mTouchY = event.getY();
+		if (mPredictor != null)
+		{
+			mPredictor.reset();
+			mPredictor.add(mTouchX, mTouchY, event.getEventTime());
+		}
+	}
+
+	// Records the move, including the samples batched into it since the last one, and
+	// leaves applying it to the next frame.
+	private void addMotion(MotionEvent event)
+	{
+		if (mPredictor != null)
+		{
+			for (int i = 0; i < event.getHistorySize(); i++)
+			{
+				mPredictor.add(event.getHistoricalX(i), event.getHistoricalY(i),
+					event.getHistoricalEventTime(i));
+			}
+			mPredictor.add(event.getX(), event.getY(), event.getEventTime());
+		}
+		mTouchX = event.getX();
+		mTouchY = event.getY();
+		mMotionFrame.schedule();
+	}
+
+	// Lands the crop exactly under the finger, undoing any prediction.
+	private void finishMotion(MotionEvent event)
+	{
+		mMotionFrame.cancel();
+		mTouchX = event.getX();
+		mTouchY = event.getY();
+		applyMotion(mTouchX, mTouchY);
+	}
+
+	private void applyMotion(float x, float y)
+	{
+		if (x == mLastX && y == mLastY)
+		{
+			return;
+		}
+		if (mQuadView != null)
+		{
+			mQuadView.handleMotion(mQuadHit, x - mLastX, y - mLastY);
+			mLastX = x;
+			mLastY = y;
+			ensureVisible(mQuadView.getDrawBounds());
+		}
+		else if (mHiglightView != null)
+		{
+			mHiglightView.handleMotion(mMotionEdge, x - mLastX, y - mLastY);
+			updateRegionIndex();
+			mLastX = x;
+			mLastY = y;
+
+			// This section of code is optional. It has some user
+			// benefit in that moving the crop rectangle against
+			// the edge of the screen causes scrolling but it means
+			// that the crop rectangle is no longer fixed under
+			// the user's finger.
+			ensureVisible(mHiglightView);
+		}
+
+		// if we're not zoomed then there's no point in even allowing
+		// the user to move the image around.  This call to center puts
+		// it back to the normalized location (with false meaning don't
+		// animate).
+		if (getScale() == 1F)
+		{
+			center(true, true);
+		}
+
+		if (mListener != null)
+		{
+			mListener.onCropChanged();
+		}
+	}
+
+	// The perspective quad is changed by dragging one corner at a time or the whole quad.
+	private boolean onQuadTouchEvent(MotionEvent event)
+	{
 		switch (event.getAction())
 		{
+			case MotionEvent.ACTION_DOWN:
+				if (mListener != null)
+				{
+					mListener.onCropTouched();
+				}
+				mQuadHit = mQuadView.getHit(event.getX(), event.getY());
+				mQuadView.setActive(mQuadHit);
+				startMotion(event);
+				break;
 			case MotionEvent.ACTION_UP:
+				finishMotion(event);
+				mQuadHit = QuadHighlightView.NONE;
+				mQuadView.setActive(mQuadHit);
 				center(true, true);
 				break;
-
 			case MotionEvent.ACTION_MOVE:
-				// if we're not zoomed then there's no point in even allowing
-				// the user to move the image around.  This call to center puts
-				// it back to the normalized location (with false meaning don't
-				// animate).
-				if (getScale() == 1F)
-				{
-					center(true, true);
-				}
+				addMotion(event);
 				break;
 		}
-
 		return true;
 	}
 
+	// Finds the region under (x, y) in screen space, makes it the one being changed and returns
+	// which of its edges were hit. Edges win over the inside of another region so that small
+	// regions within bigger ones can still be resized.
+	private int hitRegion(float x, float y)
+	{
+		if (mRegions.size() == 1)
+		{
+			return mHiglightView.getHit(x, y);
+		}
+
+		getCropMatrix().invert(mInverse);
+		mPoint[0] = x;
+		mPoint[1] = y;
+		mInverse.mapPoints(mPoint);
+		// The hit slop is in screen space.
+		CropGeometry geometry = mHiglightView.mGeometry;
+		float slop = geometry.getHitSlop() * geometry.getWidth()
+			/ Math.max(1, geometry.getDrawRight() - geometry.getDrawLeft());
+
+		int found = mRegionIndex.query(mPoint[0], mPoint[1], slop, mRegionHits);
+		if (found > mRegionHits.length)
+		{
+			mRegionHits = new int[found];
+			mRegionIndex.query(mPoint[0], mPoint[1], slop, mRegionHits);
+		}
+		HighlightView hit = null;
+		int edge = HighlightView.GROW_NONE;
+		for (int i = 0; i < found; i++)
+		{
+			HighlightView hv = mRegions.get(mRegionHits[i]);
+			int e = hv.getHit(x, y);
+			if (e != HighlightView.GROW_NONE && e != HighlightView.MOVE)
+			{
+				hit = hv;
+				edge = e;
+				break;
+			}
+			if (e == HighlightView.MOVE && hit == null)
+			{
+				hit = hv;
+				edge = e;
+			}
+		}
+		if (hit != null && hit != mHiglightView)
+		{
+			mHiglightView.setFocus(false);
+			mHiglightView.invalidateView();
+			mHiglightView = hit;
+			mHiglightView.setFocus(true);
+			mHiglightView.invalidateView();
+		}
+		return edge;
+	}
+
+	private void updateRegionIndex()
+	{
+		if (mRegions.size() > 1)
+		{
+			CropGeometry g = mHiglightView.mGeometry;
+			mRegionIndex.update(mRegions.indexOf(mHiglightView),
+				g.getLeft(), g.getTop(), g.getRight(), g.getBottom());
+		}
+	}
+
+	private void rebuildRegionIndex()
+	{
+		float[] bounds = new float[4 * mRegions.size()];
+		for (int i = 0; i < mRegions.size(); i++)
+		{
+			CropGeometry g = mRegions.get(i).mGeometry;
+			bounds[4 * i] = g.getLeft();
+			bounds[4 * i + 1] = g.getTop();
+			bounds[4 * i + 2] = g.getRight();
+			bounds[4 * i + 3] = g.getBottom();
+		}
+		mRegionIndex.build(bounds, mRegions.size());
+		mRegionHits = new int[mRegions.size()];
+	}
+
 	// Pan the displayed image to make sure the cropping rectangle is visible.
 	private void ensureVisible(HighlightView hv)
 	{
-		Rect r = hv.mDrawRect;
+		ensureVisible(hv.mDrawRect);
+	}
 
+	private void ensureVisible(Rect r)
+	{
 		int panDeltaX1 = Math.max(0, mLeft - r.left);
 		int panDeltaX2 = Math.min(0, mRight - r.right);
 
@@ -256,9 +527,10 @@ class CropImageView extends ImageViewTouchBase
 		zoom = Math.max(1F, zoom);
 		if ((Math.abs(zoom - getScale()) / zoom) > .1)
 		{
-			float[] coordinates = new float[]{hv.mCropRect.centerX(),
-				hv.mCropRect.centerY()};
-			getImageMatrix().mapPoints(coordinates);
+			CropGeometry geometry = hv.mGeometry;
+			float[] coordinates = new float[]{(geometry.getLeft() + geometry.getRight()) / 2F,
+				(geometry.getTop() + geometry.getBottom()) / 2F};
+			getCropMatrix().mapPoints(coordinates);
 			zoomTo(zoom, coordinates[0], coordinates[1], 300F);
 		}
 
@@ -269,18 +541,107 @@ class CropImageView extends ImageViewTouchBase
 	protected void onDraw(@NonNull Canvas canvas)
 	{
 		super.onDraw(canvas);
-		if (mHiglightView != null)
+		if (mRegions.size() > 1)
+		{
+			drawDim(canvas);
+		}
+		for (HighlightView hv : mRegions)
+		{
+			hv.draw(canvas);
+		}
+		if (mQuadView != null)
 		{
-			mHiglightView.draw(canvas);
+			mQuadView.draw(canvas);
 		}
 	}
 
+	// Dims the image around all of the regions.
+	private void drawDim(Canvas canvas)
+	{
+		canvas.save();
+		for (HighlightView hv : mRegions)
+		{
+			if (hv.mHidden)
+			{
+				continue;
+			}
+			Rect r = hv.mDrawRect;
+			if (hv.isCircle())
+			{
+				mDimPath.reset();
+				mDimPath.addCircle(r.exactCenterX(), r.exactCenterY(), r.width() / 2F, Path.Direction.CW);
+				canvas.clipPath(mDimPath, Region.Op.DIFFERENCE);
+			}
+			else
+			{
+				canvas.clipRect(r, Region.Op.DIFFERENCE);
+			}
+		}
+		canvas.drawPaint(mDimPaint);
+		canvas.restore();
+	}
+
 	public void setHighlightView(HighlightView hv)
 	{
 		mHiglightView = hv;
+		mRegions.clear();
+		if (hv != null)
+		{
+			mRegions.add(hv);
+		}
+		rebuildRegionIndex();
+		invalidate();
+		removeCallbacks(mIdleRunnable);
+		postDelayed(mIdleRunnable, IDLE_DELAY_MS);
+	}
+
+	// Adds another crop region next to the one set with setHighlightView.
+	public void addRegion(HighlightView hv)
+	{
+		mRegions.add(hv);
+		for (HighlightView region : mRegions)
+		{
+			region.mDimOutside = false;
+		}
+		rebuildRegionIndex();
 		invalidate();
 	}
 
+	public List<HighlightView> getRegions()
+	{
+		return mRegions;
+	}
+
+	public void setQuadView(QuadHighlightView qv)
+	{
+		mQuadView = qv;
+		invalidate();
+	}
+
+	public QuadHighlightView getQuadView()
+	{
+		return mQuadView;
+	}
+
+	// Draws the crop slightly ahead of the finger, extrapolated from its recent movement.
+	public void setTouchPrediction(boolean touchPrediction)
+	{
+		mPredictor = touchPrediction ? new TouchPredictor() : null;
+	}
+
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		removeCallbacks(mIdleRunnable);
+		mMotionFrame.cancel();
+	}
+
 	public HighlightView getHiglightView()
 	{
 		return mHiglightView;
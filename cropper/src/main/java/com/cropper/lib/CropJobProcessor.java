@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs the jobs of a {@link CropJobQueue} through the same pipeline as the crop screen.
+ */
+final class CropJobProcessor implements CropJobQueue.Processor
+{
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final ContentResolver mContentResolver;
+
+	CropJobProcessor(ContentResolver contentResolver)
+	{
+		mContentResolver = contentResolver;
+	}
+
+	public void process(CropJournal.Job job) throws IOException
+	{
+		Uri source = Uri.parse(job.source);
+		CropOptions options = CropOptions.decode(job.options);
+		Rect region = new Rect(job.left, job.top, job.right, job.bottom);
+
+		// Only the crop is decoded, subsampled as far as the output size allows.
+		Bitmap crop = ImageLoader.decodeRegion(mContentResolver, source, region,
+			getSampleSize(region, options));
+		if (crop == null)
+		{
+			throw new IOException("Cannot decode " + source);
+		}
+		Bitmap output = CropPipeline.crop(crop, new Rect(0, 0, crop.getWidth(), crop.getHeight()), 0F,
+			options);
+		if (output == null)
+		{
+			throw new IOException("Crop interrupted");
+		}
+		write(output, Uri.parse(job.destination), options);
+	}
+
+	// Files are written next to the destination and renamed, so a crash never leaves half of one.
+	private void write(Bitmap output, Uri destination, CropOptions options) throws IOException
+	{
+		if (ContentResolver.SCHEME_FILE.equals(destination.getScheme()))
+		{
+			File file = new File(destination.getPath());
+			File temp = new File(file.getPath() + TEMP_SUFFIX);
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				options.newEncoder().encode(output, out);
+			}
+			finally
+			{
+				Util.closeSilently(out);
+			}
+			if (!temp.renameTo(file))
+			{
+				temp.delete();
+				throw new IOException("Cannot write " + file);
+			}
+			return;
+		}
+
+		OutputStream out = mContentResolver.openOutputStream(destination);
+		if (out == null)
+		{
+			throw new IOException("Cannot open " + destination);
+		}
+		try
+		{
+			options.newEncoder().encode(output, out);
+		}
+		finally
+		{
+			Util.closeSilently(out);
+		}
+	}
+
+	static int getSampleSize(Rect region, CropOptions options)
+	{
+		if (!options.scale || options.outputX <= 0 || options.outputY <= 0)
+		{
+			return 1;
+		}
+		int sampleSize = 1;
+		while (region.width() / (sampleSize * 2) >= options.outputX
+			&& region.height() / (sampleSize * 2) >= options.outputY)
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+}
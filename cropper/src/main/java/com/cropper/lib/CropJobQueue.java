@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of crops that runs without the crop screen and survives the death of the process, for
+ * batch work such as re-cropping every avatar to a new aspect ratio. Get one with
+ * {@link Cropper#jobQueue}, add the jobs and {@link #start()} it. Jobs are written to a journal
+ * before they are run, so opening the same journal again after a crash picks up the jobs that
+ * didn't finish and skips the ones that did. Adding a job that is already in the journal
+ * doesn't run it twice.
+ */
+public final class CropJobQueue
+{
+	// Times a job is tried, over all runs of the queue, before it is given up on.
+	static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Gets told about the progress of the queue, on the thread of the job that just finished.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param completed Jobs that have written their output.
+		 * @param failed    Jobs that were given up on.
+		 * @param total     All jobs in the journal.
+		 */
+		void onProgress(int completed, int failed, int total);
+	}
+
+	// Runs a single job, throws if it couldn't write the output.
+	interface Processor
+	{
+		void process(CropJournal.Job job) throws Exception;
+	}
+
+	private final CropJournal mJournal;
+	private final Executor mExecutor;
+	private final int mMaxConcurrent;
+	private final Processor mProcessor;
+	private final Queue<CropJournal.Job> mPending = new LinkedList<CropJournal.Job>();
+	// Jobs by their record, to find jobs that are added again.
+	private final Map<String, CropJournal.Job> mJobs = new HashMap<String, CropJournal.Job>();
+	private volatile Listener mListener;
+	private boolean mStarted;
+	private boolean mClosed;
+	private int mRunning;
+	private int mCompleted;
+	private int mFailed;
+
+	CropJobQueue(CropJournal journal, Executor executor, int maxConcurrent, Processor processor)
+	{
+		mJournal = journal;
+		mExecutor = executor;
+		mMaxConcurrent = Math.max(1, maxConcurrent);
+		mProcessor = processor;
+		for (CropJournal.Job job : journal.getJobs())
+		{
+			mJobs.put(job.describe(), job);
+			settleOrQueue(job);
+		}
+	}
+
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * Adds a crop of the source to the queue. The output is framed the way the crop screen
+	 * does it with {@link Cropper.Builder#outputSize}.
+	 *
+	 * @param rect Crop rectangle in pixels of the full resolution source.
+	 */
+	public void add(Uri source, Rect rect, Uri destination, int outputX, int outputY,
+	                Bitmap.CompressFormat format) throws IOException
+	{
+		CropOptions options = new CropOptions(outputX, outputY, true, true, false, false, format, 0,
+			PngEncoder.DEFAULT_COMPRESSION_LEVEL);
+		add(source.toString(), rect.left, rect.top, rect.right, rect.bottom, options.encode(),
+			destination.toString());
+	}
+
+	synchronized CropJournal.Job add(String source, int left, int top, int right, int bottom,
+	                                 String options, String destination) throws IOException
+	{
+		if (mClosed)
+		{
+			throw new IllegalStateException("Queue is closed");
+		}
+		String description = new CropJournal.Job(-1, source, left, top, right, bottom, options,
+			destination).describe();
+		CropJournal.Job job = mJobs.get(description);
+		if (job != null)
+		{
+			return job;
+		}
+
+		job = mJournal.add(source, left, top, right, bottom, options, destination);
+		mJobs.put(description, job);
+		settleOrQueue(job);
+		schedule();
+		return job;
+	}
+
+	// Starts running the jobs that haven't finished yet.
+	public synchronized void start()
+	{
+		mStarted = true;
+		schedule();
+	}
+
+	// Stops starting new jobs, the running ones still finish. Their progress is kept in the journal.
+	public synchronized void close()
+	{
+		mClosed = true;
+		mPending.clear();
+		if (mRunning == 0)
+		{
+			mJournal.close();
+		}
+	}
+
+	// Removes all jobs from the journal once the queue has nothing left to do.
+	public synchronized void clear() throws IOException
+	{
+		if (mRunning > 0 || !mPending.isEmpty())
+		{
+			throw new IllegalStateException("Queue is busy");
+		}
+		mJournal.clear();
+		mJobs.clear();
+		mCompleted = 0;
+		mFailed = 0;
+	}
+
+	public synchronized boolean isIdle()
+	{
+		return mRunning == 0 && mPending.isEmpty();
+	}
+
+	public synchronized int getCompleted()
+	{
+		return mCompleted;
+	}
+
+	public synchronized int getFailed()
+	{
+		return mFailed;
+	}
+
+	public int getTotal()
+	{
+		return mJournal.getJobs().size();
+	}
+
+	private void settleOrQueue(CropJournal.Job job)
+	{
+		if (job.done)
+		{
+			mCompleted++;
+		}
+		else if (job.failures >= MAX_ATTEMPTS)
+		{
+			mFailed++;
+		}
+		else
+		{
+			mPending.add(job);
+		}
+	}
+
+	private void schedule()
+	{
+		while (mStarted && !mClosed && mRunning < mMaxConcurrent && !mPending.isEmpty())
+		{
+			final CropJournal.Job job = mPending.poll();
+			mRunning++;
+			mExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					runJob(job);
+				}
+			});
+		}
+	}
+
+	private void runJob(CropJournal.Job job)
+	{
+		boolean succeeded = false;
+		try
+		{
+			mProcessor.process(job);
+			succeeded = true;
+		}
+		catch (Exception e)
+		{
+			// Counted as a failure below.
+		}
+		catch (OutOfMemoryError e)
+		{
+			// Counted as a failure below.
+		}
+		finally
+		{
+			// Other errors still free the slot and are recorded before they propagate.
+			finished(job, succeeded);
+		}
+	}
+
+	private void finished(CropJournal.Job job, boolean succeeded)
+	{
+		int completed;
+		int failed;
+		int total;
+		synchronized (this)
+		{
+			mRunning--;
+			try
+			{
+				if (succeeded)
+				{
+					mJournal.markDone(job);
+				}
+				else
+				{
+					mJournal.markFailed(job);
+				}
+			}
+			catch (IOException e)
+			{
+				// Without the record the job runs again next time, which gives the same output.
+				if (succeeded)
+				{
+					job.done = true;
+				}
+				else
+				{
+					job.failures++;
+				}
+			}
+			if (!mClosed)
+			{
+				settleOrQueue(job);
+			}
+			else if (mRunning == 0)
+			{
+				mJournal.close();
+			}
+			schedule();
+			completed = mCompleted;
+			failed = mFailed;
+			total = mJournal.getJobs().size();
+		}
+
+		Listener listener = mListener;
+		if (listener != null)
+		{
+			listener.onProgress(completed, failed, total);
+		}
+	}
+}
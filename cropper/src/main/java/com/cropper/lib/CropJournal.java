@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only file of crop jobs and their outcomes, which outlives the process that wrote it.
+ * Each line is one record: a job is added with all it needs to be run again, and marked done
+ * or failed once it ran. A line torn by a crash is dropped when the journal is opened.
+ */
+final class CropJournal
+{
+	private static final String ADD = "add";
+	private static final String DONE = "done";
+	private static final String FAIL = "fail";
+	private static final String CHARSET = "UTF-8";
+
+	// A crop to run, everything in it is as it was given to add().
+	static final class Job
+	{
+		final int id;
+		final String source;
+		final int left;
+		final int top;
+		final int right;
+		final int bottom;
+		final String options;
+		final String destination;
+
+		boolean done;
+		int failures;
+
+		Job(int id, String source, int left, int top, int right, int bottom, String options,
+		    String destination)
+		{
+			this.id = id;
+			this.source = source;
+			this.left = left;
+			this.top = top;
+			this.right = right;
+			this.bottom = bottom;
+			this.options = options;
+			this.destination = destination;
+		}
+
+		// The record without the id, equal for jobs that produce the same output.
+		String describe()
+		{
+			return escape(source) + '\t' + left + '\t' + top + '\t' + right + '\t' + bottom + '\t'
+				+ escape(options) + '\t' + escape(destination);
+		}
+	}
+
+	private final File mFile;
+	private final List<Job> mJobs = new ArrayList<Job>();
+	private RandomAccessFile mOut;
+
+	CropJournal(File file) throws IOException
+	{
+		mFile = file;
+		long valid = file.exists() ? replay(readFully(file)) : 0;
+		mOut = new RandomAccessFile(file, "rw");
+		// Cut off a record that was only partly written.
+		mOut.setLength(valid);
+		mOut.seek(valid);
+	}
+
+	// All jobs in the order they were added, with their state as of the last record.
+	synchronized List<Job> getJobs()
+	{
+		return Collections.unmodifiableList(new ArrayList<Job>(mJobs));
+	}
+
+	synchronized Job add(String source, int left, int top, int right, int bottom, String options,
+	                     String destination) throws IOException
+	{
+		Job job = new Job(mJobs.size(), source, left, top, right, bottom, options, destination);
+		append(ADD + '\t' + job.id + '\t' + job.describe());
+		mJobs.add(job);
+		return job;
+	}
+
+	synchronized void markDone(Job job) throws IOException
+	{
+		append(DONE + '\t' + job.id);
+		job.done = true;
+	}
+
+	synchronized void markFailed(Job job) throws IOException
+	{
+		append(FAIL + '\t' + job.id);
+		job.failures++;
+	}
+
+	// Forgets all jobs.
+	synchronized void clear() throws IOException
+	{
+		mOut.setLength(0);
+		mOut.seek(0);
+		mOut.getFD().sync();
+		mJobs.clear();
+	}
+
+	synchronized void close()
+	{
+		Util.closeSilently(mOut);
+	}
+
+	File getFile()
+	{
+		return mFile;
+	}
+
+	// Writes the record and waits for it to reach the disk.
+	private void append(String record) throws IOException
+	{
+		mOut.write((record + '\n').getBytes(CHARSET));
+		mOut.getFD().sync();
+	}
+
+	// Rebuilds the jobs from the records and returns the length of the complete ones.
+	private long replay(byte[] data) throws UnsupportedEncodingException
+	{
+		int start = 0;
+		for (int i = 0; i < data.length; i++)
+		{
+			if (data[i] != '\n')
+			{
+				continue;
+			}
+			if (!apply(new String(data, start, i - start, CHARSET).split("\t", -1)))
+			{
+				break;
+			}
+			start = i + 1;
+		}
+		return start;
+	}
+
+	private boolean apply(String[] fields)
+	{
+		try
+		{
+			if (ADD.equals(fields[0]) && fields.length == 9 && Integer.parseInt(fields[1]) == mJobs.size())
+			{
+				mJobs.add(new Job(mJobs.size(), unescape(fields[2]), Integer.parseInt(fields[3]),
+					Integer.parseInt(fields[4]), Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+					unescape(fields[7]), unescape(fields[8])));
+				return true;
+			}
+			if (DONE.equals(fields[0]) && fields.length == 2)
+			{
+				mJobs.get(Integer.parseInt(fields[1])).done = true;
+				return true;
+			}
+			if (FAIL.equals(fields[0]) && fields.length == 2)
+			{
+				mJobs.get(Integer.parseInt(fields[1])).failures++;
+				return true;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// Treated as garbage below
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// Treated as garbage below
+		}
+		return false;
+	}
+
+	private static byte[] readFully(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+	}
+
+	static String escape(String s)
+	{
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String unescape(String s)
+	{
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length())
+			{
+				c = s.charAt(++i);
+				sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c);
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+
+/**
+ * Options that decide what the output of a crop looks like, see {@link CropPipeline}. They
+ * travel in a Bundle to where the crop is made.
+ */
+final class CropOptions
+{
+	final int outputX;
+	final int outputY;
+	final boolean scale;
+	final boolean scaleUp;
+	final boolean circle;
+	final boolean blurBackground;
+	final Bitmap.CompressFormat format;
+	final long maxFileSize;
+	final int compressionLevel;
+
+	CropOptions(int outputX, int outputY, boolean scale, boolean scaleUp, boolean circle,
+	            boolean blurBackground, Bitmap.CompressFormat format, long maxFileSize,
+	            int compressionLevel)
+	{
+		this.outputX = outputX;
+		this.outputY = outputY;
+		this.scale = scale;
+		this.scaleUp = scaleUp;
+		this.circle = circle;
+		this.blurBackground = blurBackground;
+		this.format = format;
+		this.maxFileSize = maxFileSize;
+		this.compressionLevel = compressionLevel;
+	}
+
+	OutputEncoder newEncoder()
+	{
+		return newEncoder(null);
+	}
+
+	// Leaves room in the maximum file size for the metadata that is inserted into the output.
+	OutputEncoder newEncoder(JpegMetadata metadata)
+	{
+		long maxBytes = maxFileSize;
+		if (maxBytes > 0 && metadata != null)
+		{
+			maxBytes = Math.max(1, maxBytes - metadata.size());
+		}
+		return new OutputEncoder(format, OutputEncoder.DEFAULT_QUALITY, maxBytes, compressionLevel);
+	}
+
+	Bundle toBundle()
+	{
+		Bundle b = new Bundle();
+		b.putInt(Cropper.OUTPUT_X, outputX);
+		b.putInt(Cropper.OUTPUT_Y, outputY);
+		b.putBoolean(Cropper.SCALE, scale);
+		b.putBoolean(Cropper.SCALE_UP_IF_NEEDED, scaleUp);
+		b.putBoolean(Cropper.CIRCLE_CROP, circle);
+		b.putBoolean(Cropper.BLUR_BACKGROUND, blurBackground);
+		b.putString(Cropper.OUTPUT_FORMAT, format.name());
+		b.putLong(Cropper.MAX_FILE_SIZE, maxFileSize);
+		b.putInt(Cropper.PNG_COMPRESSION_LEVEL, compressionLevel);
+		return b;
+	}
+
+	// Flat form of the options for the job journal, see CropJobQueue.
+	String encode()
+	{
+		return outputX + "," + outputY + "," + scale + "," + scaleUp + "," + circle + ","
+			+ blurBackground + "," + format.name() + "," + maxFileSize + "," + compressionLevel;
+	}
+
+	static CropOptions decode(String s)
+	{
+		String[] f = s.split(",");
+		// Journals written before the compression level was added have one field less.
+		if (f.length != 8 && f.length != 9)
+		{
+			throw new IllegalArgumentException("Bad crop options: " + s);
+		}
+		return new CropOptions(Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+			Boolean.parseBoolean(f[2]), Boolean.parseBoolean(f[3]), Boolean.parseBoolean(f[4]),
+			Boolean.parseBoolean(f[5]), Bitmap.CompressFormat.valueOf(f[6]), Long.parseLong(f[7]),
+			f.length > 8 ? Integer.parseInt(f[8]) : PngEncoder.DEFAULT_COMPRESSION_LEVEL);
+	}
+
+	static CropOptions fromBundle(Bundle b)
+	{
+		return new CropOptions(b.getInt(Cropper.OUTPUT_X), b.getInt(Cropper.OUTPUT_Y),
+			b.getBoolean(Cropper.SCALE), b.getBoolean(Cropper.SCALE_UP_IF_NEEDED),
+			b.getBoolean(Cropper.CIRCLE_CROP), b.getBoolean(Cropper.BLUR_BACKGROUND),
+			Bitmap.CompressFormat.valueOf(b.getString(Cropper.OUTPUT_FORMAT)),
+			b.getLong(Cropper.MAX_FILE_SIZE),
+			b.getInt(Cropper.PNG_COMPRESSION_LEVEL, PngEncoder.DEFAULT_COMPRESSION_LEVEL));
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns a crop rectangle of a decoded image into the output bitmap. Shared by the crop screen
+ * and the work done outside of it.
+ */
+final class CropPipeline
+{
+	private static final String TAG = "CropPipeline";
+	private static final int EXIF_THUMBNAIL_SIZE = 160;
+	private static final int EXIF_THUMBNAIL_QUALITY = 75;
+	// Metadata may take up to this part of the maximum file size, the rest is left to the image.
+	private static final int METADATA_SHARE = 4;
+
+	private CropPipeline()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Crops the rectangle out of the source and frames it as the options ask for.
+	 *
+	 * @param straighten Angle the source is rotated by around its center before cropping.
+	 * @return The output or {@code null} if interrupted.
+	 */
+	public static Bitmap crop(Bitmap source, Rect r, float straighten, CropOptions options)
+	{
+		int width = r.width();
+		int height = r.height();
+
+		Log.i(TAG, "Rect width/height " + width + "/" + height);
+
+		if (options.outputX != 0 && options.outputY != 0 && options.scale)
+		{
+			/* Crop, rotate and scale the image to the required dimensions in one pass */
+			Bitmap scaledImage = Util.transform(source, r, straighten, options.outputX, options.outputY,
+				options.scaleUp, options.blurBackground);
+			if (scaledImage != null && options.circle)
+			{
+				float scale = Util.getTransformScale(width, height, options.outputX, options.outputY, options.scaleUp);
+				Util.clearOutsideCircle(scaledImage, options.outputX / 2F, options.outputY / 2F, width / 2F * scale);
+			}
+			return scaledImage;
+		}
+
+		if (straighten != 0F)
+		{
+			// Unscaled, so the rotation is the only resampling. Continue with the rotated crop
+			// region as the source.
+			source = Util.straighten(source, r, straighten);
+			r = new Rect(0, 0, width, height);
+		}
+
+		// If we are circle cropping, we want alpha channel, which is the
+		// third param here.
+		Bitmap croppedImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		if (croppedImage == null)
+		{
+			return null;
+		}
+
+		Canvas canvas = new Canvas(croppedImage);
+		Rect dstRect = new Rect(0, 0, width, height);
+		canvas.drawBitmap(source, r, dstRect, null);
+
+		if (options.circle)
+		{
+			Util.clearOutsideCircle(croppedImage, width / 2F, height / 2F, width / 2F);
+		}
+
+		/* If the output is required to a specific size then fill */
+		if (options.outputX != 0 && options.outputY != 0)
+		{
+			/* Don't scale the image crop it to the size requested.
+			 * Create an new image with the cropped image in the center and
+			 * the extra space filled.
+			 */
+
+			// Don't scale the image but instead fill it so it's the
+			// required dimension
+			Rect srcRect = new Rect(r);
+			dstRect = new Rect(0, 0, options.outputX, options.outputY);
+
+			int dx = (srcRect.width() - dstRect.width()) / 2;
+			int dy = (srcRect.height() - dstRect.height()) / 2;
+
+			Bitmap b;
+			if (options.blurBackground && (dx < 0 || dy < 0))
+			{
+				b = Util.createBackdrop(source, r, options.outputX, options.outputY);
+			}
+			else
+			{
+				b = Bitmap.createBitmap(options.outputX, options.outputY, Bitmap.Config.ARGB_8888);
+			}
+			canvas = new Canvas(b);
+
+			/* If the srcRect is too big, use the center part of it. */
+			srcRect.inset(Math.max(0, dx), Math.max(0, dy));
+
+			/* If the dstRect is too big, use the center part of it. */
+			dstRect.inset(Math.max(0, -dx), Math.max(0, -dy));
+
+			/* Draw the cropped bitmap in the center */
+			canvas.drawBitmap(source, srcRect, dstRect, null);
+
+			/* Set the cropped bitmap as the new bitmap */
+			croppedImage = b;
+		}
+
+		return croppedImage;
+	}
+
+	/**
+	 * Reads the metadata of a JPEG source and adapts it to the output.
+	 *
+	 * @param width Width of the output, or 0 to remove the dimension tags.
+	 * @param image The output, for the Exif thumbnail.
+	 * @return The metadata or {@code null} if there is none to keep.
+	 */
+	static JpegMetadata readMetadata(ContentResolver resolver, Uri source, int width, int height,
+	                                 Bitmap image, boolean keepGps) throws IOException
+	{
+		InputStream in = ImageLoader.open(resolver, source);
+		JpegMetadata metadata;
+		try
+		{
+			metadata = JpegMetadata.read(in);
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+		if (metadata == null || metadata.isEmpty())
+		{
+			return null;
+		}
+		metadata.rewriteExif(width, height, keepGps, createExifThumbnail(image));
+		return metadata;
+	}
+
+	// Metadata for an encoded JPEG output, trimmed to its share of the maximum file size.
+	static JpegMetadata readOutputMetadata(ContentResolver resolver, Uri source, Bitmap image,
+	                                       boolean keepGps, long maxFileSize) throws IOException
+	{
+		JpegMetadata metadata = readMetadata(resolver, source, image.getWidth(), image.getHeight(), image,
+			keepGps);
+		if (metadata != null && maxFileSize > 0
+			&& metadata.fit((int) Math.min(Integer.MAX_VALUE, maxFileSize / METADATA_SHARE)) == 0)
+		{
+			return null;
+		}
+		return metadata;
+	}
+
+	// Small JPEG of the output for the Exif thumbnail, which has to fit in the Exif segment.
+	private static byte[] createExifThumbnail(Bitmap image)
+	{
+		float scale = Math.min(1F, (float) EXIF_THUMBNAIL_SIZE / Math.max(image.getWidth(), image.getHeight()));
+		Bitmap thumbnail = Util.resize(image,
+			Math.max(1, Math.round(image.getWidth() * scale)),
+			Math.max(1, Math.round(image.getHeight() * scale)));
+		if (thumbnail == null)
+		{
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		thumbnail.compress(Bitmap.CompressFormat.JPEG, EXIF_THUMBNAIL_QUALITY, out);
+		thumbnail.recycle();
+		return out.toByteArray();
+	}
+}
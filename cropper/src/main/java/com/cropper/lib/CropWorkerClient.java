@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection of the crop screen to {@link CropWorkerService}. Bind it from the main thread and
+ * run jobs from a background thread, one at a time.
+ */
+final class CropWorkerClient implements ServiceConnection
+{
+	// How long to wait for the worker process to start.
+	private static final long CONNECT_TIMEOUT_MS = 10000;
+
+	private final Context mContext;
+	private final CountDownLatch mConnected = new CountDownLatch(1);
+	private volatile Messenger mService;
+	// The job in progress, counted down when it finishes or the worker dies.
+	private volatile CountDownLatch mPending;
+	private volatile boolean mSucceeded;
+
+	private final Handler mReplies = new Handler(Looper.getMainLooper())
+	{
+		@Override
+		public void handleMessage(Message msg)
+		{
+			finish(msg.what == CropWorkerService.MSG_DONE);
+		}
+	};
+
+	CropWorkerClient(Context context)
+	{
+		mContext = context;
+	}
+
+	void bind()
+	{
+		mContext.bindService(new Intent(mContext, CropWorkerService.class), this, Context.BIND_AUTO_CREATE);
+	}
+
+	void unbind()
+	{
+		mContext.unbindService(this);
+		finish(false);
+	}
+
+	public void onServiceConnected(ComponentName name, IBinder service)
+	{
+		mService = new Messenger(service);
+		mConnected.countDown();
+	}
+
+	public void onServiceDisconnected(ComponentName name)
+	{
+		// The worker process died, most likely of a large image.
+		mService = null;
+		finish(false);
+	}
+
+	/**
+	 * Runs the job in the worker and waits for it, see {@link CropWorkerService} for its keys.
+	 *
+	 * @return Whether the output was written.
+	 */
+	boolean crop(Bundle job) throws InterruptedException
+	{
+		if (!mConnected.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+		{
+			return false;
+		}
+		Messenger service = mService;
+		if (service == null)
+		{
+			return false;
+		}
+
+		CountDownLatch pending = new CountDownLatch(1);
+		mSucceeded = false;
+		mPending = pending;
+		Message msg = Message.obtain(null, CropWorkerService.MSG_CROP);
+		msg.setData(job);
+		msg.replyTo = new Messenger(mReplies);
+		try
+		{
+			service.send(msg);
+		}
+		catch (RemoteException e)
+		{
+			return false;
+		}
+		pending.await();
+		return mSucceeded;
+	}
+
+	private void finish(boolean succeeded)
+	{
+		CountDownLatch pending = mPending;
+		if (pending != null)
+		{
+			mSucceeded = succeeded;
+			mPending = null;
+			pending.countDown();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.*;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Does the pixel work of saving a crop in the library's own process, see
+ * {@link Cropper.Builder#isolatedProcess}. It decodes the source, crops, scales and encodes it,
+ * so a large image can't take the heap of the host app down with it. Jobs come in as
+ * {@link #MSG_CROP} messages. The output goes to a file descriptor opened by the host, and
+ * no pixels cross the process boundary.
+ */
+public class CropWorkerService extends Service
+{
+	private static final String TAG = "CropWorkerService";
+
+	static final int MSG_CROP = 1;
+	static final int MSG_DONE = 2;
+	static final int MSG_FAILED = 3;
+
+	static final String KEY_SOURCE = "source";
+	static final String KEY_SIZE = "size";
+	static final String KEY_ROTATION = "rotation";
+	static final String KEY_RECT = "rect";
+	static final String KEY_STRAIGHTEN = "straighten";
+	static final String KEY_OPTIONS = "options";
+	static final String KEY_OUTPUT = "output";
+	static final String KEY_KEEP_METADATA = "keepMetadata";
+	static final String KEY_KEEP_GPS = "keepGps";
+
+	private HandlerThread mThread;
+	private Messenger mMessenger;
+
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		Cropper.setUpRemoteFetcher(this);
+		mThread = new HandlerThread("cropper-worker", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mMessenger = new Messenger(new WorkHandler(mThread.getLooper()));
+	}
+
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return mMessenger.getBinder();
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		mThread.quit();
+		super.onDestroy();
+	}
+
+	private class WorkHandler extends Handler
+	{
+		WorkHandler(Looper looper)
+		{
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg)
+		{
+			if (msg.what != MSG_CROP)
+			{
+				return;
+			}
+			Message reply = Message.obtain(null, crop(msg.getData()) ? MSG_DONE : MSG_FAILED);
+			reply.arg1 = msg.arg1;
+			try
+			{
+				msg.replyTo.send(reply);
+			}
+			catch (RemoteException e)
+			{
+				// The crop screen is gone
+			}
+		}
+	}
+
+	// Makes the output the same way CropImageActivity does, starting from the same decode.
+	private boolean crop(Bundle job)
+	{
+		ParcelFileDescriptor fd = job.getParcelable(KEY_OUTPUT);
+		OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+		try
+		{
+			Uri source = Uri.parse(job.getString(KEY_SOURCE));
+			Bitmap bitmap = DecodeHandoff.decode(getContentResolver(), source, null, job.getInt(KEY_SIZE));
+			if (bitmap == null)
+			{
+				return false;
+			}
+			int rotation = job.getInt(KEY_ROTATION);
+			if (rotation != 0)
+			{
+				bitmap = Util.rotateImage(bitmap, rotation);
+			}
+
+			int[] rect = job.getIntArray(KEY_RECT);
+			CropOptions options = CropOptions.fromBundle(job.getBundle(KEY_OPTIONS));
+			Bitmap output = CropPipeline.crop(bitmap, new Rect(rect[0], rect[1], rect[2], rect[3]),
+				job.getFloat(KEY_STRAIGHTEN), options);
+			if (output == null)
+			{
+				return false;
+			}
+			JpegMetadata metadata = null;
+			if (job.getBoolean(KEY_KEEP_METADATA) && options.format == Bitmap.CompressFormat.JPEG)
+			{
+				metadata = CropPipeline.readOutputMetadata(getContentResolver(), source, output,
+					job.getBoolean(KEY_KEEP_GPS), options.maxFileSize);
+			}
+			options.newEncoder(metadata).encode(output, metadata != null ? metadata.inject(out) : out);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Cannot save image", e);
+		}
+		catch (OutOfMemoryError e)
+		{
+			// This is what the separate process is for
+			Log.e(TAG, "Out of memory while cropping", e);
+		}
+		finally
+		{
+			Util.closeSilently(out);
+		}
+		return false;
+	}
+}
@@ -19,8 +19,12 @@ package com.cropper.lib;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Image cropping library for Android.
  */
@@ -39,6 +43,21 @@ public final class Cropper
 	 * Name of the cropped bitmap file path string extra return after {@code crop}.
 	 */
 	public static final String SAVE_PATH = "save-path";
+	/**
+	 * Name of the preview token string extra returned after {@code crop}. Use {@code getPreview}
+	 * to resolve it.
+	 */
+	public static final String PREVIEW = "preview";
+	/**
+	 * Name of the string array extra returned after {@code crop} with the file paths of the
+	 * outputs added with {@code addOutput}, in the order they were added.
+	 */
+	public static final String SAVE_PATHS = "save-paths";
+	/**
+	 * Name of the string array extra returned after {@code crop} with the file paths of the
+	 * regions added with {@code addRegion}, in the order they were added.
+	 */
+	public static final String REGION_PATHS = "region-paths";
 
 	static final String IMAGE_PATH = "image-path";
 	static final String SCALE = "scale";
@@ -55,12 +74,55 @@ public final class Cropper
 	static final String CROP_AREA_VERTICAL_ICON_RES_ID = "verticalIcon";
 	static final String CROP_AREA_HORIZONTAL_ICON_RES_ID = "horizontalIcon";
 	static final String CROP_AREA_BORDER_SIZE_DIMEN_RES_ID = "borderSize";
+	static final String PREVIEW_SIZE = "previewSize";
+	static final String OUTPUT_FORMAT = "outputFormat";
+	static final String MAX_FILE_SIZE = "maxFileSize";
+	static final String PNG_COMPRESSION_LEVEL = "pngCompressionLevel";
+	static final String RESULT_CACHE_SIZE = "resultCacheSize";
+	static final String AUTO_STRAIGHTEN = "autoStraighten";
+	static final String PERSPECTIVE = "perspective";
+	static final String TOUCH_PREDICTION = "touchPrediction";
+	static final String LIVE_PREVIEW = "livePreview";
+	static final String BLUR_BACKGROUND = "blurBackground";
+	static final String LOSSLESS = "lossless";
+	static final String KEEP_METADATA = "keepMetadata";
+	static final String KEEP_GPS = "keepGps";
+	static final String OUTPUT_SIZES = "outputSizes";
+	static final String OUTPUT_FORMATS = "outputFormats";
+	static final String OUTPUT_PATHS = "outputPaths";
+	static final String REGION_URIS = "regionUris";
+	static final String ISOLATED_PROCESS = "isolatedProcess";
+	static final String KEEP_ANIMATION = "keepAnimation";
+
+	private static volatile BitmapDecoder sBitmapDecoder = new DefaultBitmapDecoder();
 
 	private Cropper()
 	{
 		// Hiding constructor
 	}
 
+	/**
+	 * Replace the decoder used for reading source images, for example to share an existing
+	 * decoding stack and bitmap pool.
+	 *
+	 * @param decoder Decoder to use or {@code null} to restore the default one.
+	 */
+	public static void setBitmapDecoder(BitmapDecoder decoder)
+	{
+		sBitmapDecoder = decoder != null ? decoder : new DefaultBitmapDecoder();
+	}
+
+	static BitmapDecoder getBitmapDecoder()
+	{
+		return sBitmapDecoder;
+	}
+
+	// Keeps downloads of http(s) sources in the app's cache directory.
+	static void setUpRemoteFetcher(Context context)
+	{
+		RemoteFetcher.setDirectory(new File(context.getCacheDir(), RemoteFetcher.DIRECTORY));
+	}
+
 	/**
 	 * Launch an activity to pick an image. The result is returned with request code {@code PICK}.
 	 *
@@ -73,18 +135,77 @@ public final class Cropper
 		activity.startActivityForResult(intent, PICK);
 	}
 
+	/**
+	 * Same as {@code prewarm(context, null)}, for when the image isn't known yet.
+	 */
+	public static void prewarm(Context context)
+	{
+		prewarm(context, null);
+	}
+
+	/**
+	 * Do the work of opening the crop screen that can be done ahead of time: load the classes,
+	 * resources and worker threads, probe the free storage and, if the source is known, read
+	 * its size. Call it from a background thread, e.g. right after {@code pick}, or from
+	 * {@code onActivityResult} before {@code crop}. It blocks while the work is done.
+	 *
+	 * @param context     Application or other context.
+	 * @param imageSource URI of the image that will be cropped or {@code null} if not known yet.
+	 */
+	public static void prewarm(Context context, Uri imageSource)
+	{
+		setUpRemoteFetcher(context);
+		Prewarm.run(context.getApplicationContext(), imageSource);
+	}
+
+	/**
+	 * Open a queue of crops that run in the background, outside of the crop screen. Jobs and
+	 * their progress are kept in the journal file, so opening the queue again with the same
+	 * file after the process died resumes the jobs that didn't finish.
+	 *
+	 * @param context       Application or other context.
+	 * @param journal       File that keeps the jobs, created if it doesn't exist.
+	 * @param maxConcurrent How many jobs may run at once, at most one per core.
+	 */
+	public static CropJobQueue jobQueue(Context context, File journal, int maxConcurrent) throws IOException
+	{
+		setUpRemoteFetcher(context);
+		return new CropJobQueue(new CropJournal(journal), Workers.encode(),
+			Math.min(maxConcurrent, Workers.parallelism()),
+			new CropJobProcessor(context.getApplicationContext().getContentResolver()));
+	}
+
 	/**
 	 * Launch an activity to pick an image. The result is returned with request code {@code PICK}.
 	 *
 	 * @param context     Application or other context.
-	 * @param imageSource URI of the image being cropped.
+	 * @param imageSource URI of the image being cropped. http(s) URIs are downloaded into the cache.
 	 * @param savePath    URI used for saving the cropped image.
 	 */
 	public static Builder crop(Context context, Uri imageSource, Uri savePath)
 	{
+		// Read the image's size while the options are being set, remote images start downloading.
+		setUpRemoteFetcher(context);
+		DecodeHandoff.probe(context.getContentResolver(), imageSource);
 		return new Builder(context, imageSource, savePath);
 	}
 
+	/**
+	 * Get the preview bitmap delivered with the result of {@code crop}. The preview is handed over
+	 * in memory and can be taken only once.
+	 *
+	 * @param data Intent received in {@code onActivityResult}.
+	 * @return Preview bitmap or {@code null} if none was requested or it was already taken.
+	 */
+	public static Bitmap getPreview(Intent data)
+	{
+		if (data == null)
+		{
+			return null;
+		}
+		return PreviewHandoff.take(data.getStringExtra(PREVIEW));
+	}
+
 	/**
 	 * An builder providing fluent API to specify additional configuration. Use {@code crop} to
 	 * get an instance of it.
@@ -114,18 +235,255 @@ public final class Cropper
 			return this;
 		}
 
+		/**
+		 * Format of the saved image, PNG by default.
+		 */
+		public Builder outputFormat(Bitmap.CompressFormat format)
+		{
+			this.intent.putExtra(OUTPUT_FORMAT, format.name());
+			return this;
+		}
+
+		/**
+		 * Limit the size of the saved file. The highest quality that fits is used, and if even the
+		 * lowest acceptable quality doesn't fit, the image is downscaled until it does.
+		 *
+		 * @param bytes Maximum file size in bytes.
+		 */
+		public Builder maxFileSize(long bytes)
+		{
+			this.intent.putExtra(MAX_FILE_SIZE, bytes);
+			return this;
+		}
+
+		/**
+		 * Deflate level of PNG output, from 0 (fastest, largest) to 9 (slowest, smallest). The
+		 * default is 6. Before KitKat PNGs are encoded by the platform, which ignores the level.
+		 */
+		public Builder pngCompressionLevel(int level)
+		{
+			this.intent.putExtra(PNG_COMPRESSION_LEVEL, Math.max(0, Math.min(9, level)));
+			return this;
+		}
+
+		/**
+		 * Cache encoded results on disk. Confirming the same crop of an unchanged image with the
+		 * same options again returns the cached file without decoding, cropping or encoding.
+		 *
+		 * @param maxBytes Maximum size of the cache in bytes.
+		 */
+		public Builder resultCache(long maxBytes)
+		{
+			this.intent.putExtra(RESULT_CACHE_SIZE, maxBytes);
+			return this;
+		}
+
+		/**
+		 * Detect a tilted horizon and level the image automatically. The crop area is kept inside
+		 * the rotated image.
+		 */
+		public Builder autoStraighten(boolean autoStraighten)
+		{
+			this.intent.putExtra(AUTO_STRAIGHTEN, autoStraighten);
+			return this;
+		}
+
+		/**
+		 * Crop a quadrilateral with four freely draggable corners instead of a rectangle and
+		 * rectify it, e.g. to correct the perspective of a photographed document. The output
+		 * size follows the average lengths of opposite edges before any scaling. Automatic
+		 * straightening is not applied in this mode.
+		 */
+		public Builder perspective(boolean perspective)
+		{
+			this.intent.putExtra(PERSPECTIVE, perspective);
+			return this;
+		}
+
+		/**
+		 * Draw the crop area slightly ahead of the finger while it is dragged, extrapolated
+		 * from the recent touch samples, to make it feel more attached to the finger. It lands
+		 * exactly under the finger when it is released.
+		 */
+		public Builder touchPrediction(boolean touchPrediction)
+		{
+			this.intent.putExtra(TOUCH_PREDICTION, touchPrediction);
+			return this;
+		}
+
+		/**
+		 * Show a small preview of the output while cropping, with the output size, scaling,
+		 * bars and circle mask applied. It is drawn from the image on screen once per frame
+		 * while the crop area changes, so it is cheap but not at full quality. Needs a view
+		 * with the id {@code cropper_preview} when a custom layout is used.
+		 */
+		public Builder livePreview(boolean livePreview)
+		{
+			this.intent.putExtra(LIVE_PREVIEW, livePreview);
+			return this;
+		}
+
+		/**
+		 * Save the crop in a separate {@code :cropper} process, so running out of memory on a
+		 * large image cancels the crop instead of crashing the app. The worker decodes the
+		 * source again by itself, only the crop parameters are passed to it. The output, its
+		 * metadata and the result cache are the same as without this option. Perspective,
+		 * lossless, animated GIF, extra outputs and regions are still saved in the app's process,
+		 * and there is no speculative save ahead of time.
+		 */
+		public Builder isolatedProcess(boolean isolatedProcess)
+		{
+			this.intent.putExtra(ISOLATED_PROCESS, isolatedProcess);
+			return this;
+		}
+
+		/**
+		 * Also write the crop scaled so its longer side is the given size, in addition to the
+		 * main output. All the outputs are made from a single crop, each from the previous
+		 * larger one, and get their paths in the {@link #SAVE_PATHS} result extra. Crops smaller
+		 * than the size aren't enlarged.
+		 *
+		 * @param size     Longer side of the output in pixels.
+		 * @param format   Format of the output.
+		 * @param savePath Where to write the output.
+		 */
+		public Builder addOutput(int size, Bitmap.CompressFormat format, Uri savePath)
+		{
+			int[] sizes = this.intent.getIntArrayExtra(OUTPUT_SIZES);
+			int count = sizes != null ? sizes.length : 0;
+			int[] newSizes = new int[count + 1];
+			String[] formats = new String[count + 1];
+			String[] paths = new String[count + 1];
+			if (count > 0)
+			{
+				System.arraycopy(sizes, 0, newSizes, 0, count);
+				System.arraycopy(this.intent.getStringArrayExtra(OUTPUT_FORMATS), 0, formats, 0, count);
+				System.arraycopy(this.intent.getStringArrayExtra(OUTPUT_PATHS), 0, paths, 0, count);
+			}
+			newSizes[count] = size;
+			formats[count] = format.name();
+			paths[count] = savePath.toString();
+			this.intent.putExtra(OUTPUT_SIZES, newSizes);
+			this.intent.putExtra(OUTPUT_FORMATS, formats);
+			this.intent.putExtra(OUTPUT_PATHS, paths);
+			return this;
+		}
+
+		/**
+		 * Add another crop region, e.g. to cut several photos out of one scan. The regions are
+		 * laid out in a grid at the start and each one is moved and resized on its own. They are
+		 * cropped, scaled and encoded like the main one and get their paths in the
+		 * {@link #REGION_PATHS} result extra. Not available with {@code perspective}.
+		 *
+		 * @param savePath Where to write the region.
+		 */
+		public Builder addRegion(Uri savePath)
+		{
+			String[] paths = this.intent.getStringArrayExtra(REGION_URIS);
+			int count = paths != null ? paths.length : 0;
+			String[] newPaths = new String[count + 1];
+			if (count > 0)
+			{
+				System.arraycopy(paths, 0, newPaths, 0, count);
+			}
+			newPaths[count] = savePath.toString();
+			this.intent.putExtra(REGION_URIS, newPaths);
+			return this;
+		}
+
+		/**
+		 * For JPEG sources, copy the crop at the full resolution of the source without decoding
+		 * and encoding it again, rotating it in the coefficient domain. There is no generation
+		 * loss and it is much cheaper for large photos. The crop is extended at its top left to
+		 * the JPEG block grid, up to 16 pixels, and may be trimmed by as much at the edges
+		 * that end up at the top or left after rotation. Only used when the output format is
+		 * JPEG, scaling is off and there is no maximum file size. Falls back to the regular path
+		 * otherwise, and for other images, progressive JPEGs, circle crops and straightened
+		 * images.
+		 */
+		public Builder lossless(boolean lossless)
+		{
+			this.intent.putExtra(LOSSLESS, lossless);
+			return this;
+		}
+
+		/**
+		 * Copy the Exif and ICC color profile of a JPEG source to a JPEG output. The Exif is
+		 * adapted to the crop: the orientation is reset, the dimensions are updated and the
+		 * thumbnail is regenerated from the output. The location is removed unless
+		 * {@code keepGps} is set as well.
+		 */
+		public Builder keepMetadata(boolean keepMetadata)
+		{
+			this.intent.putExtra(KEEP_METADATA, keepMetadata);
+			return this;
+		}
+
+		/**
+		 * Keep the GPS location when copying the metadata, see {@code keepMetadata}.
+		 */
+		public Builder keepGps(boolean keepGps)
+		{
+			this.intent.putExtra(KEEP_GPS, keepGps);
+			return this;
+		}
+
+		/**
+		 * Crop every frame of an animated GIF and save the output as a GIF, whatever the output
+		 * format. Frames are scaled by picking the nearest pixel, which keeps their palettes.
+		 * Not used for rotated, straightened or circle crops. The maximum file size doesn't apply
+		 * to GIF output.
+		 */
+		public Builder keepAnimation(boolean keepAnimation)
+		{
+			this.intent.putExtra(KEEP_ANIMATION, keepAnimation);
+			return this;
+		}
+
 		public Builder scale(boolean scale)
 		{
 			this.intent.putExtra(SCALE, scale);
 			return this;
 		}
 
+		/**
+		 * Whether a crop smaller than the output is enlarged when scaling. If not, it is
+		 * centered at its own size.
+		 */
+		public Builder scaleUpIfNeeded(boolean scaleUpIfNeeded)
+		{
+			this.intent.putExtra(SCALE_UP_IF_NEEDED, scaleUpIfNeeded);
+			return this;
+		}
+
+		/**
+		 * Fill the bars around a crop smaller than the output, which appear when it isn't
+		 * scaled, with a blurred and enlarged copy of the crop instead of leaving them
+		 * transparent.
+		 */
+		public Builder blurBackground(boolean blurBackground)
+		{
+			this.intent.putExtra(BLUR_BACKGROUND, blurBackground);
+			return this;
+		}
+
 		public Builder circleCrop(boolean circleCrop)
 		{
 			this.intent.putExtra(CIRCLE_CROP, circleCrop);
 			return this;
 		}
 
+		/**
+		 * Deliver a preview bitmap of the cropped image alongside the saved file.
+		 *
+		 * @param size Maximum width and height of the preview in pixels.
+		 */
+		public Builder previewSize(int size)
+		{
+			this.intent.putExtra(PREVIEW_SIZE, size);
+			return this;
+		}
+
 		public Builder layoutResourceId(int id)
 		{
 			this.intent.putExtra(LAYOUT_RES_ID, id);
@@ -169,6 +527,11 @@ public final class Cropper
 		 */
 		public void start(Activity activity)
 		{
+			// Decode the image during the transition to the crop screen, at the size it will use.
+			int size = Math.max(this.intent.getIntExtra(OUTPUT_X, CropImageActivity.IMAGE_MIN_SIZE),
+				this.intent.getIntExtra(OUTPUT_Y, CropImageActivity.IMAGE_MIN_SIZE));
+			DecodeHandoff.decode(activity.getContentResolver(),
+				Uri.parse(this.intent.getStringExtra(IMAGE_PATH)), size);
 			activity.startActivityForResult(intent, CROP);
 		}
 	}
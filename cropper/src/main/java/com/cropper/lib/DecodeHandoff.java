@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Process-wide slot for the decode of the image to crop. {@link Cropper#crop} starts reading
+ * the bounds and {@link Cropper.Builder#start} the decode, so the work overlaps the transition
+ * to {@link CropImageActivity}, which takes the result instead of decoding on its own. Only the
+ * latest image is kept, and a decode that isn't taken in time is dropped.
+ */
+final class DecodeHandoff
+{
+	private static final String TAG = "DecodeHandoff";
+	// A decode not taken by then belongs to a builder that was never started.
+	private static final long EXPIRY_MS = 10000;
+
+	private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+	private static Uri sUri;
+	private static Future<int[]> sBounds;
+	private static int sSize;
+	private static Future<Bitmap> sBitmap;
+
+	private DecodeHandoff()
+	{
+		// Hiding constructor
+	}
+
+	// Starts reading the bounds of the image, dropping any other image in the slot.
+	public static synchronized void probe(final ContentResolver resolver, final Uri uri)
+	{
+		clear();
+		sUri = uri;
+		sBounds = Workers.io().submit(new Callable<int[]>()
+		{
+			public int[] call() throws IOException
+			{
+				int[] bounds = Prewarm.takeBounds(uri);
+				return bounds != null ? bounds : ImageLoader.decodeBounds(resolver, uri);
+			}
+		});
+	}
+
+	// Starts decoding the image for showing it with outputs of the given size.
+	public static synchronized void decode(final ContentResolver resolver, final Uri uri, final int size)
+	{
+		if (!uri.equals(sUri))
+		{
+			probe(resolver, uri);
+		}
+		if (sBitmap != null)
+		{
+			sBitmap.cancel(true);
+		}
+		final Future<int[]> bounds = sBounds;
+		sSize = size;
+		final Future<Bitmap> bitmap = Workers.io().submit(new Callable<Bitmap>()
+		{
+			public Bitmap call() throws Exception
+			{
+				return DecodeHandoff.decode(resolver, uri, bounds.get(), size);
+			}
+		});
+		sBitmap = bitmap;
+		sHandler.postDelayed(new Runnable()
+		{
+			public void run()
+			{
+				expire(bitmap);
+			}
+		}, EXPIRY_MS);
+	}
+
+	// Drops the decode if it is still in the slot, so the bitmap isn't kept for good.
+	private static synchronized void expire(Future<Bitmap> bitmap)
+	{
+		if (sBitmap == bitmap)
+		{
+			clear();
+		}
+	}
+
+	/**
+	 * Takes the decode started for the image, waiting for it if it's still running.
+	 *
+	 * @return The decoded image or {@code null} if it wasn't started or failed.
+	 */
+	public static Bitmap take(Uri uri, int size)
+	{
+		Future<Bitmap> bitmap;
+		synchronized (DecodeHandoff.class)
+		{
+			if (sBitmap == null || !uri.equals(sUri) || size != sSize)
+			{
+				return null;
+			}
+			bitmap = sBitmap;
+			sUri = null;
+			sBounds = null;
+			sBitmap = null;
+		}
+		try
+		{
+			return bitmap.get();
+		}
+		catch (InterruptedException e)
+		{
+			bitmap.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			Log.w(TAG, "Decoding ahead failed", e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes the image subsampled to about the size the crop screen shows it at.
+	 *
+	 * @param bounds Size of the image if already known or {@code null}.
+	 * @return The image or {@code null} if it can't be decoded.
+	 */
+	public static Bitmap decode(ContentResolver resolver, Uri uri, int[] bounds, int size)
+		throws IOException
+	{
+		if (bounds == null)
+		{
+			bounds = Prewarm.takeBounds(uri);
+		}
+		if (bounds == null)
+		{
+			bounds = ImageLoader.decodeBounds(resolver, uri);
+		}
+		if (bounds == null)
+		{
+			return null;
+		}
+
+		int scale = 1;
+		if (bounds[1] > size || bounds[0] > size)
+		{
+			scale = (int) Math.pow(2, (int) Math.round(Math.log(CropImageActivity.IMAGE_MIN_SIZE
+				/ (double) Math.max(bounds[1], bounds[0])) / Math.log(0.5)));
+		}
+		return ImageLoader.decode(resolver, uri, scale);
+	}
+
+	private static void clear()
+	{
+		if (sBounds != null)
+		{
+			sBounds.cancel(true);
+		}
+		if (sBitmap != null)
+		{
+			sBitmap.cancel(true);
+		}
+		sUri = null;
+		sBounds = null;
+		sBitmap = null;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decoder based on {@code BitmapFactory} and {@code BitmapRegionDecoder}.
+ */
+public class DefaultBitmapDecoder implements BitmapDecoder
+{
+	public int[] decodeBounds(InputStream in, ImageType type) throws IOException
+	{
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(in, null, o);
+		if (o.outWidth <= 0 || o.outHeight <= 0)
+		{
+			return null;
+		}
+		return new int[]{o.outWidth, o.outHeight};
+	}
+
+	public Bitmap decode(InputStream in, ImageType type, int sampleSize) throws IOException
+	{
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inSampleSize = sampleSize;
+		o.inScaled = false;
+		return BitmapFactory.decodeStream(in, null, o);
+	}
+
+	public Bitmap decodeRegion(InputStream in, ImageType type, Rect region, int sampleSize)
+		throws IOException
+	{
+		if (!type.supportsRegionDecode() || Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1)
+		{
+			return null;
+		}
+		return decodeRegionCompat(in, region, sampleSize);
+	}
+
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+	private static Bitmap decodeRegionCompat(InputStream in, Rect region, int sampleSize)
+		throws IOException
+	{
+		BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+		try
+		{
+			BitmapFactory.Options o = new BitmapFactory.Options();
+			o.inSampleSize = sampleSize;
+			return decoder.decodeRegion(region, o);
+		}
+		finally
+		{
+			decoder.recycle();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.FaceDetector;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Finds faces with {@code FaceDetector} on a small RGB_565 copy of the image.
+ */
+final class FaceLocator
+{
+	private static final String TAG = "FaceLocator";
+	private static final int PROXY_WIDTH = 256;
+	private static final int MAX_FACES = 3;
+
+	private FaceLocator()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Locate faces, giving up when the detection takes longer than the budget. The detection
+	 * can't be stopped once it runs, so it has a thread of its own where an overrun doesn't
+	 * hold a worker that crops or speculative saves need.
+	 *
+	 * @return Bounds of all faces found in bitmap coordinates, or {@code null} if there are
+	 * none or the budget ran out.
+	 */
+	public static RectF locate(final Bitmap bitmap, long budgetMs)
+	{
+		Future<RectF> future = Workers.detection().submit(new Callable<RectF>()
+		{
+			public RectF call()
+			{
+				return locate(bitmap);
+			}
+		});
+		try
+		{
+			return future.get(budgetMs, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			Log.i(TAG, "Face detection exceeded " + budgetMs + " ms");
+			future.cancel(true);
+		}
+		catch (ExecutionException e)
+		{
+			Log.w(TAG, "Face detection failed", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	public static RectF locate(Bitmap bitmap)
+	{
+		// FaceDetector needs an even width.
+		int width = Math.min(PROXY_WIDTH, bitmap.getWidth()) & ~1;
+		int height = Math.round((float) bitmap.getHeight() * width / bitmap.getWidth());
+		if (width < 2 || height < 1)
+		{
+			return null;
+		}
+
+		Bitmap proxy = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		try
+		{
+			Canvas canvas = new Canvas(proxy);
+			canvas.drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+				new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+
+			if (Thread.currentThread().isInterrupted())
+			{
+				// Nobody waits for the result anymore.
+				return null;
+			}
+			FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACES];
+			int count = new FaceDetector(width, height, MAX_FACES).findFaces(proxy, faces);
+
+			RectF bounds = null;
+			PointF mid = new PointF();
+			for (int i = 0; i < count; i++)
+			{
+				FaceDetector.Face face = faces[i];
+				if (face.confidence() < FaceDetector.Face.CONFIDENCE_THRESHOLD)
+				{
+					continue;
+				}
+				face.getMidPoint(mid);
+				float eyes = face.eyesDistance();
+				// The eyes are in the upper part of the face, so extend more downwards.
+				RectF r = new RectF(mid.x - eyes, mid.y - eyes, mid.x + eyes, mid.y + eyes * 1.5F);
+				if (bounds == null)
+				{
+					bounds = r;
+				}
+				else
+				{
+					bounds.union(r);
+				}
+			}
+
+			if (bounds != null)
+			{
+				float scale = (float) bitmap.getWidth() / width;
+				bounds.set(bounds.left * scale, bounds.top * scale,
+					bounds.right * scale, bounds.bottom * scale);
+			}
+			return bounds;
+		}
+		finally
+		{
+			proxy.recycle();
+		}
+	}
+}
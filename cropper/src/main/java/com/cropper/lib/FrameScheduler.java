@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+// Runs a task once at the start of the next display frame, no matter how many times it was
+// scheduled in between. Uses Choreographer where available and a frame-aligned Handler otherwise.
+abstract class FrameScheduler
+{
+	// Frame interval assumed when the display's vsync isn't available.
+	private static final long FRAME_MS = 16;
+
+	private final Runnable mTask;
+	private boolean mScheduled;
+
+	FrameScheduler(Runnable task)
+	{
+		mTask = task;
+	}
+
+	static FrameScheduler create(Runnable task)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+		{
+			return new VsyncScheduler(task);
+		}
+		return new HandlerScheduler(task);
+	}
+
+	void schedule()
+	{
+		if (!mScheduled)
+		{
+			mScheduled = true;
+			post();
+		}
+	}
+
+	void cancel()
+	{
+		if (mScheduled)
+		{
+			mScheduled = false;
+			remove();
+		}
+	}
+
+	boolean isScheduled()
+	{
+		return mScheduled;
+	}
+
+	void dispatch()
+	{
+		if (mScheduled)
+		{
+			mScheduled = false;
+			mTask.run();
+		}
+	}
+
+	abstract void post();
+
+	abstract void remove();
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static final class VsyncScheduler extends FrameScheduler implements Choreographer.FrameCallback
+	{
+		private final Choreographer mChoreographer = Choreographer.getInstance();
+
+		VsyncScheduler(Runnable task)
+		{
+			super(task);
+		}
+
+		public void doFrame(long frameTimeNanos)
+		{
+			dispatch();
+		}
+
+		@Override
+		void post()
+		{
+			mChoreographer.postFrameCallback(this);
+		}
+
+		@Override
+		void remove()
+		{
+			mChoreographer.removeFrameCallback(this);
+		}
+	}
+
+	private static final class HandlerScheduler extends FrameScheduler
+	{
+		private final Handler mHandler = new Handler();
+		private final Runnable mDispatch = new Runnable()
+		{
+			public void run()
+			{
+				dispatch();
+			}
+		};
+
+		HandlerScheduler(Runnable task)
+		{
+			super(task);
+		}
+
+		@Override
+		void post()
+		{
+			// Align to a frame boundary so that bursts of events end up in the same frame.
+			long now = SystemClock.uptimeMillis();
+			mHandler.postAtTime(mDispatch, now - now % FRAME_MS + FRAME_MS);
+		}
+
+		@Override
+		void remove()
+		{
+			mHandler.removeCallbacks(mDispatch);
+		}
+	}
+}
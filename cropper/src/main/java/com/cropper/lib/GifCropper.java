@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Crops and scales every frame of a GIF as it is read and writes it out right away, so only
+ * the frame being read and the one being written are in memory. Frames stay palette indices:
+ * they are scaled by picking the nearest source pixel, which keeps the color tables,
+ * transparency and disposal of the source valid for the output as they are.
+ */
+final class GifCropper
+{
+	private GifCropper()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * @param left   Crop rectangle on the logical screen of the source.
+	 * @param top    Crop rectangle on the logical screen of the source.
+	 * @param width  Crop rectangle on the logical screen of the source.
+	 * @param height Crop rectangle on the logical screen of the source.
+	 */
+	public static void crop(InputStream in, OutputStream out, int left, int top, int width, int height,
+	                        int outputWidth, int outputHeight) throws IOException
+	{
+		GifDecoder decoder = new GifDecoder(in);
+		decoder.readHeader();
+		OutputStream buffered = new BufferedOutputStream(out);
+		GifEncoder encoder = new GifEncoder(buffered);
+		encoder.writeHeader(outputWidth, outputHeight, decoder.getGlobalColorTable(),
+			decoder.getBackgroundIndex());
+
+		// Source column and row that each output column and row shows.
+		int[] columns = sampleMap(left, width, outputWidth);
+		int[] rows = sampleMap(top, height, outputHeight);
+		GifFrame output = new GifFrame();
+		GifFrame frame;
+		while ((frame = decoder.next()) != null)
+		{
+			if (Thread.interrupted())
+			{
+				throw new InterruptedIOException();
+			}
+			for (byte[] extension : frame.extensions)
+			{
+				encoder.writeExtension(extension);
+			}
+			map(frame, columns, rows, output);
+			encoder.writeFrame(output);
+		}
+		encoder.finish();
+		buffered.flush();
+	}
+
+	private static int[] sampleMap(int start, int length, int outputLength)
+	{
+		int[] map = new int[outputLength];
+		for (int i = 0; i < outputLength; i++)
+		{
+			map[i] = start + (int) ((2L * i + 1) * length / (2L * outputLength));
+		}
+		return map;
+	}
+
+	// Picks the pixels of the frame that land in the output, keeping its control data.
+	private static void map(GifFrame frame, int[] columns, int[] rows, GifFrame output)
+	{
+		output.copyControl(frame);
+		output.colorTable = frame.colorTable;
+		output.codeSize = frame.codeSize;
+
+		int x0 = first(columns, frame.left);
+		int x1 = first(columns, frame.left + frame.width);
+		int y0 = first(rows, frame.top);
+		int y1 = first(rows, frame.top + frame.height);
+		if (x0 >= x1 || y0 >= y1)
+		{
+			// The frame is outside of the crop, but its delay still counts. Keep it as a
+			// single transparent pixel that changes nothing.
+			output.left = 0;
+			output.top = 0;
+			output.resize(1, 1);
+			output.indices[0] = 0;
+			output.hasControl = true;
+			output.transparent = true;
+			output.transparentIndex = 0;
+			output.disposal = GifFrame.DISPOSE_NONE;
+			return;
+		}
+
+		output.left = x0;
+		output.top = y0;
+		output.resize(x1 - x0, y1 - y0);
+		byte[] in = frame.indices;
+		byte[] out = output.indices;
+		int i = 0;
+		for (int y = y0; y < y1; y++)
+		{
+			int offset = (rows[y] - frame.top) * frame.width - frame.left;
+			for (int x = x0; x < x1; x++)
+			{
+				out[i++] = in[offset + columns[x]];
+			}
+		}
+	}
+
+	// Index of the first entry of the ascending map that is at least the value.
+	private static int first(int[] map, int value)
+	{
+		int low = 0;
+		int high = map.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (map[mid] < value)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a GIF one frame at a time as palette indices. Only the current frame is kept, frames
+ * aren't composited onto the logical screen.
+ */
+final class GifDecoder
+{
+	private static final int MAX_CODES = 4096;
+	// Guards against allocating a frame for a corrupt size.
+	private static final long MAX_PIXELS = 64L * 1024 * 1024;
+
+	private static final int EXTENSION = 0x21;
+	private static final int IMAGE = 0x2C;
+	private static final int TRAILER = 0x3B;
+	private static final int GRAPHIC_CONTROL = 0xF9;
+	private static final int PLAIN_TEXT = 0x01;
+
+	private final InputStream mIn;
+	private final GifFrame mFrame = new GifFrame();
+	private final byte[] mBlock = new byte[255];
+	private int mBlockSize;
+	private int mBlockPosition;
+
+	// LZW tables, allocated once.
+	private final short[] mPrefix = new short[MAX_CODES];
+	private final byte[] mSuffix = new byte[MAX_CODES];
+	private final byte[] mStack = new byte[MAX_CODES + 1];
+
+	private int mScreenWidth;
+	private int mScreenHeight;
+	private byte[] mGlobalColorTable;
+	private int mBackgroundIndex;
+
+	GifDecoder(InputStream in)
+	{
+		mIn = in;
+	}
+
+	void readHeader() throws IOException
+	{
+		byte[] header = new byte[6];
+		readFully(header);
+		if (header[0] != 'G' || header[1] != 'I' || header[2] != 'F')
+		{
+			throw new IOException("Not a GIF");
+		}
+		mScreenWidth = readShort();
+		mScreenHeight = readShort();
+		int packed = read();
+		mBackgroundIndex = read();
+		read(); // Pixel aspect ratio
+		if ((packed & 0x80) != 0)
+		{
+			mGlobalColorTable = readColorTable(packed);
+		}
+	}
+
+	int getScreenWidth()
+	{
+		return mScreenWidth;
+	}
+
+	int getScreenHeight()
+	{
+		return mScreenHeight;
+	}
+
+	byte[] getGlobalColorTable()
+	{
+		return mGlobalColorTable;
+	}
+
+	int getBackgroundIndex()
+	{
+		return mBackgroundIndex;
+	}
+
+	/**
+	 * Reads the next frame into a frame object that is reused by the following call.
+	 *
+	 * @return The frame or {@code null} at the end of the image.
+	 */
+	GifFrame next() throws IOException
+	{
+		GifFrame frame = mFrame;
+		frame.hasControl = false;
+		frame.extensions.clear();
+		while (true)
+		{
+			int block = mIn.read();
+			if (block == IMAGE)
+			{
+				readImage(frame);
+				return frame;
+			}
+			else if (block == EXTENSION)
+			{
+				readExtension(frame);
+			}
+			else if (block == TRAILER || block < 0)
+			{
+				return null;
+			}
+			else
+			{
+				throw new IOException("Bad GIF block " + block);
+			}
+		}
+	}
+
+	private void readExtension(GifFrame frame) throws IOException
+	{
+		int label = read();
+		if (label == GRAPHIC_CONTROL)
+		{
+			startBlocks();
+			int packed = readBlockByte();
+			frame.hasControl = true;
+			frame.disposal = (packed >> 2) & 7;
+			frame.userInput = (packed & 2) != 0;
+			frame.transparent = (packed & 1) != 0;
+			frame.delay = readBlockByte() | (readBlockByte() << 8);
+			frame.transparentIndex = readBlockByte();
+			skipBlocks();
+		}
+		else if (label == PLAIN_TEXT)
+		{
+			// Text is placed on the logical screen, it can't follow the crop.
+			startBlocks();
+			skipBlocks();
+		}
+		else
+		{
+			ByteArrayOutputStream raw = new ByteArrayOutputStream();
+			raw.write(EXTENSION);
+			raw.write(label);
+			int size;
+			while ((size = read()) > 0)
+			{
+				readFully(mBlock, size);
+				raw.write(size);
+				raw.write(mBlock, 0, size);
+			}
+			raw.write(0);
+			frame.extensions.add(raw.toByteArray());
+		}
+	}
+
+	private void readImage(GifFrame frame) throws IOException
+	{
+		frame.left = readShort();
+		frame.top = readShort();
+		int width = readShort();
+		int height = readShort();
+		int packed = read();
+		if ((long) width * height > MAX_PIXELS)
+		{
+			throw new IOException("GIF frame too large: " + width + "x" + height);
+		}
+		frame.resize(width, height);
+		frame.colorTable = (packed & 0x80) != 0 ? readColorTable(packed) : null;
+		frame.codeSize = read();
+		if (frame.codeSize < 1 || frame.codeSize > 11)
+		{
+			throw new IOException("Bad LZW code size " + frame.codeSize);
+		}
+		decodeImage(frame, (packed & 0x40) != 0);
+	}
+
+	// Decodes the LZW data of the frame straight into its rows.
+	private void decodeImage(GifFrame frame, boolean interlaced) throws IOException
+	{
+		int width = frame.width;
+		int pixels = width * frame.height;
+		byte[] out = frame.indices;
+		int[] rows = interlaced ? interlacedRows(frame.height) : null;
+
+		int clear = 1 << frame.codeSize;
+		int end = clear + 1;
+		int codeBits = frame.codeSize + 1;
+		int codeMask = (1 << codeBits) - 1;
+		int available = clear + 2;
+		int oldCode = -1;
+		int first = 0;
+		for (int code = 0; code < clear; code++)
+		{
+			mPrefix[code] = 0;
+			mSuffix[code] = (byte) code;
+		}
+
+		startBlocks();
+		int datum = 0;
+		int bits = 0;
+		int n = 0;
+		int x = 0;
+		int offset = rows != null ? rows[0] * width : 0;
+		decode:
+		while (n < pixels)
+		{
+			while (bits < codeBits)
+			{
+				int b = readBlockByte();
+				if (b < 0)
+				{
+					break decode;
+				}
+				datum |= b << bits;
+				bits += 8;
+			}
+			int code = datum & codeMask;
+			datum >>= codeBits;
+			bits -= codeBits;
+
+			if (code == clear)
+			{
+				codeBits = frame.codeSize + 1;
+				codeMask = (1 << codeBits) - 1;
+				available = clear + 2;
+				oldCode = -1;
+				continue;
+			}
+			if (code == end || code > available || (oldCode == -1 && code >= clear))
+			{
+				break;
+			}
+
+			int top = 0;
+			int inCode = code;
+			if (oldCode == -1)
+			{
+				first = code;
+				mStack[top++] = (byte) code;
+			}
+			else
+			{
+				if (code == available)
+				{
+					mStack[top++] = (byte) first;
+					code = oldCode;
+				}
+				while (code >= clear)
+				{
+					mStack[top++] = mSuffix[code];
+					code = mPrefix[code];
+				}
+				first = mSuffix[code] & 0xFF;
+				mStack[top++] = (byte) first;
+				if (available < MAX_CODES)
+				{
+					mPrefix[available] = (short) oldCode;
+					mSuffix[available] = (byte) first;
+					available++;
+					if ((available & codeMask) == 0 && available < MAX_CODES)
+					{
+						codeBits++;
+						codeMask = (1 << codeBits) - 1;
+					}
+				}
+			}
+			oldCode = inCode;
+
+			while (top > 0 && n < pixels)
+			{
+				out[offset + x] = mStack[--top];
+				n++;
+				if (++x == width)
+				{
+					x = 0;
+					offset = n < pixels ? (rows != null ? rows[n / width] : n / width) * width : 0;
+				}
+			}
+		}
+		skipBlocks();
+
+		// Pixels missing from truncated data are left at index 0.
+		while (n < pixels)
+		{
+			out[offset + x] = 0;
+			n++;
+			if (++x == width)
+			{
+				x = 0;
+				offset = n < pixels ? (rows != null ? rows[n / width] : n / width) * width : 0;
+			}
+		}
+	}
+
+	// Maps the order rows are stored in to their position in the frame.
+	private static int[] interlacedRows(int height)
+	{
+		int[] rows = new int[height];
+		int i = 0;
+		int[] starts = {0, 4, 2, 1};
+		int[] steps = {8, 8, 4, 2};
+		for (int pass = 0; pass < 4; pass++)
+		{
+			for (int y = starts[pass]; y < height; y += steps[pass])
+			{
+				rows[i++] = y;
+			}
+		}
+		return rows;
+	}
+
+	private byte[] readColorTable(int packed) throws IOException
+	{
+		byte[] table = new byte[3 << ((packed & 7) + 1)];
+		readFully(table);
+		return table;
+	}
+
+	private void startBlocks()
+	{
+		mBlockSize = 0;
+		mBlockPosition = 0;
+	}
+
+	// Next byte of the current data sub-blocks or -1 at their terminator.
+	private int readBlockByte() throws IOException
+	{
+		if (mBlockSize < 0)
+		{
+			return -1;
+		}
+		if (mBlockPosition == mBlockSize)
+		{
+			int size = read();
+			if (size == 0)
+			{
+				mBlockSize = -1;
+				return -1;
+			}
+			readFully(mBlock, size);
+			mBlockSize = size;
+			mBlockPosition = 0;
+		}
+		return mBlock[mBlockPosition++] & 0xFF;
+	}
+
+	private void skipBlocks() throws IOException
+	{
+		while (readBlockByte() >= 0)
+		{
+			mBlockPosition = mBlockSize;
+		}
+	}
+
+	private int read() throws IOException
+	{
+		int b = mIn.read();
+		if (b < 0)
+		{
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private int readShort() throws IOException
+	{
+		return read() | (read() << 8);
+	}
+
+	private void readFully(byte[] b) throws IOException
+	{
+		readFully(b, b.length);
+	}
+
+	private void readFully(byte[] b, int length) throws IOException
+	{
+		int offset = 0;
+		while (offset < length)
+		{
+			int n = mIn.read(b, offset, length - offset);
+			if (n < 0)
+			{
+				throw new EOFException();
+			}
+			offset += n;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a GIF one frame at a time from palette indices, see {@link GifFrame}.
+ */
+final class GifEncoder
+{
+	private static final int MAX_BITS = 12;
+	private static final int MAX_CODES = 1 << MAX_BITS;
+	// Prime size of the hash table of the LZW dictionary, 80% occupancy at most.
+	private static final int HASH_SIZE = 5003;
+	private static final int HASH_SHIFT = 4;
+
+	private final OutputStream mOut;
+	private final int[] mHashKeys = new int[HASH_SIZE];
+	private final int[] mHashCodes = new int[HASH_SIZE];
+	private final byte[] mBlock = new byte[255];
+	private int mBlockSize;
+
+	// State of the code output.
+	private int mInitBits;
+	private int mBits;
+	private int mMaxCode;
+	private int mClearCode;
+	private int mEndCode;
+	private int mNextCode;
+	private boolean mClearing;
+	private int mAccumulator;
+	private int mAccumulatorBits;
+
+	GifEncoder(OutputStream out)
+	{
+		mOut = out;
+	}
+
+	/**
+	 * @param colorTable Global color table as raw RGB triplets, or {@code null}.
+	 */
+	void writeHeader(int width, int height, byte[] colorTable, int backgroundIndex) throws IOException
+	{
+		mOut.write(new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+		writeShort(width);
+		writeShort(height);
+		mOut.write(colorTable != null ? 0x80 | 0x70 | tableBits(colorTable) : 0);
+		mOut.write(backgroundIndex);
+		mOut.write(0);
+		if (colorTable != null)
+		{
+			mOut.write(colorTable);
+		}
+	}
+
+	// Writes a raw extension block as it was read by GifDecoder.
+	void writeExtension(byte[] extension) throws IOException
+	{
+		mOut.write(extension);
+	}
+
+	void writeFrame(GifFrame frame) throws IOException
+	{
+		if (frame.hasControl)
+		{
+			mOut.write(0x21);
+			mOut.write(0xF9);
+			mOut.write(4);
+			mOut.write(((frame.disposal & 7) << 2) | (frame.userInput ? 2 : 0) | (frame.transparent ? 1 : 0));
+			writeShort(frame.delay);
+			mOut.write(frame.transparentIndex);
+			mOut.write(0);
+		}
+
+		mOut.write(0x2C);
+		writeShort(frame.left);
+		writeShort(frame.top);
+		writeShort(frame.width);
+		writeShort(frame.height);
+		mOut.write(frame.colorTable != null ? 0x80 | tableBits(frame.colorTable) : 0);
+		if (frame.colorTable != null)
+		{
+			mOut.write(frame.colorTable);
+		}
+
+		int codeSize = Math.max(2, frame.codeSize);
+		mOut.write(codeSize);
+		compress(frame.indices, frame.width * frame.height, codeSize + 1);
+		mOut.write(0);
+	}
+
+	void finish() throws IOException
+	{
+		mOut.write(0x3B);
+		mOut.flush();
+	}
+
+	// LZW with a hashed dictionary, the scheme of compress(1) and most GIF encoders.
+	private void compress(byte[] indices, int length, int initBits) throws IOException
+	{
+		mInitBits = initBits;
+		mBits = initBits;
+		mMaxCode = (1 << mBits) - 1;
+		mClearCode = 1 << (initBits - 1);
+		mEndCode = mClearCode + 1;
+		mNextCode = mClearCode + 2;
+		mClearing = false;
+		mAccumulator = 0;
+		mAccumulatorBits = 0;
+		mBlockSize = 0;
+		Arrays.fill(mHashKeys, -1);
+
+		output(mClearCode);
+		int prefix = indices[0] & 0xFF;
+		next:
+		for (int p = 1; p < length; p++)
+		{
+			int c = indices[p] & 0xFF;
+			int key = (c << MAX_BITS) + prefix;
+			int i = (c << HASH_SHIFT) ^ prefix;
+			if (mHashKeys[i] == key)
+			{
+				prefix = mHashCodes[i];
+				continue;
+			}
+			if (mHashKeys[i] >= 0)
+			{
+				int step = i == 0 ? 1 : HASH_SIZE - i;
+				do
+				{
+					i -= step;
+					if (i < 0)
+					{
+						i += HASH_SIZE;
+					}
+					if (mHashKeys[i] == key)
+					{
+						prefix = mHashCodes[i];
+						continue next;
+					}
+				}
+				while (mHashKeys[i] >= 0);
+			}
+
+			output(prefix);
+			prefix = c;
+			if (mNextCode < MAX_CODES)
+			{
+				mHashCodes[i] = mNextCode++;
+				mHashKeys[i] = key;
+			}
+			else
+			{
+				// The dictionary is full, start over.
+				Arrays.fill(mHashKeys, -1);
+				mNextCode = mClearCode + 2;
+				mClearing = true;
+				output(mClearCode);
+			}
+		}
+		output(prefix);
+		output(mEndCode);
+	}
+
+	private void output(int code) throws IOException
+	{
+		mAccumulator |= code << mAccumulatorBits;
+		mAccumulatorBits += mBits;
+		while (mAccumulatorBits >= 8)
+		{
+			writeByte(mAccumulator & 0xFF);
+			mAccumulator >>>= 8;
+			mAccumulatorBits -= 8;
+		}
+
+		// The decoder widens its codes one entry behind the encoder.
+		if (mNextCode > mMaxCode || mClearing)
+		{
+			if (mClearing)
+			{
+				mBits = mInitBits;
+				mClearing = false;
+			}
+			else
+			{
+				mBits++;
+			}
+			mMaxCode = mBits == MAX_BITS ? MAX_CODES : (1 << mBits) - 1;
+		}
+
+		if (code == mEndCode)
+		{
+			if (mAccumulatorBits > 0)
+			{
+				writeByte(mAccumulator & 0xFF);
+				mAccumulator = 0;
+				mAccumulatorBits = 0;
+			}
+			flushBlock();
+		}
+	}
+
+	private void writeByte(int b) throws IOException
+	{
+		mBlock[mBlockSize++] = (byte) b;
+		if (mBlockSize == mBlock.length)
+		{
+			flushBlock();
+		}
+	}
+
+	private void flushBlock() throws IOException
+	{
+		if (mBlockSize > 0)
+		{
+			mOut.write(mBlockSize);
+			mOut.write(mBlock, 0, mBlockSize);
+			mBlockSize = 0;
+		}
+	}
+
+	// Size field of the packed byte for a table of 3 << (n + 1) bytes.
+	private static int tableBits(byte[] table)
+	{
+		int n = 0;
+		while ((3 << (n + 1)) < table.length && n < 7)
+		{
+			n++;
+		}
+		return n;
+	}
+
+	private void writeShort(int value) throws IOException
+	{
+		mOut.write(value & 0xFF);
+		mOut.write((value >> 8) & 0xFF);
+	}
+}
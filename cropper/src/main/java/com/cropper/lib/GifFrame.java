@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One image of a GIF as palette indices, with the control data that came with it. The objects
+ * are reused from frame to frame, see {@link GifDecoder} and {@link GifEncoder}.
+ */
+final class GifFrame
+{
+	// Values of disposal.
+	static final int DISPOSE_UNSPECIFIED = 0;
+	static final int DISPOSE_NONE = 1;
+	static final int DISPOSE_BACKGROUND = 2;
+	static final int DISPOSE_PREVIOUS = 3;
+
+	// Position and size on the logical screen.
+	int left;
+	int top;
+	int width;
+	int height;
+	// Row by row, non-interlaced. May be longer than width * height.
+	byte[] indices = new byte[0];
+	// Raw RGB triplets or null to use the global color table.
+	byte[] colorTable;
+	// LZW minimum code size, every index is below 1 << codeSize.
+	int codeSize;
+
+	// Graphic control extension, if hasControl.
+	boolean hasControl;
+	int disposal;
+	boolean userInput;
+	// In hundredths of a second.
+	int delay;
+	boolean transparent;
+	int transparentIndex;
+
+	// Other extensions that came before the image, as raw blocks.
+	final List<byte[]> extensions = new ArrayList<byte[]>();
+
+	void resize(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		if (indices.length < width * height)
+		{
+			indices = new byte[width * height];
+		}
+	}
+
+	void copyControl(GifFrame frame)
+	{
+		hasControl = frame.hasControl;
+		disposal = frame.disposal;
+		userInput = frame.userInput;
+		delay = frame.delay;
+		transparent = frame.transparent;
+		transparentIndex = frame.transparentIndex;
+	}
+}
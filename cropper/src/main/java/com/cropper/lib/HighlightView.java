@@ -26,21 +26,20 @@ import android.view.View;
 
 // This class is used by CropImageActivity to display a highlighted cropping rectangle
 // overlayed with the image. There are two coordinate spaces in use. One is
-// image, another is screen. computeLayout() uses mMatrix to map from image
-// space to screen space.
+// image, another is screen. The geometry of the rectangle is kept by CropGeometry,
+// which uses mMatrix to map from image space to screen space.
 class HighlightView
 {
 	@SuppressWarnings("unused")
 	private static final String TAG = "HighlightView";
 	View mContext;  // The View displaying the image.
 
-	@SuppressWarnings("PointlessBitwiseExpression")
-	public static final int GROW_NONE = (1 << 0);
-	public static final int GROW_LEFT_EDGE = (1 << 1);
-	public static final int GROW_RIGHT_EDGE = (1 << 2);
-	public static final int GROW_TOP_EDGE = (1 << 3);
-	public static final int GROW_BOTTOM_EDGE = (1 << 4);
-	public static final int MOVE = (1 << 5);
+	public static final int GROW_NONE = CropGeometry.GROW_NONE;
+	public static final int GROW_LEFT_EDGE = CropGeometry.GROW_LEFT_EDGE;
+	public static final int GROW_RIGHT_EDGE = CropGeometry.GROW_RIGHT_EDGE;
+	public static final int GROW_TOP_EDGE = CropGeometry.GROW_TOP_EDGE;
+	public static final int GROW_BOTTOM_EDGE = CropGeometry.GROW_BOTTOM_EDGE;
+	public static final int MOVE = CropGeometry.MOVE;
 
 	enum ModifyMode
 	{
@@ -51,13 +50,14 @@ class HighlightView
 
 	private ModifyMode mMode = ModifyMode.None;
 
-	Rect mDrawRect;  // in screen space
-	private RectF mImageRect;  // in image space
-	RectF mCropRect;  // in image space
+	final Rect mDrawRect = new Rect();  // in screen space
+	final CropGeometry mGeometry = new CropGeometry();
 	Matrix mMatrix;
+	private final float[] mMatrixValues = new float[9];
+	private final Rect mInvalidRect = new Rect();
+	// How far the handles and the outline reach outside of mDrawRect.
+	private int mDrawMargin;
 
-	private boolean mMaintainAspectRatio = false;
-	private float mInitialAspectRatio;
 	private boolean mCircle = false;
 
 	private Drawable mResizeDrawableWidth;
@@ -88,6 +88,9 @@ class HighlightView
 
 	boolean mIsFocused;
 	boolean mHidden;
+	// Whether this view dims the image around the rectangle. With several crop regions the
+	// dimming is drawn by CropImageView around all of them instead.
+	boolean mDimOutside = true;
 
 	public boolean hasFocus()
 	{
@@ -99,6 +102,11 @@ class HighlightView
 		mIsFocused = f;
 	}
 
+	boolean isCircle()
+	{
+		return mCircle;
+	}
+
 	public void setHidden(boolean hidden)
 	{
 		mHidden = hidden;
@@ -121,7 +129,20 @@ class HighlightView
 		{
 			Rect viewDrawingRect = new Rect();
 			mContext.getDrawingRect(viewDrawingRect);
-			if (mCircle)
+			if (!mDimOutside)
+			{
+				if (mCircle)
+				{
+					path.addCircle(mDrawRect.exactCenterX(), mDrawRect.exactCenterY(),
+						mDrawRect.width() / 2F, Path.Direction.CW);
+				}
+				else
+				{
+					path.addRect(new RectF(mDrawRect), Path.Direction.CW);
+				}
+				mOutlinePaint.setColor(highlightSelectedColor);
+			}
+			else if (mCircle)
 			{
 				canvas.save();
 
@@ -243,252 +264,67 @@ class HighlightView
 		if (mode != mMode)
 		{
 			mMode = mode;
-			mContext.invalidate();
+			invalidateView();
 		}
 	}
 
+	// Redraws the part of the view covered by this rectangle.
+	void invalidateView()
+	{
+		mInvalidRect.set(mDrawRect);
+		mInvalidRect.inset(-mDrawMargin, -mDrawMargin);
+		mContext.invalidate(mInvalidRect);
+	}
+
 	// Determines which edges are hit by touching at (x, y).
 	public int getHit(float x, float y)
 	{
-
-		Rect r = computeLayout();
-		final float hysteresis = 20F;
-		int retval = GROW_NONE;
-
-		if (mCircle)
-		{
-			float distX = x - r.centerX();
-			float distY = y - r.centerY();
-			int distanceFromCenter =
-				(int) Math.sqrt(distX * distX + distY * distY);
-			int radius = mDrawRect.width() / 2;
-			int delta = distanceFromCenter - radius;
-			if (Math.abs(delta) <= hysteresis)
-			{
-				if (Math.abs(distY) > Math.abs(distX))
-				{
-					if (distY < 0)
-					{
-						retval = GROW_TOP_EDGE;
-					}
-					else
-					{
-						retval = GROW_BOTTOM_EDGE;
-					}
-				}
-				else
-				{
-					if (distX < 0)
-					{
-						retval = GROW_LEFT_EDGE;
-					}
-					else
-					{
-						retval = GROW_RIGHT_EDGE;
-					}
-				}
-			}
-			else if (distanceFromCenter < radius)
-			{
-				retval = MOVE;
-			}
-			else
-			{
-				retval = GROW_NONE;
-			}
-		}
-		else
-		{
-			// verticalCheck makes sure the position is between the top and
-			// the bottom edge (with some tolerance). Similar for horizCheck.
-			boolean verticalCheck = (y >= r.top - hysteresis)
-				&& (y < r.bottom + hysteresis);
-			boolean horizCheck = (x >= r.left - hysteresis)
-				&& (x < r.right + hysteresis);
-
-			// Check whether the position is near some edge(s).
-			if ((Math.abs(r.left - x) < hysteresis) && verticalCheck)
-			{
-				retval |= GROW_LEFT_EDGE;
-			}
-			if ((Math.abs(r.right - x) < hysteresis) && verticalCheck)
-			{
-				retval |= GROW_RIGHT_EDGE;
-			}
-			if ((Math.abs(r.top - y) < hysteresis) && horizCheck)
-			{
-				retval |= GROW_TOP_EDGE;
-			}
-			if ((Math.abs(r.bottom - y) < hysteresis) && horizCheck)
-			{
-				retval |= GROW_BOTTOM_EDGE;
-			}
-
-			// Not near any edge but inside the rectangle: move.
-			if (retval == GROW_NONE && r.contains((int) x, (int) y))
-			{
-				retval = MOVE;
-			}
-		}
-		return retval;
+		return mGeometry.getHit(x, y);
 	}
 
 	// Handles motion (dx, dy) in screen space.
 	// The "edge" parameter specifies which edges the user is dragging.
 	void handleMotion(int edge, float dx, float dy)
 	{
-
-		Rect r = computeLayout();
-		if (edge == GROW_NONE)
+		mInvalidRect.set(mDrawRect);
+		if (!mGeometry.handleMotion(edge, dx, dy))
 		{
 			return;
 		}
-		else if (edge == MOVE)
-		{
-			// Convert to image space before sending to moveBy().
-			moveBy(dx * (mCropRect.width() / r.width()),
-				dy * (mCropRect.height() / r.height()));
-		}
-		else
-		{
-			if (((GROW_LEFT_EDGE | GROW_RIGHT_EDGE) & edge) == 0)
-			{
-				dx = 0;
-			}
-
-			if (((GROW_TOP_EDGE | GROW_BOTTOM_EDGE) & edge) == 0)
-			{
-				dy = 0;
-			}
-
-			// Convert to image space before sending to growBy().
-			float xDelta = dx * (mCropRect.width() / r.width());
-			float yDelta = dy * (mCropRect.height() / r.height());
-			growBy((((edge & GROW_LEFT_EDGE) != 0) ? -1 : 1) * xDelta,
-				(((edge & GROW_TOP_EDGE) != 0) ? -1 : 1) * yDelta);
-		}
-	}
-
-	// Grows the cropping rectange by (dx, dy) in image space.
-	void moveBy(float dx, float dy)
-	{
-
-		Rect invalRect = new Rect(mDrawRect);
-
-		mCropRect.offset(dx, dy);
-
-		// Put the cropping rectangle inside image rectangle.
-		mCropRect.offset(
-			Math.max(0, mImageRect.left - mCropRect.left),
-			Math.max(0, mImageRect.top - mCropRect.top));
-
-		mCropRect.offset(
-			Math.min(0, mImageRect.right - mCropRect.right),
-			Math.min(0, mImageRect.bottom - mCropRect.bottom));
-
-		mDrawRect = computeLayout();
-		invalRect.union(mDrawRect);
-		invalRect.inset(-10, -10);
-		mContext.invalidate(invalRect);
+		updateDrawRect();
+		// Only the area between the old and the new rectangle changes.
+		mInvalidRect.union(mDrawRect);
+		mInvalidRect.inset(-mDrawMargin, -mDrawMargin);
+		mContext.invalidate(mInvalidRect);
 	}
 
 	// Grows the cropping rectange by (dx, dy) in image space.
 	public void growBy(float dx, float dy)
 	{
-		if (mMaintainAspectRatio)
-		{
-			if (dx != 0)
-			{
-				dy = dx / mInitialAspectRatio;
-			}
-			else if (dy != 0)
-			{
-				dx = dy * mInitialAspectRatio;
-			}
-		}
-
-		// Don't let the cropping rectangle grow too fast.
-		// Grow at most half of the difference between the image rectangle and
-		// the cropping rectangle.
-		RectF r = new RectF(mCropRect);
-		if (dx > 0F && r.width() + 2 * dx > mImageRect.width())
-		{
-			float adjustment = (mImageRect.width() - r.width()) / 2F;
-			dx = adjustment;
-			if (mMaintainAspectRatio)
-			{
-				dy = dx / mInitialAspectRatio;
-			}
-		}
-		if (dy > 0F && r.height() + 2 * dy > mImageRect.height())
-		{
-			float adjustment = (mImageRect.height() - r.height()) / 2F;
-			dy = adjustment;
-			if (mMaintainAspectRatio)
-			{
-				dx = dy * mInitialAspectRatio;
-			}
-		}
-
-		r.inset(-dx, -dy);
-
-		// Don't let the cropping rectangle shrink too fast.
-		final float widthCap = 25F;
-		if (r.width() < widthCap)
-		{
-			r.inset(-(widthCap - r.width()) / 2F, 0F);
-		}
-		float heightCap = mMaintainAspectRatio
-			? (widthCap / mInitialAspectRatio)
-			: widthCap;
-		if (r.height() < heightCap)
-		{
-			r.inset(0F, -(heightCap - r.height()) / 2F);
-		}
-
-		// Put the cropping rectangle inside the image rectangle.
-		if (r.left < mImageRect.left)
-		{
-			r.offset(mImageRect.left - r.left, 0F);
-		}
-		else if (r.right > mImageRect.right)
-		{
-			r.offset(-(r.right - mImageRect.right), 0);
-		}
-		if (r.top < mImageRect.top)
-		{
-			r.offset(0F, mImageRect.top - r.top);
-		}
-		else if (r.bottom > mImageRect.bottom)
-		{
-			r.offset(0F, -(r.bottom - mImageRect.bottom));
-		}
-
-		mCropRect.set(r);
-		mDrawRect = computeLayout();
+		mGeometry.growBy(dx, dy);
+		updateDrawRect();
 		mContext.invalidate();
 	}
 
 	// Returns the cropping rectangle in image space.
 	public Rect getCropRect()
 	{
-		return new Rect((int) mCropRect.left, (int) mCropRect.top,
-			(int) mCropRect.right, (int) mCropRect.bottom);
+		return new Rect((int) mGeometry.getLeft(), (int) mGeometry.getTop(),
+			(int) mGeometry.getRight(), (int) mGeometry.getBottom());
 	}
 
-	// Maps the cropping rectangle from image space to screen space.
-	private Rect computeLayout()
+	private void updateDrawRect()
 	{
-		RectF r = new RectF(mCropRect.left, mCropRect.top,
-			mCropRect.right, mCropRect.bottom);
-		mMatrix.mapRect(r);
-		return new Rect(Math.round(r.left), Math.round(r.top),
-			Math.round(r.right), Math.round(r.bottom));
+		mDrawRect.set(mGeometry.getDrawLeft(), mGeometry.getDrawTop(),
+			mGeometry.getDrawRight(), mGeometry.getDrawBottom());
 	}
 
+	// Picks up changes to mMatrix.
 	public void invalidate()
 	{
-		mDrawRect = computeLayout();
+		mMatrix.getValues(mMatrixValues);
+		mGeometry.setMatrix(mMatrixValues);
+		updateDrawRect();
 	}
 
 	public void setup(Matrix m, Rect imageRect, RectF cropRect,
@@ -496,19 +332,10 @@ class HighlightView
 	                  int highlightColorResId, int highlightSelectedColorResId,
 	                  int verticalIconResId, int horizontalIconResId, int borderSizeResId)
 	{
-		if (circle)
-		{
-			maintainAspectRatio = true;
-		}
 		mMatrix = new Matrix(m);
-
-		mCropRect = cropRect;
-		mImageRect = new RectF(imageRect);
-		mMaintainAspectRatio = maintainAspectRatio;
 		mCircle = circle;
-
-		mInitialAspectRatio = mCropRect.width() / mCropRect.height();
-		mDrawRect = computeLayout();
+		mGeometry.setup(imageRect.left, imageRect.top, imageRect.right, imageRect.bottom,
+			cropRect.left, cropRect.top, cropRect.right, cropRect.bottom, circle, maintainAspectRatio);
 
 		mFocusPaint.setARGB(125, 50, 50, 50);
 		mNoFocusPaint.setARGB(125, 50, 50, 50);
@@ -518,5 +345,11 @@ class HighlightView
 
 		mMode = ModifyMode.None;
 		init(highlightColorResId, highlightSelectedColorResId, verticalIconResId, horizontalIconResId);
+		// Make sure the edges can be grabbed by the handles drawn on them.
+		mGeometry.setHitSlop(Math.max(CropGeometry.DEFAULT_HIT_SLOP, mResizeDrawableWidth.getIntrinsicWidth() / 2F));
+		mDrawMargin = Math.max(10, (int) Math.ceil(mOutlinePaint.getStrokeWidth()) + 4 + Math.max(
+			Math.max(mResizeDrawableWidth.getIntrinsicWidth(), mResizeDrawableWidth.getIntrinsicHeight()),
+			Math.max(mResizeDrawableHeight.getIntrinsicWidth(), mResizeDrawableHeight.getIntrinsicHeight())));
+		invalidate();
 	}
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+/**
+ * Estimates how much an image is tilted from the dominant nearly horizontal or nearly vertical
+ * line, found with a Hough transform on the edge map of a small copy of the image. Each edge
+ * pixel votes only for the angles close to its gradient direction, which keeps the transform
+ * cheap.
+ */
+final class HorizonDetector
+{
+	// Longer side of the analysed copy.
+	static final int ANALYSIS_SIZE = 256;
+	private static final float ANGLE_STEP = 0.25F;
+	// Angles voted for on each side of the gradient direction.
+	private static final float VOTE_WINDOW = 2F;
+	// Edge threshold relative to the mean gradient magnitude.
+	private static final float EDGE_FACTOR = 3F;
+	// Votes the winning line needs, relative to the longer side of the analysed copy.
+	private static final float MIN_VOTES = 0.25F;
+	// Tilts up to this many degrees are within the precision of the analysis and ignored.
+	private static final float DEAD_ZONE = 0.5F;
+
+	private HorizonDetector()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Estimate the tilt.
+	 *
+	 * @param raster   Image to analyse, any size.
+	 * @param maxAngle Largest tilt in degrees considered.
+	 * @return Rotation in degrees, clockwise in screen coordinates, that levels the image, or 0 if
+	 * no line was found with enough confidence.
+	 */
+	public static float detect(Raster raster, float maxAngle)
+	{
+		float scale = Math.min(1F, (float) ANALYSIS_SIZE / Math.max(raster.width, raster.height));
+		int width = Math.max(1, Math.round(raster.width * scale));
+		int height = Math.max(1, Math.round(raster.height * scale));
+		if (width < 3 || height < 3)
+		{
+			return 0F;
+		}
+		int[] luma = SmartCrop.downsampleLuma(raster, width, height);
+
+		// Sobel gradients, skipping the border.
+		int n = width * height;
+		int[] gx = new int[n];
+		int[] gy = new int[n];
+		long total = 0;
+		for (int y = 1; y < height - 1; y++)
+		{
+			for (int x = 1; x < width - 1; x++)
+			{
+				int i = y * width + x;
+				int a = luma[i - width - 1], b = luma[i - width], c = luma[i - width + 1];
+				int d = luma[i - 1], f = luma[i + 1];
+				int g = luma[i + width - 1], h = luma[i + width], k = luma[i + width + 1];
+				gx[i] = (c + 2 * f + k) - (a + 2 * d + g);
+				gy[i] = (g + 2 * h + k) - (a + 2 * b + c);
+				total += Math.abs(gx[i]) + Math.abs(gy[i]);
+			}
+		}
+		float threshold = Math.max(32F, EDGE_FACTOR * total / ((width - 2) * (height - 2)));
+
+		int angles = (int) (2 * maxAngle / ANGLE_STEP) + 1;
+		int diagonal = (int) Math.ceil(Math.sqrt(width * width + height * height));
+		int rhos = 2 * diagonal + 1;
+		float[] cos = new float[angles];
+		float[] sin = new float[angles];
+		for (int j = 0; j < angles; j++)
+		{
+			double phi = Math.toRadians(-maxAngle + j * ANGLE_STEP);
+			cos[j] = (float) Math.cos(phi);
+			sin[j] = (float) Math.sin(phi);
+		}
+
+		// One accumulator for nearly horizontal and one for nearly vertical lines, both indexed
+		// by the deviation angle from the axis.
+		int[] horizontal = new int[angles * rhos];
+		int[] vertical = new int[angles * rhos];
+		int window = Math.round(VOTE_WINDOW / ANGLE_STEP);
+		for (int y = 1; y < height - 1; y++)
+		{
+			for (int x = 1; x < width - 1; x++)
+			{
+				int i = y * width + x;
+				if (Math.abs(gx[i]) + Math.abs(gy[i]) < threshold)
+				{
+					continue;
+				}
+				// Direction of the gradient, which is normal to the edge, in [0, 180).
+				double g = Math.toDegrees(Math.atan2(gy[i], gx[i]));
+				if (g < 0)
+				{
+					g += 180;
+				}
+
+				int[] accumulator;
+				double phi;
+				if (Math.abs(g - 90) <= maxAngle + VOTE_WINDOW)
+				{
+					accumulator = horizontal;
+					phi = g - 90;
+				}
+				else if (g <= maxAngle + VOTE_WINDOW || g >= 180 - maxAngle - VOTE_WINDOW)
+				{
+					accumulator = vertical;
+					phi = g < 90 ? g : g - 180;
+				}
+				else
+				{
+					continue;
+				}
+
+				int center = (int) Math.round((phi + maxAngle) / ANGLE_STEP);
+				int from = Math.max(0, center - window);
+				int to = Math.min(angles - 1, center + window);
+				for (int j = from; j <= to; j++)
+				{
+					// Line normal at 90 + phi for horizontal and at phi for vertical lines.
+					float rho = accumulator == horizontal
+						? -x * sin[j] + y * cos[j]
+						: x * cos[j] + y * sin[j];
+					accumulator[j * rhos + Math.round(rho) + diagonal]++;
+				}
+			}
+		}
+
+		int best = 0;
+		int bestAngle = -1;
+		for (int j = 0; j < angles; j++)
+		{
+			for (int r = 0; r < rhos; r++)
+			{
+				int votes = Math.max(horizontal[j * rhos + r], vertical[j * rhos + r]);
+				if (votes > best)
+				{
+					best = votes;
+					bestAngle = j;
+				}
+			}
+		}
+
+		if (bestAngle < 0 || best < MIN_VOTES * Math.max(width, height))
+		{
+			return 0F;
+		}
+		float tilt = -maxAngle + bestAngle * ANGLE_STEP;
+		return Math.abs(tilt) <= DEAD_ZONE ? 0F : -tilt;
+	}
+}
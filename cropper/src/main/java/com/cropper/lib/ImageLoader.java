@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens source images and routes them to the installed {@link BitmapDecoder}, picking the
+ * decoding path from the sniffed format.
+ */
+final class ImageLoader
+{
+	private ImageLoader()
+	{
+		// Hiding constructor
+	}
+
+	// Opens the raw image data behind the uri. Remote images are read while they download.
+	public static InputStream open(ContentResolver resolver, Uri uri) throws IOException
+	{
+		if (RemoteFetcher.isRemote(uri.getScheme()))
+		{
+			return RemoteFetcher.get().open(uri.toString());
+		}
+		InputStream in = resolver.openInputStream(uri);
+		if (in == null)
+		{
+			throw new FileNotFoundException(uri.toString());
+		}
+		return in;
+	}
+
+	public static ImageType sniff(ContentResolver resolver, Uri uri) throws IOException
+	{
+		InputStream in = open(resolver, uri);
+		try
+		{
+			return sniff(in);
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+	}
+
+	// Reads the magic bytes, resetting the stream back to the start if it supports marking.
+	public static ImageType sniff(InputStream in) throws IOException
+	{
+		byte[] header = new byte[ImageType.HEADER_SIZE];
+		if (in.markSupported())
+		{
+			in.mark(header.length);
+		}
+		int length = 0;
+		int read;
+		while (length < header.length && (read = in.read(header, length, header.length - length)) > 0)
+		{
+			length += read;
+		}
+		if (in.markSupported())
+		{
+			in.reset();
+		}
+		return ImageType.sniff(header, length);
+	}
+
+	// Returns {width, height} of the full resolution image or null.
+	public static int[] decodeBounds(ContentResolver resolver, Uri uri) throws IOException
+	{
+		InputStream in = new BufferedInputStream(open(resolver, uri));
+		try
+		{
+			return Cropper.getBitmapDecoder().decodeBounds(in, sniff(in));
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+	}
+
+	public static Bitmap decode(ContentResolver resolver, Uri uri, int sampleSize) throws IOException
+	{
+		InputStream in = new BufferedInputStream(open(resolver, uri));
+		try
+		{
+			return Cropper.getBitmapDecoder().decode(in, sniff(in), sampleSize);
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+	}
+
+	// Decodes a region given in full resolution coordinates. Formats without region support
+	// are streamed through a subsampled full decode and cropped afterwards.
+	public static Bitmap decodeRegion(ContentResolver resolver, Uri uri, Rect region, int sampleSize)
+		throws IOException
+	{
+		BitmapDecoder decoder = Cropper.getBitmapDecoder();
+		ImageType type;
+		InputStream in = new BufferedInputStream(open(resolver, uri));
+		try
+		{
+			type = sniff(in);
+			if (type.supportsRegionDecode())
+			{
+				Bitmap b = decoder.decodeRegion(in, type, region, sampleSize);
+				if (b != null)
+				{
+					return b;
+				}
+			}
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+
+		int[] bounds = decodeBounds(resolver, uri);
+		Bitmap full = decode(resolver, uri, sampleSize);
+		if (bounds == null || full == null)
+		{
+			return null;
+		}
+
+		// The decoder may round the sample size, so derive the real one from the result.
+		float scaleX = (float) full.getWidth() / bounds[0];
+		float scaleY = (float) full.getHeight() / bounds[1];
+		int left = Math.max(0, Math.round(region.left * scaleX));
+		int top = Math.max(0, Math.round(region.top * scaleY));
+		int right = Math.min(full.getWidth(), Math.round(region.right * scaleX));
+		int bottom = Math.min(full.getHeight(), Math.round(region.bottom * scaleY));
+		if (right <= left || bottom <= top)
+		{
+			return null;
+		}
+
+		Bitmap b = Bitmap.createBitmap(full, left, top, right - left, bottom - top);
+		if (b != full)
+		{
+			full.recycle();
+		}
+		return b;
+	}
+}
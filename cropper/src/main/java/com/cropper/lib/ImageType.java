@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+/**
+ * Image formats recognized from the leading bytes of the image data.
+ */
+public enum ImageType
+{
+	JPEG,
+	PNG,
+	GIF,
+	WEBP,
+	BMP,
+	UNKNOWN;
+
+	/**
+	 * Number of leading bytes needed by {@code sniff}.
+	 */
+	public static final int HEADER_SIZE = 12;
+
+	/**
+	 * Whether the format can be decoded by region without decoding the whole image.
+	 */
+	public boolean supportsRegionDecode()
+	{
+		return this == JPEG || this == PNG;
+	}
+
+	/**
+	 * Recognize the format from the magic bytes at the start of the image data.
+	 *
+	 * @param header Leading bytes of the image.
+	 * @param length Number of valid bytes in {@code header}.
+	 */
+	public static ImageType sniff(byte[] header, int length)
+	{
+		if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8
+			&& (header[2] & 0xFF) == 0xFF)
+		{
+			return JPEG;
+		}
+		if (length >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N'
+			&& header[3] == 'G' && header[4] == 0x0D && header[5] == 0x0A && header[6] == 0x1A
+			&& header[7] == 0x0A)
+		{
+			return PNG;
+		}
+		if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F'
+			&& header[3] == '8' && (header[4] == '7' || header[4] == '9') && header[5] == 'a')
+		{
+			return GIF;
+		}
+		if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F'
+			&& header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B'
+			&& header[11] == 'P')
+		{
+			return WEBP;
+		}
+		if (length >= 2 && header[0] == 'B' && header[1] == 'M')
+		{
+			return BMP;
+		}
+		return UNKNOWN;
+	}
+}
@@ -53,6 +53,9 @@ abstract class ImageViewTouchBase extends ImageView
 	// of the base matrix and the supplementary matrix.
 	private final Matrix mDisplayMatrix = new Matrix();
 
+	// Display matrix without the straightening rotation, see getCropMatrix().
+	private final Matrix mCropMatrix = new Matrix();
+
 	// Temporary buffer used for getting the values out of a matrix.
 	private final float[] mMatrixValues = new float[9];
 
@@ -127,10 +130,10 @@ abstract class ImageViewTouchBase extends ImageView
 	@Override
 	public void setImageBitmap(Bitmap bitmap)
 	{
-		setImageBitmap(bitmap, 0);
+		setImageBitmap(bitmap, 0, 0F);
 	}
 
-	private void setImageBitmap(Bitmap bitmap, int rotation)
+	private void setImageBitmap(Bitmap bitmap, int rotation, float straighten)
 	{
 		super.setImageBitmap(bitmap);
 		Drawable d = getDrawable();
@@ -142,6 +145,7 @@ abstract class ImageViewTouchBase extends ImageView
 		Bitmap old = mBitmapDisplayed.getBitmap();
 		mBitmapDisplayed.setBitmap(bitmap);
 		mBitmapDisplayed.setRotation(rotation);
+		mBitmapDisplayed.setStraighten(straighten);
 
 		if (old != null && old != bitmap && mRecycler != null)
 		{
@@ -185,7 +189,7 @@ abstract class ImageViewTouchBase extends ImageView
 		if (bitmap.getBitmap() != null)
 		{
 			getProperBaseMatrix(bitmap, mBaseMatrix);
-			setImageBitmap(bitmap.getBitmap(), bitmap.getRotation());
+			setImageBitmap(bitmap.getBitmap(), bitmap.getRotation(), bitmap.getStraighten());
 		}
 		else
 		{
@@ -333,6 +337,20 @@ abstract class ImageViewTouchBase extends ImageView
 		return mDisplayMatrix;
 	}
 
+	// The display matrix without the straightening rotation. Crop rectangles are axis aligned in
+	// this space, which shares its bounds with the unrotated bitmap.
+	protected Matrix getCropMatrix()
+	{
+		mCropMatrix.set(getImageViewMatrix());
+		float straighten = mBitmapDisplayed.getStraighten();
+		if (straighten != 0F)
+		{
+			mCropMatrix.preRotate(-straighten,
+				mBitmapDisplayed.getWidth() / 2F, mBitmapDisplayed.getHeight() / 2F);
+		}
+		return mCropMatrix;
+	}
+
 	static final float SCALE_RATE = 1.25F;
 
 	// Sets the maximum zoom, which is a scale relative to the base matrix. It
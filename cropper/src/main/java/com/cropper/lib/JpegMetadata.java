@@ -0,0 +1,547 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exif and ICC profile segments of a JPEG, carried over to another JPEG. Only the segments
+ * before the image data are read from the source, and they are inserted into the output while
+ * it is being written, so neither file is read or written twice.
+ */
+final class JpegMetadata
+{
+	private static final int SOI = 0xD8;
+	private static final int SOS = 0xDA;
+	private static final int EOI = 0xD9;
+	private static final int APP0 = 0xE0;
+	private static final int APP1 = 0xE1;
+	private static final int APP2 = 0xE2;
+	// Largest payload of a segment.
+	private static final int MAX_SEGMENT = 0xFFFF - 2;
+
+	private static final byte[] EXIF = {'E', 'x', 'i', 'f', 0, 0};
+	private static final byte[] ICC_PROFILE = {'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0};
+	private static final int TIFF = EXIF.length;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_GPS_IFD = 0x8825;
+	private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+	private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+	private static final int TYPE_SHORT = 3;
+	// Size in bytes of the TIFF field types, by type.
+	private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+	private byte[] mExif;
+	private int mExifLength;
+	private boolean mLittleEndian;
+	private final List<byte[]> mIccProfile = new ArrayList<byte[]>();
+
+	private JpegMetadata()
+	{
+	}
+
+	/**
+	 * Reads the segments up to the image data.
+	 *
+	 * @return The metadata or null if the stream isn't a JPEG.
+	 */
+	public static JpegMetadata read(InputStream input) throws IOException
+	{
+		InputStream in = new BufferedInputStream(input, 8192);
+		if (in.read() != 0xFF || in.read() != SOI)
+		{
+			return null;
+		}
+		JpegMetadata metadata = new JpegMetadata();
+		while (true)
+		{
+			int b = in.read();
+			while (b == 0xFF)
+			{
+				b = in.read();
+			}
+			if (b < 0 || b == SOS || b == EOI)
+			{
+				return metadata;
+			}
+			int length = ((in.read() << 8) | in.read()) - 2;
+			if (length < 0)
+			{
+				return metadata;
+			}
+			if ((b == APP1 && metadata.mExif == null) || b == APP2)
+			{
+				byte[] segment = new byte[length];
+				readFully(in, segment);
+				if (b == APP1 && startsWith(segment, EXIF))
+				{
+					metadata.mExif = segment;
+					metadata.mExifLength = segment.length;
+				}
+				else if (b == APP2 && startsWith(segment, ICC_PROFILE))
+				{
+					metadata.mIccProfile.add(segment);
+				}
+			}
+			else
+			{
+				skipFully(in, length);
+			}
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return mExif == null && mIccProfile.isEmpty();
+	}
+
+	// Bytes the segments add to the output.
+	public int size()
+	{
+		int size = mExif != null ? 4 + mExifLength : 0;
+		for (byte[] icc : mIccProfile)
+		{
+			size += 4 + icc.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Drops what doesn't fit in the given size: the thumbnail first, then the color profile
+	 * and finally the Exif. Call it after {@link #rewriteExif}.
+	 *
+	 * @return The size of the segments left.
+	 */
+	public int fit(int maxBytes)
+	{
+		if (size() > maxBytes && mExif != null)
+		{
+			try
+			{
+				replaceThumbnail(u32(TIFF + 4), null);
+			}
+			catch (IndexOutOfBoundsException e)
+			{
+				mExif = null;
+			}
+		}
+		if (size() > maxBytes)
+		{
+			mIccProfile.clear();
+		}
+		if (size() > maxBytes)
+		{
+			mExif = null;
+		}
+		return size();
+	}
+
+	/**
+	 * Adapts the Exif to the cropped image. Its orientation is reset as the pixels are stored
+	 * upright, the pixel dimensions are updated and the thumbnail is replaced. Exif that can't
+	 * be parsed is dropped.
+	 *
+	 * @param width     Width of the output, or 0 to remove the dimension tags.
+	 * @param keepGps   Whether to keep the location, otherwise it is erased.
+	 * @param thumbnail JPEG thumbnail of the output, or null to remove the thumbnail.
+	 */
+	public void rewriteExif(int width, int height, boolean keepGps, byte[] thumbnail)
+	{
+		if (mExif == null)
+		{
+			return;
+		}
+		try
+		{
+			rewriteTiff(width, height, keepGps, thumbnail);
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// Offsets point outside of the segment.
+			mExif = null;
+		}
+	}
+
+	private void rewriteTiff(int width, int height, boolean keepGps, byte[] thumbnail)
+	{
+		if (mExif[TIFF] == 'I' && mExif[TIFF + 1] == 'I')
+		{
+			mLittleEndian = true;
+		}
+		else if (mExif[TIFF] != 'M' || mExif[TIFF + 1] != 'M')
+		{
+			throw new IndexOutOfBoundsException("Not a TIFF header");
+		}
+		int ifd0 = u32(TIFF + 4);
+
+		int entry = findEntry(ifd0, TAG_ORIENTATION);
+		if (entry >= 0)
+		{
+			put16(entry + 8, 1);
+		}
+
+		entry = findEntry(ifd0, TAG_EXIF_IFD);
+		if (entry >= 0)
+		{
+			int exifIfd = u32(entry + 8);
+			setDimension(exifIfd, TAG_PIXEL_X_DIMENSION, width);
+			setDimension(exifIfd, TAG_PIXEL_Y_DIMENSION, height);
+		}
+
+		entry = findEntry(ifd0, TAG_GPS_IFD);
+		if (entry >= 0 && !keepGps)
+		{
+			eraseIfd(u32(entry + 8));
+			removeEntry(ifd0, entry);
+		}
+
+		replaceThumbnail(ifd0, thumbnail);
+	}
+
+	private void setDimension(int ifd, int tag, int value)
+	{
+		int entry = findEntry(ifd, tag);
+		if (entry < 0)
+		{
+			return;
+		}
+		if (value <= 0)
+		{
+			removeEntry(ifd, entry);
+		}
+		else if (u16(entry + 2) == TYPE_SHORT)
+		{
+			put16(entry + 8, Math.min(0xFFFF, value));
+		}
+		else
+		{
+			put32(entry + 8, value);
+		}
+	}
+
+	// The thumbnail in IFD1 shows the whole image. It is replaced if it is stored last, which
+	// is where writers put it, otherwise it is erased and IFD1 is unlinked.
+	private void replaceThumbnail(int ifd0, byte[] thumbnail)
+	{
+		int next = TIFF + ifd0 + 2 + 12 * u16(TIFF + ifd0);
+		int ifd1 = u32(next);
+		if (ifd1 == 0)
+		{
+			return;
+		}
+		int offsetEntry = findEntry(ifd1, TAG_THUMBNAIL_OFFSET);
+		int lengthEntry = findEntry(ifd1, TAG_THUMBNAIL_LENGTH);
+		if (offsetEntry < 0 || lengthEntry < 0)
+		{
+			return;
+		}
+		int offset = u32(offsetEntry + 8);
+		int length = u32(lengthEntry + 8);
+		check(TIFF + offset, length);
+		boolean last = TIFF + offset + length == mExifLength;
+
+		if (last && thumbnail != null && TIFF + offset + thumbnail.length <= MAX_SEGMENT)
+		{
+			mExifLength = TIFF + offset + thumbnail.length;
+			if (mExifLength > mExif.length)
+			{
+				byte[] exif = new byte[mExifLength];
+				System.arraycopy(mExif, 0, exif, 0, TIFF + offset);
+				mExif = exif;
+			}
+			System.arraycopy(thumbnail, 0, mExif, TIFF + offset, thumbnail.length);
+			put32(lengthEntry + 8, thumbnail.length);
+			return;
+		}
+
+		// The old thumbnail would show what was cropped away.
+		fill(TIFF + offset, length);
+		if (last)
+		{
+			mExifLength = TIFF + offset;
+		}
+		put32(next, 0);
+	}
+
+	// Zeroes the entries of the IFD and the values they point to.
+	private void eraseIfd(int ifd)
+	{
+		int count = u16(TIFF + ifd);
+		for (int i = 0; i < count; i++)
+		{
+			int entry = TIFF + ifd + 2 + 12 * i;
+			int type = u16(entry + 2);
+			int size = type < TYPE_SIZES.length ? TYPE_SIZES[type] * u32(entry + 4) : 0;
+			if (size > 4)
+			{
+				fill(TIFF + u32(entry + 8), size);
+			}
+		}
+		fill(TIFF + ifd, 2 + 12 * count + 4);
+	}
+
+	// Position of the entry with the tag in the segment, or -1.
+	private int findEntry(int ifd, int tag)
+	{
+		int count = u16(TIFF + ifd);
+		for (int i = 0; i < count; i++)
+		{
+			int entry = TIFF + ifd + 2 + 12 * i;
+			if (u16(entry) == tag)
+			{
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	// Removes the entry by moving the following ones and the next IFD offset over it.
+	private void removeEntry(int ifd, int entry)
+	{
+		int count = u16(TIFF + ifd);
+		int end = TIFF + ifd + 2 + 12 * count + 4;
+		check(entry, end - entry);
+		System.arraycopy(mExif, entry + 12, mExif, entry, end - entry - 12);
+		fill(end - 12, 12);
+		put16(TIFF + ifd, count - 1);
+	}
+
+	/**
+	 * Wraps the output of a JPEG encoder so the segments are inserted after the start of the
+	 * image and the JFIF header, if there is one.
+	 */
+	public OutputStream inject(OutputStream out)
+	{
+		List<byte[]> segments = new ArrayList<byte[]>();
+		if (mExif != null)
+		{
+			segments.add(segment(APP1, mExif, mExifLength));
+		}
+		for (byte[] icc : mIccProfile)
+		{
+			segments.add(segment(APP2, icc, icc.length));
+		}
+		return new Injector(out, segments);
+	}
+
+	private static byte[] segment(int marker, byte[] payload, int length)
+	{
+		byte[] segment = new byte[4 + length];
+		segment[0] = (byte) 0xFF;
+		segment[1] = (byte) marker;
+		segment[2] = (byte) ((length + 2) >> 8);
+		segment[3] = (byte) (length + 2);
+		System.arraycopy(payload, 0, segment, 4, length);
+		return segment;
+	}
+
+	private static final class Injector extends FilterOutputStream
+	{
+		private final List<byte[]> mSegments;
+		private boolean mInjected;
+		// Bytes of the output seen so far, until the segments are written.
+		private int mPosition;
+		// Bytes of the JFIF header to let through before writing the segments.
+		private int mRemaining = -1;
+		private int mLength;
+
+		Injector(OutputStream out, List<byte[]> segments)
+		{
+			super(out);
+			mSegments = segments;
+			mInjected = segments.isEmpty();
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (mInjected)
+			{
+				out.write(b);
+				return;
+			}
+
+			b &= 0xFF;
+			int position = mPosition++;
+			if (position < 2)
+			{
+				// Start of the image.
+				out.write(b);
+			}
+			else if (position == 2)
+			{
+				// Held back until we know which marker it starts.
+			}
+			else if (position == 3)
+			{
+				if (b != APP0)
+				{
+					injectSegments();
+				}
+				out.write(0xFF);
+				out.write(b);
+			}
+			else
+			{
+				out.write(b);
+				if (position < 6)
+				{
+					mLength = (mLength << 8) | b;
+					if (position == 5)
+					{
+						mRemaining = mLength - 2;
+					}
+				}
+				else
+				{
+					mRemaining--;
+				}
+				if (position >= 5 && mRemaining == 0)
+				{
+					injectSegments();
+				}
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0 && !mInjected)
+			{
+				write(b[off++]);
+				len--;
+			}
+			if (len > 0)
+			{
+				out.write(b, off, len);
+			}
+		}
+
+		private void injectSegments() throws IOException
+		{
+			for (byte[] segment : mSegments)
+			{
+				out.write(segment);
+			}
+			mInjected = true;
+		}
+	}
+
+	private int u16(int p)
+	{
+		check(p, 2);
+		int a = mExif[p] & 0xFF;
+		int b = mExif[p + 1] & 0xFF;
+		return mLittleEndian ? (b << 8) | a : (a << 8) | b;
+	}
+
+	private int u32(int p)
+	{
+		check(p, 4);
+		return mLittleEndian
+			? (u16(p + 2) << 16) | u16(p)
+			: (u16(p) << 16) | u16(p + 2);
+	}
+
+	private void put16(int p, int value)
+	{
+		check(p, 2);
+		mExif[p + (mLittleEndian ? 0 : 1)] = (byte) value;
+		mExif[p + (mLittleEndian ? 1 : 0)] = (byte) (value >> 8);
+	}
+
+	private void put32(int p, int value)
+	{
+		put16(p + (mLittleEndian ? 0 : 2), value);
+		put16(p + (mLittleEndian ? 2 : 0), value >>> 16);
+	}
+
+	private void fill(int p, int length)
+	{
+		check(p, length);
+		for (int i = 0; i < length; i++)
+		{
+			mExif[p + i] = 0;
+		}
+	}
+
+	private void check(int p, int length)
+	{
+		if (p < TIFF || length < 0 || p + length > mExifLength)
+		{
+			throw new IndexOutOfBoundsException("Offset " + p + " outside of the Exif segment");
+		}
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix)
+	{
+		if (b.length < prefix.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (b[i] != prefix[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte[] b) throws IOException
+	{
+		int offset = 0;
+		while (offset < b.length)
+		{
+			int n = in.read(b, offset, b.length - offset);
+			if (n < 0)
+			{
+				throw new EOFException();
+			}
+			offset += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException
+	{
+		while (n > 0)
+		{
+			long skipped = in.skip(n);
+			if (skipped <= 0)
+			{
+				if (in.read() < 0)
+				{
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
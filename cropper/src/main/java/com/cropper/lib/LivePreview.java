@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.*;
+
+// Renders what the output will look like while the crop is being changed: the output size,
+// scaling, letterboxing, blurred bars and circle mask, but drawn straight from the bitmap on
+// screen at a small size instead of running the full resolution pipeline.
+final class LivePreview
+{
+	private final int mSize;
+	private final int mOutputX;
+	private final int mOutputY;
+	private final boolean mScale;
+	private final boolean mScaleUp;
+	private final boolean mCircle;
+	private final boolean mBlurBackground;
+
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Matrix mMatrix = new Matrix();
+	private final Path mPath = new Path();
+	private final RectF mContent = new RectF();
+	private final Rect mRegion = new Rect();
+	private final float[] mRect = new float[8];
+	private Bitmap mBitmap;
+
+	/**
+	 * @param size Longer side of the preview in pixels.
+	 */
+	LivePreview(int size, int outputX, int outputY, boolean scale, boolean scaleUp,
+	            boolean circle, boolean blurBackground)
+	{
+		mSize = size;
+		mOutputX = outputX;
+		mOutputY = outputY;
+		mScale = scale;
+		mScaleUp = scaleUp;
+		mCircle = circle;
+		mBlurBackground = blurBackground;
+	}
+
+	/**
+	 * Renders the crop rectangle of a source shown straightened by the given angle. Returns
+	 * the preview, which is reused by later calls of the same size.
+	 */
+	Bitmap render(Bitmap source, Rect crop, float straighten)
+	{
+		mMatrix.setRotate(straighten, source.getWidth() / 2F, source.getHeight() / 2F);
+		mMatrix.postTranslate(-crop.left, -crop.top);
+		return render(source, mMatrix, crop.width(), crop.height(), crop);
+	}
+
+	/**
+	 * Renders the quad of a source rectified into a rectangle, see PerspectiveWarp.
+	 */
+	Bitmap renderQuad(Bitmap source, float[] quad)
+	{
+		int[] size = PerspectiveWarp.getOutputSize(quad);
+		mRect[0] = 0F;
+		mRect[1] = 0F;
+		mRect[2] = size[0];
+		mRect[3] = 0F;
+		mRect[4] = size[0];
+		mRect[5] = size[1];
+		mRect[6] = 0F;
+		mRect[7] = size[1];
+		mMatrix.setPolyToPoly(quad, 0, mRect, 0, 4);
+		float left = Math.min(Math.min(quad[0], quad[2]), Math.min(quad[4], quad[6]));
+		float top = Math.min(Math.min(quad[1], quad[3]), Math.min(quad[5], quad[7]));
+		float right = Math.max(Math.max(quad[0], quad[2]), Math.max(quad[4], quad[6]));
+		float bottom = Math.max(Math.max(quad[1], quad[3]), Math.max(quad[5], quad[7]));
+		mRegion.set((int) left, (int) top, (int) Math.ceil(right), (int) Math.ceil(bottom));
+		return render(source, mMatrix, size[0], size[1], mRegion);
+	}
+
+	// Draws the source mapped into crop space by toCrop, where the crop is width by height,
+	// framed like CropImageActivity.cropImage frames it. The region is the crop in the source,
+	// which the blurred backdrop is made from.
+	private Bitmap render(Bitmap source, Matrix toCrop, int width, int height, Rect region)
+	{
+		if (width <= 0 || height <= 0)
+		{
+			return mBitmap;
+		}
+
+		// Size of the output and the scale of the crop within it.
+		int outputWidth = width;
+		int outputHeight = height;
+		float scale = 1F;
+		if (mOutputX != 0 && mOutputY != 0)
+		{
+			outputWidth = mOutputX;
+			outputHeight = mOutputY;
+			if (mScale)
+			{
+				scale = Util.getTransformScale(width, height, mOutputX, mOutputY, mScaleUp);
+			}
+		}
+
+		float previewScale = (float) mSize / Math.max(outputWidth, outputHeight);
+		int previewWidth = Math.max(1, Math.round(outputWidth * previewScale));
+		int previewHeight = Math.max(1, Math.round(outputHeight * previewScale));
+		if (mBitmap == null || mBitmap.getWidth() != previewWidth || mBitmap.getHeight() != previewHeight)
+		{
+			mBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
+		}
+		mBitmap.eraseColor(Color.TRANSPARENT);
+		Canvas canvas = new Canvas(mBitmap);
+
+		// The crop is centered in the output.
+		float s = scale * previewScale;
+		mContent.set(previewWidth / 2F - width * s / 2F, previewHeight / 2F - height * s / 2F,
+			previewWidth / 2F + width * s / 2F, previewHeight / 2F + height * s / 2F);
+		boolean bars = mContent.left > 0F || mContent.top > 0F
+			|| mContent.right < previewWidth || mContent.bottom < previewHeight;
+
+		mPath.reset();
+		if (mCircle)
+		{
+			mPath.addCircle(mContent.centerX(), mContent.centerY(), width * s / 2F, Path.Direction.CW);
+		}
+
+		canvas.save();
+		if (mCircle && mScale && mOutputX != 0 && mOutputY != 0)
+		{
+			// The scaled output is masked as a whole, bars included.
+			canvas.clipPath(mPath);
+		}
+		if (mBlurBackground && bars && mOutputX != 0 && mOutputY != 0)
+		{
+			Bitmap backdrop = Util.createBackdrop(source, region, previewWidth, previewHeight);
+			canvas.drawBitmap(backdrop, 0F, 0F, null);
+			backdrop.recycle();
+		}
+
+		canvas.clipRect(mContent);
+		if (mCircle)
+		{
+			canvas.clipPath(mPath);
+		}
+		canvas.translate(mContent.left, mContent.top);
+		canvas.scale(s, s);
+		canvas.concat(toCrop);
+		canvas.drawBitmap(source, 0F, 0F, mPaint);
+		canvas.restore();
+		return mBitmap;
+	}
+}
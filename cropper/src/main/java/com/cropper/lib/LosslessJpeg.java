@@ -0,0 +1,1004 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Crops and rotates baseline JPEGs without decoding pixels, like jpegtran. The entropy coded
+ * data is decoded to DCT coefficients only, blocks outside the crop are dropped and the rest
+ * are rotated in the coefficient domain and Huffman coded again. There is no generation loss.
+ * <p/>
+ * The crop is snapped outwards to the iMCU grid at its top left corner. Edges that end up at
+ * the top or left of the rotated image have to lie on the grid as well, so the crop is trimmed
+ * at those edges, which is what jpegtran's -trim does.
+ */
+final class LosslessJpeg
+{
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int DQT = 0xDB;
+	private static final int DHT = 0xC4;
+	private static final int DRI = 0xDD;
+	private static final int SOF0 = 0xC0;
+	private static final int SOF1 = 0xC1;
+	private static final int APP14 = 0xEE;
+
+	// Position in the block of the n-th coefficient in zigzag order.
+	static final int[] ZIGZAG = {
+		0, 1, 8, 16, 9, 2, 3, 10,
+		17, 24, 32, 25, 18, 11, 4, 5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13, 6, 7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63};
+
+	// Typical Huffman tables from Annex K of the specification, which cover every symbol.
+	private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+	private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+	private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+	private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D};
+	private static final int[] AC_LUMINANCE_VALUES = {
+		0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+		0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08, 0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+		0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+		0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+		0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+		0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+		0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+		0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+		0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+		0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+		0xF9, 0xFA};
+	private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+	private static final int[] AC_CHROMINANCE_VALUES = {
+		0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+		0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+		0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34, 0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+		0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+		0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+		0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+		0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+		0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+		0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+		0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+		0xF9, 0xFA};
+
+	private LosslessJpeg()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Crops the JPEG and rotates it clockwise. Nothing is written if the image isn't a baseline
+	 * JPEG with a single interleaved scan, in which case the caller should fall back to
+	 * decoding it.
+	 *
+	 * @param left     Crop in pixels of the source image.
+	 * @param rotation Multiple of 90 degrees.
+	 * @return Whether the image was written.
+	 */
+	public static boolean transform(InputStream input, OutputStream output,
+	                                int left, int top, int right, int bottom, int rotation)
+		throws IOException
+	{
+		Decoder decoder = new Decoder(new BufferedInputStream(input, 16384));
+		if (!decoder.readHeaders())
+		{
+			return false;
+		}
+
+		rotation = ((rotation % 360) + 360) % 360;
+		Frame frame = decoder.frame;
+		int mcuWidth = 8 * frame.maxH;
+		int mcuHeight = 8 * frame.maxV;
+
+		// Snap the top left corner to the grid and trim the edges that become the top or left.
+		left = Math.max(0, Math.min(frame.width - 1, left)) / mcuWidth * mcuWidth;
+		top = Math.max(0, Math.min(frame.height - 1, top)) / mcuHeight * mcuHeight;
+		right = Math.max(left + 1, Math.min(frame.width, right));
+		bottom = Math.max(top + 1, Math.min(frame.height, bottom));
+		if (rotation == 180 || rotation == 270)
+		{
+			right = left + Math.max(1, (right - left) / mcuWidth) * mcuWidth;
+		}
+		if (rotation == 90 || rotation == 180)
+		{
+			bottom = top + Math.max(1, (bottom - top) / mcuHeight) * mcuHeight;
+		}
+		right = Math.min(frame.width, right);
+		bottom = Math.min(frame.height, bottom);
+
+		Crop crop = new Crop(frame, left / mcuWidth, top / mcuHeight,
+			(right + mcuWidth - 1) / mcuWidth, (bottom + mcuHeight - 1) / mcuHeight,
+			right - left, bottom - top);
+
+		BufferedOutputStream out = new BufferedOutputStream(output, 16384);
+		Encoder encoder = new Encoder(out, frame, rotation, crop);
+		encoder.writeHeaders(decoder);
+		if (rotation == 0)
+		{
+			// Blocks come in the output order, code them as they are decoded.
+			decoder.decode(crop, encoder);
+		}
+		else
+		{
+			crop.allocate();
+			decoder.decode(crop, crop);
+			encoder.writeRotated(crop);
+		}
+		encoder.finish();
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * Reads the headers of the JPEG to tell whether {@link #transform} supports it, without
+	 * decoding the scan.
+	 *
+	 * @return Width and height of the image, or null if it isn't supported.
+	 */
+	public static int[] readSize(InputStream input) throws IOException
+	{
+		Decoder decoder = new Decoder(new BufferedInputStream(input, 16384));
+		if (!decoder.readHeaders())
+		{
+			return null;
+		}
+		return new int[]{decoder.frame.width, decoder.frame.height};
+	}
+
+	// Receives the decoded blocks inside the crop in scan order.
+	interface BlockSink
+	{
+		void block(int component, int x, int y, short[] coefficients) throws IOException;
+	}
+
+	private static final class Component
+	{
+		int id;
+		int h;
+		int v;
+		int quantTable;
+		int dcTable;
+		int acTable;
+	}
+
+	private static final class Frame
+	{
+		int width;
+		int height;
+		int maxH;
+		int maxV;
+		Component[] components;
+		int[][] quantTables = new int[4][];
+	}
+
+	// Range of MCUs kept and, for the rotated case, their coefficients.
+	private static final class Crop implements BlockSink
+	{
+		final Frame frame;
+		final int mcuLeft;
+		final int mcuTop;
+		final int mcuRight;
+		final int mcuBottom;
+		final int width;
+		final int height;
+		short[][][] blocks;
+
+		Crop(Frame frame, int mcuLeft, int mcuTop, int mcuRight, int mcuBottom, int width, int height)
+		{
+			this.frame = frame;
+			this.mcuLeft = mcuLeft;
+			this.mcuTop = mcuTop;
+			this.mcuRight = mcuRight;
+			this.mcuBottom = mcuBottom;
+			this.width = width;
+			this.height = height;
+		}
+
+		int blocksWide(int component)
+		{
+			return (mcuRight - mcuLeft) * frame.components[component].h;
+		}
+
+		int blocksHigh(int component)
+		{
+			return (mcuBottom - mcuTop) * frame.components[component].v;
+		}
+
+		void allocate()
+		{
+			blocks = new short[frame.components.length][][];
+			for (int c = 0; c < blocks.length; c++)
+			{
+				blocks[c] = new short[blocksWide(c) * blocksHigh(c)][];
+			}
+		}
+
+		public void block(int component, int x, int y, short[] coefficients)
+		{
+			blocks[component][y * blocksWide(component) + x] = coefficients.clone();
+		}
+	}
+
+	private static final class HuffmanTable
+	{
+		private static final int LOOKAHEAD = 9;
+
+		// Code lengths and symbols for codes up to LOOKAHEAD bits, indexed by the next bits.
+		final int[] lookahead = new int[1 << LOOKAHEAD];
+		final int[] maxCode = new int[18];
+		final int[] valueOffset = new int[17];
+		final int[] values;
+
+		HuffmanTable(int[] bits, int[] values)
+		{
+			this.values = values;
+			int code = 0;
+			int k = 0;
+			for (int length = 1; length <= 16; length++)
+			{
+				valueOffset[length] = k - code;
+				for (int i = 0; i < bits[length - 1]; i++, k++, code++)
+				{
+					if (length <= LOOKAHEAD)
+					{
+						int shift = LOOKAHEAD - length;
+						for (int j = 0; j < (1 << shift); j++)
+						{
+							lookahead[(code << shift) | j] = (length << 8) | values[k];
+						}
+					}
+				}
+				maxCode[length] = bits[length - 1] > 0 ? code - 1 : -1;
+				code <<= 1;
+			}
+			maxCode[17] = Integer.MAX_VALUE;
+		}
+	}
+
+	private static final class Decoder
+	{
+		private final InputStream in;
+		final Frame frame = new Frame();
+		private final HuffmanTable[] dcTables = new HuffmanTable[4];
+		private final HuffmanTable[] acTables = new HuffmanTable[4];
+		private int restartInterval;
+		byte[] adobe;
+
+		private int bits;
+		private int bitCount;
+		private boolean markerHit;
+
+		Decoder(InputStream in)
+		{
+			this.in = in;
+		}
+
+		// Reads the segments up to the start of the scan, returns false if the image isn't supported.
+		boolean readHeaders() throws IOException
+		{
+			if (readByte() != 0xFF || readByte() != SOI)
+			{
+				return false;
+			}
+			boolean haveFrame = false;
+			while (true)
+			{
+				int marker = readMarker();
+				if (marker == SOS)
+				{
+					return haveFrame && readScanHeader();
+				}
+				if (marker == EOI)
+				{
+					return false;
+				}
+				byte[] segment = new byte[readUnsigned16() - 2];
+				readFully(segment);
+				switch (marker)
+				{
+					case SOF0:
+					case SOF1:
+						if (!readFrame(segment))
+						{
+							return false;
+						}
+						haveFrame = true;
+						break;
+					case DQT:
+						if (!readQuantTables(segment))
+						{
+							return false;
+						}
+						break;
+					case DHT:
+						readHuffmanTables(segment);
+						break;
+					case DRI:
+						restartInterval = ((segment[0] & 0xFF) << 8) | (segment[1] & 0xFF);
+						break;
+					case APP14:
+						// Tells how the color components are transformed, has to be kept.
+						adobe = segment;
+						break;
+					default:
+						// Progressive, lossless, hierarchical and arithmetic coding aren't supported.
+						if (marker >= 0xC0 && marker <= 0xCF && marker != DHT && marker != 0xC8 && marker != 0xCC)
+						{
+							return false;
+						}
+						break;
+				}
+			}
+		}
+
+		private boolean readFrame(byte[] s)
+		{
+			if ((s[0] & 0xFF) != 8)
+			{
+				return false;
+			}
+			frame.height = ((s[1] & 0xFF) << 8) | (s[2] & 0xFF);
+			frame.width = ((s[3] & 0xFF) << 8) | (s[4] & 0xFF);
+			int count = s[5] & 0xFF;
+			if (frame.width == 0 || frame.height == 0 || count == 0)
+			{
+				return false;
+			}
+			frame.components = new Component[count];
+			for (int i = 0; i < count; i++)
+			{
+				Component c = new Component();
+				c.id = s[6 + 3 * i] & 0xFF;
+				c.h = (s[7 + 3 * i] & 0xFF) >> 4;
+				c.v = s[7 + 3 * i] & 0x0F;
+				c.quantTable = s[8 + 3 * i] & 0xFF;
+				if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.quantTable > 3)
+				{
+					return false;
+				}
+				if (count == 1)
+				{
+					// A single component scan isn't interleaved, its MCU is one block.
+					c.h = c.v = 1;
+				}
+				frame.maxH = Math.max(frame.maxH, c.h);
+				frame.maxV = Math.max(frame.maxV, c.v);
+				frame.components[i] = c;
+			}
+			return true;
+		}
+
+		private boolean readQuantTables(byte[] s)
+		{
+			int p = 0;
+			while (p < s.length)
+			{
+				int precision = (s[p] & 0xFF) >> 4;
+				int id = s[p] & 0x0F;
+				if (precision != 0 || id > 3)
+				{
+					return false;
+				}
+				int[] table = new int[64];
+				for (int i = 0; i < 64; i++)
+				{
+					table[ZIGZAG[i]] = s[p + 1 + i] & 0xFF;
+				}
+				frame.quantTables[id] = table;
+				p += 65;
+			}
+			return true;
+		}
+
+		private void readHuffmanTables(byte[] s)
+		{
+			int p = 0;
+			while (p < s.length)
+			{
+				int tableClass = (s[p] & 0xFF) >> 4;
+				int id = s[p] & 0x03;
+				int[] counts = new int[16];
+				int total = 0;
+				for (int i = 0; i < 16; i++)
+				{
+					counts[i] = s[p + 1 + i] & 0xFF;
+					total += counts[i];
+				}
+				int[] values = new int[total];
+				for (int i = 0; i < total; i++)
+				{
+					values[i] = s[p + 17 + i] & 0xFF;
+				}
+				HuffmanTable table = new HuffmanTable(counts, values);
+				if (tableClass == 0)
+				{
+					dcTables[id] = table;
+				}
+				else
+				{
+					acTables[id] = table;
+				}
+				p += 17 + total;
+			}
+		}
+
+		private boolean readScanHeader() throws IOException
+		{
+			byte[] s = new byte[readUnsigned16() - 2];
+			readFully(s);
+			int count = s[0] & 0xFF;
+			if (count != frame.components.length)
+			{
+				// Components coded in separate scans.
+				return false;
+			}
+			for (int i = 0; i < count; i++)
+			{
+				int id = s[1 + 2 * i] & 0xFF;
+				Component c = frame.components[i];
+				if (c.id != id)
+				{
+					return false;
+				}
+				c.dcTable = (s[2 + 2 * i] & 0xFF) >> 4;
+				c.acTable = s[2 + 2 * i] & 0x03;
+				if (c.dcTable > 3 || dcTables[c.dcTable] == null || acTables[c.acTable] == null
+					|| frame.quantTables[c.quantTable] == null)
+				{
+					return false;
+				}
+			}
+			int p = 1 + 2 * count;
+			return (s[p] & 0xFF) == 0 && (s[p + 1] & 0xFF) == 63 && s[p + 2] == 0;
+		}
+
+		// Decodes the whole scan, handing the blocks inside the crop to the sink.
+		void decode(Crop crop, BlockSink sink) throws IOException
+		{
+			Component[] components = frame.components;
+			int mcusWide = (frame.width + 8 * frame.maxH - 1) / (8 * frame.maxH);
+			int mcusHigh = (frame.height + 8 * frame.maxV - 1) / (8 * frame.maxV);
+			int[] predictions = new int[components.length];
+			short[] block = new short[64];
+			int mcu = 0;
+			for (int my = 0; my < mcusHigh && my < crop.mcuBottom; my++)
+			{
+				boolean rowInside = my >= crop.mcuTop;
+				for (int mx = 0; mx < mcusWide; mx++, mcu++)
+				{
+					if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0)
+					{
+						restart();
+						for (int i = 0; i < predictions.length; i++)
+						{
+							predictions[i] = 0;
+						}
+					}
+					boolean inside = rowInside && mx >= crop.mcuLeft && mx < crop.mcuRight;
+					for (int c = 0; c < components.length; c++)
+					{
+						Component component = components[c];
+						for (int by = 0; by < component.v; by++)
+						{
+							for (int bx = 0; bx < component.h; bx++)
+							{
+								predictions[c] = decodeBlock(component, predictions[c], block, inside);
+								if (inside)
+								{
+									sink.block(c, (mx - crop.mcuLeft) * component.h + bx,
+										(my - crop.mcuTop) * component.v + by, block);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// Returns the DC value of the block, which predicts the next one.
+		private int decodeBlock(Component component, int prediction, short[] block, boolean keep)
+			throws IOException
+		{
+			HuffmanTable ac = acTables[component.acTable];
+			int size = decodeSymbol(dcTables[component.dcTable]);
+			int dc = prediction + (size == 0 ? 0 : extend(readBits(size), size));
+			if (keep)
+			{
+				for (int i = 1; i < 64; i++)
+				{
+					block[i] = 0;
+				}
+				block[0] = (short) dc;
+			}
+			for (int k = 1; k < 64; k++)
+			{
+				int symbol = decodeSymbol(ac);
+				int run = symbol >> 4;
+				size = symbol & 0x0F;
+				if (size == 0)
+				{
+					if (run != 15)
+					{
+						break;
+					}
+					k += 15;
+					continue;
+				}
+				k += run;
+				if (k > 63)
+				{
+					throw new IOException("Corrupt JPEG data");
+				}
+				int value = extend(readBits(size), size);
+				if (keep)
+				{
+					block[ZIGZAG[k]] = (short) value;
+				}
+			}
+			return dc;
+		}
+
+		private static int extend(int value, int size)
+		{
+			return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+		}
+
+		private int decodeSymbol(HuffmanTable table) throws IOException
+		{
+			fill();
+			int entry = table.lookahead[bits >>> (32 - HuffmanTable.LOOKAHEAD)];
+			if (entry != 0)
+			{
+				int length = entry >> 8;
+				bits <<= length;
+				bitCount -= length;
+				return entry & 0xFF;
+			}
+			int length = HuffmanTable.LOOKAHEAD + 1;
+			int code = bits >>> (32 - length);
+			while (length <= 16 && code > table.maxCode[length])
+			{
+				length++;
+				code = bits >>> (32 - length);
+			}
+			if (length > 16)
+			{
+				throw new IOException("Corrupt JPEG data");
+			}
+			bits <<= length;
+			bitCount -= length;
+			return table.values[table.valueOffset[length] + code];
+		}
+
+		private int readBits(int count) throws IOException
+		{
+			fill();
+			int value = bits >>> (32 - count);
+			bits <<= count;
+			bitCount -= count;
+			return value;
+		}
+
+		// Keeps at least 25 bits buffered. Past a marker the data is padded with zeros.
+		private void fill() throws IOException
+		{
+			while (bitCount <= 24)
+			{
+				int b = 0;
+				if (!markerHit)
+				{
+					b = readByte();
+					if (b == 0xFF)
+					{
+						int next = readByte();
+						while (next == 0xFF)
+						{
+							next = readByte();
+						}
+						if (next != 0)
+						{
+							markerHit = true;
+							b = 0;
+						}
+					}
+				}
+				bits |= b << (24 - bitCount);
+				bitCount += 8;
+			}
+		}
+
+		// Drops the remaining bits and skips the restart marker.
+		private void restart() throws IOException
+		{
+			bits = 0;
+			bitCount = 0;
+			if (!markerHit)
+			{
+				readMarker();
+			}
+			markerHit = false;
+		}
+
+		private int readMarker() throws IOException
+		{
+			int b = readByte();
+			while (b != 0xFF)
+			{
+				b = readByte();
+			}
+			while (b == 0xFF)
+			{
+				b = readByte();
+			}
+			return b;
+		}
+
+		private int readByte() throws IOException
+		{
+			int b = in.read();
+			if (b < 0)
+			{
+				throw new EOFException();
+			}
+			return b;
+		}
+
+		private int readUnsigned16() throws IOException
+		{
+			return (readByte() << 8) | readByte();
+		}
+
+		private void readFully(byte[] b) throws IOException
+		{
+			int offset = 0;
+			while (offset < b.length)
+			{
+				int n = in.read(b, offset, b.length - offset);
+				if (n < 0)
+				{
+					throw new EOFException();
+				}
+				offset += n;
+			}
+		}
+	}
+
+	private static final class Encoder implements BlockSink
+	{
+		private final OutputStream out;
+		private final Frame frame;
+		private final int rotation;
+		private final Crop crop;
+		private final boolean transpose;
+		private final int[] predictions;
+		// Huffman codes and their lengths by symbol, luminance tables first.
+		private final int[][] codes = new int[4][256];
+		private final int[][] lengths = new int[4][256];
+		private final short[] rotated = new short[64];
+
+		private int bits;
+		private int bitCount;
+
+		Encoder(OutputStream out, Frame frame, int rotation, Crop crop)
+		{
+			this.out = out;
+			this.frame = frame;
+			this.rotation = rotation;
+			this.crop = crop;
+			transpose = rotation == 90 || rotation == 270;
+			predictions = new int[frame.components.length];
+			buildCodes(0, DC_LUMINANCE_BITS, DC_VALUES);
+			buildCodes(1, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+			buildCodes(2, DC_CHROMINANCE_BITS, DC_VALUES);
+			buildCodes(3, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+		}
+
+		private void buildCodes(int table, int[] counts, int[] values)
+		{
+			int code = 0;
+			int k = 0;
+			for (int length = 1; length <= 16; length++)
+			{
+				for (int i = 0; i < counts[length - 1]; i++, k++, code++)
+				{
+					codes[table][values[k]] = code;
+					lengths[table][values[k]] = length;
+				}
+				code <<= 1;
+			}
+		}
+
+		void writeHeaders(Decoder decoder) throws IOException
+		{
+			out.write(0xFF);
+			out.write(SOI);
+			int count = frame.components.length;
+			if (count == 1 || count == 3)
+			{
+				// JFIF 1.01, no density, no thumbnail.
+				writeSegment(0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+			}
+			if (decoder.adobe != null)
+			{
+				writeSegment(APP14, decoder.adobe);
+			}
+
+			for (int id = 0; id < 4; id++)
+			{
+				int[] table = frame.quantTables[id];
+				if (table == null)
+				{
+					continue;
+				}
+				byte[] s = new byte[65];
+				s[0] = (byte) id;
+				for (int i = 0; i < 64; i++)
+				{
+					// A transposed block needs a transposed table.
+					int position = ZIGZAG[i];
+					s[1 + i] = (byte) table[transpose ? transposed(position) : position];
+				}
+				writeSegment(DQT, s);
+			}
+
+			int width = transpose ? crop.height : crop.width;
+			int height = transpose ? crop.width : crop.height;
+			byte[] sof = new byte[6 + 3 * count];
+			sof[0] = 8;
+			sof[1] = (byte) (height >> 8);
+			sof[2] = (byte) height;
+			sof[3] = (byte) (width >> 8);
+			sof[4] = (byte) width;
+			sof[5] = (byte) count;
+			for (int i = 0; i < count; i++)
+			{
+				Component c = frame.components[i];
+				int h = transpose ? c.v : c.h;
+				int v = transpose ? c.h : c.v;
+				sof[6 + 3 * i] = (byte) c.id;
+				sof[7 + 3 * i] = (byte) ((h << 4) | v);
+				sof[8 + 3 * i] = (byte) c.quantTable;
+			}
+			writeSegment(SOF0, sof);
+
+			writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_VALUES);
+			writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+			if (count > 1)
+			{
+				writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+				writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+			}
+
+			byte[] sos = new byte[4 + 2 * count];
+			sos[0] = (byte) count;
+			for (int i = 0; i < count; i++)
+			{
+				sos[1 + 2 * i] = (byte) frame.components[i].id;
+				sos[2 + 2 * i] = (byte) (i == 0 ? 0x00 : 0x11);
+			}
+			sos[2 + 2 * count] = 63;
+			writeSegment(SOS, sos);
+		}
+
+		private void writeHuffmanTable(int id, int[] counts, int[] values) throws IOException
+		{
+			byte[] s = new byte[17 + values.length];
+			s[0] = (byte) id;
+			for (int i = 0; i < 16; i++)
+			{
+				s[1 + i] = (byte) counts[i];
+			}
+			for (int i = 0; i < values.length; i++)
+			{
+				s[17 + i] = (byte) values[i];
+			}
+			writeSegment(DHT, s);
+		}
+
+		private void writeSegment(int marker, byte[] payload) throws IOException
+		{
+			out.write(0xFF);
+			out.write(marker);
+			out.write((payload.length + 2) >> 8);
+			out.write(payload.length + 2);
+			out.write(payload);
+		}
+
+		// Blocks of the unrotated crop arrive in scan order, which is the output order.
+		public void block(int component, int x, int y, short[] coefficients) throws IOException
+		{
+			writeBlock(component, coefficients);
+		}
+
+		// Codes the stored blocks in the scan order of the rotated image.
+		void writeRotated(Crop crop) throws IOException
+		{
+			Component[] components = frame.components;
+			int mcusWide = transpose ? crop.mcuBottom - crop.mcuTop : crop.mcuRight - crop.mcuLeft;
+			int mcusHigh = transpose ? crop.mcuRight - crop.mcuLeft : crop.mcuBottom - crop.mcuTop;
+			for (int my = 0; my < mcusHigh; my++)
+			{
+				for (int mx = 0; mx < mcusWide; mx++)
+				{
+					for (int c = 0; c < components.length; c++)
+					{
+						Component component = components[c];
+						int h = transpose ? component.v : component.h;
+						int v = transpose ? component.h : component.v;
+						int wide = crop.blocksWide(c);
+						int high = crop.blocksHigh(c);
+						for (int by = 0; by < v; by++)
+						{
+							for (int bx = 0; bx < h; bx++)
+							{
+								int x = mx * h + bx;
+								int y = my * v + by;
+								int sourceX;
+								int sourceY;
+								switch (rotation)
+								{
+									case 90:
+										sourceX = y;
+										sourceY = high - 1 - x;
+										break;
+									case 180:
+										sourceX = wide - 1 - x;
+										sourceY = high - 1 - y;
+										break;
+									default:
+										sourceX = wide - 1 - y;
+										sourceY = x;
+										break;
+								}
+								rotate(crop.blocks[c][sourceY * wide + sourceX], rotated);
+								writeBlock(c, rotated);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// Rotates a block of coefficients clockwise. Mirroring a block negates its odd
+		// frequencies in the mirrored direction.
+		private void rotate(short[] in, short[] out)
+		{
+			for (int v = 0; v < 8; v++)
+			{
+				for (int u = 0; u < 8; u++)
+				{
+					int value;
+					switch (rotation)
+					{
+						case 90:
+							// Transpose, then mirror horizontally.
+							value = in[u * 8 + v];
+							if ((u & 1) != 0)
+							{
+								value = -value;
+							}
+							break;
+						case 180:
+							value = in[v * 8 + u];
+							if (((u + v) & 1) != 0)
+							{
+								value = -value;
+							}
+							break;
+						default:
+							// Transpose, then mirror vertically.
+							value = in[u * 8 + v];
+							if ((v & 1) != 0)
+							{
+								value = -value;
+							}
+							break;
+					}
+					out[v * 8 + u] = (short) value;
+				}
+			}
+		}
+
+		private void writeBlock(int component, short[] block) throws IOException
+		{
+			int dcTable = component == 0 ? 0 : 2;
+			int acTable = dcTable + 1;
+
+			int diff = block[0] - predictions[component];
+			predictions[component] = block[0];
+			int size = bitSize(diff);
+			writeBits(codes[dcTable][size], lengths[dcTable][size]);
+			if (size > 0)
+			{
+				writeBits(diff < 0 ? diff - 1 : diff, size);
+			}
+
+			int run = 0;
+			for (int k = 1; k < 64; k++)
+			{
+				int value = block[ZIGZAG[k]];
+				if (value == 0)
+				{
+					run++;
+					continue;
+				}
+				while (run > 15)
+				{
+					writeBits(codes[acTable][0xF0], lengths[acTable][0xF0]);
+					run -= 16;
+				}
+				size = bitSize(value);
+				int symbol = (run << 4) | size;
+				writeBits(codes[acTable][symbol], lengths[acTable][symbol]);
+				writeBits(value < 0 ? value - 1 : value, size);
+				run = 0;
+			}
+			if (run > 0)
+			{
+				writeBits(codes[acTable][0], lengths[acTable][0]);
+			}
+		}
+
+		private static int bitSize(int value)
+		{
+			return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+		}
+
+		private void writeBits(int value, int count) throws IOException
+		{
+			bits = (bits << count) | (value & ((1 << count) - 1));
+			bitCount += count;
+			while (bitCount >= 8)
+			{
+				int b = (bits >> (bitCount - 8)) & 0xFF;
+				out.write(b);
+				if (b == 0xFF)
+				{
+					out.write(0);
+				}
+				bitCount -= 8;
+			}
+		}
+
+		void finish() throws IOException
+		{
+			if (bitCount > 0)
+			{
+				// Pad the last byte with ones.
+				writeBits(0x7F, 8 - bitCount);
+			}
+			out.write(0xFF);
+			out.write(EOI);
+		}
+	}
+
+	private static int transposed(int position)
+	{
+		return (position & 7) * 8 + (position >> 3);
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes cropped images into the requested format. With a byte limit set, the encoder searches
+ * for the highest quality that fits and failing that for the largest downscale that fits,
+ * using a bounded number of trial encodes into reusable in-memory buffers.
+ */
+class OutputEncoder
+{
+	static final int DEFAULT_QUALITY = 90;
+	// Quality isn't lowered below this, the image is downscaled instead.
+	private static final int MIN_QUALITY = 30;
+	private static final int MAX_QUALITY_TRIALS = 6;
+	private static final int MAX_SCALE_TRIALS = 5;
+	// Safety margin applied to the estimated downscale factor.
+	private static final float SCALE_MARGIN = 0.95F;
+
+	private final Bitmap.CompressFormat mFormat;
+	private final int mQuality;
+	private final long mMaxBytes;
+	private final int mCompressionLevel;
+
+	private ByteArrayOutputStream mTrial;
+	private ByteArrayOutputStream mBest;
+
+	/**
+	 * @param maxBytes         Maximum size of the encoded output in bytes, or 0 for no limit.
+	 * @param compressionLevel Deflate level of PNG output from 0 to 9.
+	 */
+	OutputEncoder(Bitmap.CompressFormat format, int quality, long maxBytes, int compressionLevel)
+	{
+		mFormat = format;
+		mQuality = quality;
+		mMaxBytes = maxBytes;
+		mCompressionLevel = compressionLevel;
+	}
+
+	public Bitmap.CompressFormat getFormat()
+	{
+		return mFormat;
+	}
+
+	public void encode(Bitmap bitmap, OutputStream out) throws IOException
+	{
+		if (mMaxBytes <= 0)
+		{
+			compress(bitmap, mQuality, out);
+			return;
+		}
+
+		if (mTrial == null)
+		{
+			mTrial = new ByteArrayOutputStream();
+			mBest = new ByteArrayOutputStream();
+		}
+		mBest.reset();
+
+		int quality = searchQuality(bitmap);
+		if (quality < 0)
+		{
+			searchScale(bitmap);
+		}
+		mBest.writeTo(out);
+	}
+
+	// Writes into mBest the highest quality encoding that fits. Returns the quality or -1 if
+	// none fits, leaving the size at the lowest quality tried in mTrial.
+	private int searchQuality(Bitmap bitmap) throws IOException
+	{
+		if (trial(bitmap, mQuality))
+		{
+			keepTrial();
+			return mQuality;
+		}
+		if (!isLossy() || mQuality <= MIN_QUALITY)
+		{
+			return -1;
+		}
+
+		int low = MIN_QUALITY;
+		int high = mQuality - 1;
+		int best = -1;
+		for (int i = 0; i < MAX_QUALITY_TRIALS && low <= high; i++)
+		{
+			// Try the floor first, if even that doesn't fit there is no point in searching.
+			int quality = i == 0 ? low : (low + high + 1) / 2;
+			if (trial(bitmap, quality))
+			{
+				keepTrial();
+				best = quality;
+				low = quality + 1;
+			}
+			else if (i == 0)
+			{
+				return -1;
+			}
+			else
+			{
+				high = quality - 1;
+			}
+		}
+		return best;
+	}
+
+	// Downscales until the encoding fits, estimating the factor from the last trial size.
+	private void searchScale(Bitmap bitmap) throws IOException
+	{
+		int quality = isLossy() ? Math.min(mQuality, MIN_QUALITY) : mQuality;
+		float scale = 1F;
+		for (int i = 0; i < MAX_SCALE_TRIALS; i++)
+		{
+			scale *= (float) Math.sqrt((double) mMaxBytes / mTrial.size()) * SCALE_MARGIN;
+			int width = Math.max(1, (int) (bitmap.getWidth() * scale));
+			int height = Math.max(1, (int) (bitmap.getHeight() * scale));
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+			try
+			{
+				if (trial(scaled, quality) || (width == 1 && height == 1))
+				{
+					keepTrial();
+					return;
+				}
+			}
+			finally
+			{
+				if (scaled != bitmap)
+				{
+					scaled.recycle();
+				}
+			}
+		}
+		// Give up on the limit and keep the smallest encoding produced.
+		keepTrial();
+	}
+
+	private boolean trial(Bitmap bitmap, int quality) throws IOException
+	{
+		mTrial.reset();
+		compress(bitmap, quality, mTrial);
+		return mTrial.size() <= mMaxBytes;
+	}
+
+	private void keepTrial()
+	{
+		ByteArrayOutputStream t = mBest;
+		mBest = mTrial;
+		mTrial = t;
+	}
+
+	private boolean isLossy()
+	{
+		return mFormat != Bitmap.CompressFormat.PNG;
+	}
+
+	private void compress(Bitmap bitmap, int quality, OutputStream out) throws IOException
+	{
+		// Bitmap.compress encodes PNG on a single thread, which dominates saving large alpha
+		// outputs. Use the parallel encoder where the platform supports sync flushing.
+		if (mFormat == Bitmap.CompressFormat.PNG
+			&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			PngEncoder encoder = new PngEncoder(Workers.compute(), Workers.parallelism());
+			encoder.setCompressionLevel(mCompressionLevel);
+			encoder.encode(Util.toRaster(bitmap), out);
+		}
+		else
+		{
+			bitmap.compress(mFormat, quality, out);
+		}
+	}
+}
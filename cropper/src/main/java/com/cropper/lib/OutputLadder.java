@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the crop at several sizes, see {@link Cropper.Builder#addOutput}. The sizes are made
+ * from largest to smallest. The crop is halved with a box filter while it is at least twice
+ * the next size, and each size is resampled from the nearest halving rather than from the full
+ * crop. A straightened crop is instead rotated and scaled to each size in one pass from the
+ * source. Outputs are encoded in parallel while the next size is being made.
+ */
+final class OutputLadder
+{
+	// Makes the crop at one of the sizes, called from the largest size to the smallest.
+	private interface Scaler
+	{
+		Raster scale(int width, int height) throws InterruptedException;
+	}
+
+	private final ContentResolver mResolver;
+	private final int[] mSizes;
+	private final Bitmap.CompressFormat[] mFormats;
+	private final Uri[] mUris;
+	private final int mCompressionLevel;
+
+	/**
+	 * @param sizes            Longer side of each output in pixels.
+	 * @param formats          Names of the formats of the outputs.
+	 * @param uris             Destinations of the outputs.
+	 * @param compressionLevel Deflate level of PNG outputs.
+	 */
+	OutputLadder(ContentResolver resolver, int[] sizes, String[] formats, String[] uris,
+	             int compressionLevel)
+	{
+		mResolver = resolver;
+		mCompressionLevel = compressionLevel;
+		mSizes = sizes;
+		mFormats = new Bitmap.CompressFormat[sizes.length];
+		mUris = new Uri[sizes.length];
+		for (int i = 0; i < sizes.length; i++)
+		{
+			mFormats[i] = Bitmap.CompressFormat.valueOf(formats[i]);
+			mUris[i] = Uri.parse(uris[i]);
+		}
+	}
+
+	/**
+	 * Scales the crop to every size and writes it. Crops smaller than a size aren't enlarged.
+	 *
+	 * @param crop   The crop at full resolution.
+	 * @param circle Whether to clear the area outside of the inscribed circle.
+	 * @return Destinations of the outputs in the order they were requested.
+	 */
+	public String[] write(final Raster crop, boolean circle) throws IOException, InterruptedException
+	{
+		return write(crop.width, crop.height, new Scaler()
+		{
+			private Raster mLevel = crop;
+
+			public Raster scale(int width, int height) throws InterruptedException
+			{
+				while (mLevel.width >= 2 * width && mLevel.height >= 2 * height)
+				{
+					mLevel = resize(mLevel, mLevel.width / 2, mLevel.height / 2, Resampler.Filter.BOX);
+				}
+				if (mLevel.width != width || mLevel.height != height)
+				{
+					return resize(mLevel, width, height, Resampler.Filter.LANCZOS3);
+				}
+				return mLevel;
+			}
+		}, circle);
+	}
+
+	/**
+	 * Same as above for the region of the source rotated by the angle around its center.
+	 */
+	public String[] write(final Bitmap source, final Rect region, final float degrees, boolean circle)
+		throws IOException, InterruptedException
+	{
+		return write(region.width(), region.height(), new Scaler()
+		{
+			public Raster scale(int width, int height) throws InterruptedException
+			{
+				return Util.straighten(source, region, degrees, width, height);
+			}
+		}, circle);
+	}
+
+	private String[] write(int cropWidth, int cropHeight, Scaler scaler, boolean circle)
+		throws IOException, InterruptedException
+	{
+		Integer[] order = new Integer[mSizes.length];
+		for (int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return mSizes[b] - mSizes[a];
+			}
+		});
+
+		List<Future<Void>> encodes = new ArrayList<Future<Void>>(order.length);
+		try
+		{
+			for (int i : order)
+			{
+				float scale = Math.min(1F, (float) mSizes[i] / Math.max(cropWidth, cropHeight));
+				int width = Math.max(1, Math.round(cropWidth * scale));
+				int height = Math.max(1, Math.round(cropHeight * scale));
+				Bitmap b = Util.toBitmap(scaler.scale(width, height));
+				if (circle)
+				{
+					Util.clearOutsideCircle(b, width / 2F, height / 2F, width / 2F);
+				}
+				encodes.add(Workers.encode().submit(newEncode(b, mFormats[i], mUris[i])));
+			}
+
+			for (Future<Void> f : encodes)
+			{
+				f.get();
+			}
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			for (Future<Void> f : encodes)
+			{
+				f.cancel(true);
+			}
+		}
+
+		String[] paths = new String[mUris.length];
+		for (int i = 0; i < paths.length; i++)
+		{
+			paths[i] = mUris[i].toString();
+		}
+		return paths;
+	}
+
+	private Callable<Void> newEncode(final Bitmap b, final Bitmap.CompressFormat format, final Uri uri)
+	{
+		return new Callable<Void>()
+		{
+			public Void call() throws IOException
+			{
+				OutputStream out = mResolver.openOutputStream(uri);
+				if (out == null)
+				{
+					throw new IOException("Cannot open " + uri);
+				}
+				try
+				{
+					new OutputEncoder(format, OutputEncoder.DEFAULT_QUALITY, 0, mCompressionLevel).encode(b, out);
+				}
+				finally
+				{
+					Util.closeSilently(out);
+					b.recycle();
+				}
+				return null;
+			}
+		};
+	}
+
+	private static Raster resize(Raster source, int width, int height, Resampler.Filter filter)
+		throws InterruptedException
+	{
+		Raster output = new Raster(width, height);
+		Resampler.resample(source, 0, 0, source.width, source.height, output, 0, 0, width, height,
+			filter, Workers.compute(), Workers.parallelism());
+		return output;
+	}
+}
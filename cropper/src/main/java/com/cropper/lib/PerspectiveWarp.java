@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Rectifies a quadrilateral of an image into a rectangle. Every output pixel is mapped through
+ * the homography into the source and sampled with fixed-point bilinear interpolation. Bands
+ * of output rows are processed in parallel.
+ */
+final class PerspectiveWarp
+{
+	// Bits of the fractional part of sampling coordinates.
+	private static final int FRACTION_BITS = 8;
+	private static final int ONE = 1 << FRACTION_BITS;
+
+	private PerspectiveWarp()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Size of the rectified output, averaging the lengths of opposite edges.
+	 *
+	 * @param quad Corners {x0, y0, ..., x3, y3} in the order top left, top right, bottom right,
+	 *             bottom left.
+	 * @return Array holding the width and height.
+	 */
+	public static int[] getOutputSize(float[] quad)
+	{
+		double top = distance(quad, 0, 1);
+		double bottom = distance(quad, 3, 2);
+		double left = distance(quad, 0, 3);
+		double right = distance(quad, 1, 2);
+		return new int[]{
+			Math.max(1, (int) Math.round((top + bottom) / 2)),
+			Math.max(1, (int) Math.round((left + right) / 2))};
+	}
+
+	/**
+	 * Homography mapping the corners of the {@code width} by {@code height} rectangle to the quad.
+	 *
+	 * @return Row major 3x3 matrix.
+	 */
+	public static double[] getHomography(float[] quad, int width, int height)
+	{
+		double[] from = {0, 0, width, 0, width, height, 0, height};
+
+		// Solve for h0..h7 with h8 = 1:
+		// x = (h0 u + h1 v + h2) / (h6 u + h7 v + 1), y = (h3 u + h4 v + h5) / (h6 u + h7 v + 1)
+		double[][] a = new double[8][9];
+		for (int i = 0; i < 4; i++)
+		{
+			double u = from[2 * i];
+			double v = from[2 * i + 1];
+			double x = quad[2 * i];
+			double y = quad[2 * i + 1];
+			double[] r1 = a[2 * i];
+			double[] r2 = a[2 * i + 1];
+			r1[0] = u;
+			r1[1] = v;
+			r1[2] = 1;
+			r1[6] = -u * x;
+			r1[7] = -v * x;
+			r1[8] = x;
+			r2[3] = u;
+			r2[4] = v;
+			r2[5] = 1;
+			r2[6] = -u * y;
+			r2[7] = -v * y;
+			r2[8] = y;
+		}
+
+		// Gaussian elimination with partial pivoting.
+		for (int col = 0; col < 8; col++)
+		{
+			int pivot = col;
+			for (int row = col + 1; row < 8; row++)
+			{
+				if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+				{
+					pivot = row;
+				}
+			}
+			if (Math.abs(a[pivot][col]) < 1e-12)
+			{
+				throw new IllegalArgumentException("Degenerate quadrilateral");
+			}
+			double[] t = a[col];
+			a[col] = a[pivot];
+			a[pivot] = t;
+			for (int row = 0; row < 8; row++)
+			{
+				if (row != col)
+				{
+					double f = a[row][col] / a[col][col];
+					for (int k = col; k < 9; k++)
+					{
+						a[row][k] -= f * a[col][k];
+					}
+				}
+			}
+		}
+
+		double[] h = new double[9];
+		for (int i = 0; i < 8; i++)
+		{
+			h[i] = a[i][8] / a[i][i];
+		}
+		h[8] = 1;
+		return h;
+	}
+
+	/**
+	 * Rectify the quad.
+	 *
+	 * @param source     Pixels of the region of the image covering the quad.
+	 * @param sourceLeft Position of the region in the image.
+	 * @param sourceTop  Position of the region in the image.
+	 * @param quad       Corners in image coordinates, see {@code getOutputSize}.
+	 */
+	public static Raster warp(Raster source, int sourceLeft, int sourceTop,
+	                          float[] quad, int width, int height,
+	                          ExecutorService executor, int parallelism)
+		throws InterruptedException
+	{
+		Raster output = new Raster(width, height);
+		warp(source, sourceLeft, sourceTop, quad, output, 0, 0, width, height, 1, executor, parallelism);
+		return output;
+	}
+
+	/**
+	 * Rectify the quad into a rectangle of the output. Each output pixel averages samples by
+	 * samples bilinear taps, so a quad larger than the rectangle is reduced without aliasing.
+	 */
+	public static void warp(final Raster source, final int sourceLeft, final int sourceTop,
+	                        float[] quad, final Raster output, final int dstLeft, final int dstTop,
+	                        final int width, int height, final int samples,
+	                        ExecutorService executor, int parallelism)
+		throws InterruptedException
+	{
+		final double[] h = getHomography(quad, width, height);
+		RowBands.run(executor, parallelism, height, new RowBands.Task()
+		{
+			public void run(int top, int bottom)
+			{
+				warpRows(source, sourceLeft, sourceTop, h, output, dstLeft, dstTop, width, samples, top, bottom);
+			}
+		});
+	}
+
+	static void warpRows(Raster source, int sourceLeft, int sourceTop, double[] h,
+	                     Raster output, int dstLeft, int dstTop, int width, int samples,
+	                     int top, int bottom)
+	{
+		int[] dst = output.pixels;
+		double step = 1.0 / samples;
+		int count = samples * samples;
+
+		for (int y = top; y < bottom; y++)
+		{
+			int p = (dstTop + y) * output.width + dstLeft;
+			for (int x = 0; x < width; x++, p++)
+			{
+				if (samples == 1)
+				{
+					dst[p] = sample(source, sourceLeft, sourceTop, h, x + 0.5, y + 0.5);
+					continue;
+				}
+
+				// Colors are weighted by alpha so transparent taps don't darken the edges.
+				int a = 0;
+				long r = 0;
+				long g = 0;
+				long b = 0;
+				for (int j = 0; j < samples; j++)
+				{
+					double v = y + (j + 0.5) * step;
+					for (int i = 0; i < samples; i++)
+					{
+						int c = sample(source, sourceLeft, sourceTop, h, x + (i + 0.5) * step, v);
+						int alpha = c >>> 24;
+						a += alpha;
+						r += ((c >> 16) & 0xFF) * alpha;
+						g += ((c >> 8) & 0xFF) * alpha;
+						b += (c & 0xFF) * alpha;
+					}
+				}
+				if (a == 0)
+				{
+					dst[p] = 0;
+					continue;
+				}
+				dst[p] = (a + count / 2) / count << 24
+					| (int) ((r + a / 2) / a) << 16
+					| (int) ((g + a / 2) / a) << 8
+					| (int) ((b + a / 2) / a);
+			}
+		}
+	}
+
+	// Bilinear sample at the point of the output mapped through the homography. Positions
+	// beyond half a pixel outside the region are transparent.
+	private static int sample(Raster source, int sourceLeft, int sourceTop, double[] h, double u, double v)
+	{
+		int sw = source.width;
+		int sh = source.height;
+		double d = h[6] * u + h[7] * v + h[8];
+		double sx = (h[0] * u + h[1] * v + h[2]) / d - sourceLeft - 0.5;
+		double sy = (h[3] * u + h[4] * v + h[5]) / d - sourceTop - 0.5;
+
+		int fx = (int) Math.floor(sx * ONE);
+		int fy = (int) Math.floor(sy * ONE);
+		if (fx < -ONE / 2 || fy < -ONE / 2 || fx > (sw << FRACTION_BITS) - ONE / 2
+			|| fy > (sh << FRACTION_BITS) - ONE / 2)
+		{
+			return 0;
+		}
+
+		int x0 = fx >> FRACTION_BITS;
+		int y0 = fy >> FRACTION_BITS;
+		int wx = fx & (ONE - 1);
+		int wy = fy & (ONE - 1);
+		int x1 = Math.min(sw - 1, x0 + 1);
+		int y1 = Math.min(sh - 1, y0 + 1);
+		x0 = Math.max(0, x0);
+		y0 = Math.max(0, y0);
+
+		int[] src = source.pixels;
+		return bilinear(src[y0 * sw + x0], src[y0 * sw + x1], src[y1 * sw + x0], src[y1 * sw + x1], wx, wy);
+	}
+
+	private static int bilinear(int c00, int c01, int c10, int c11, int wx, int wy)
+	{
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8)
+		{
+			int a = (c00 >>> shift) & 0xFF;
+			int b = (c01 >>> shift) & 0xFF;
+			int c = (c10 >>> shift) & 0xFF;
+			int d = (c11 >>> shift) & 0xFF;
+			int topValue = a * (ONE - wx) + b * wx;
+			int bottomValue = c * (ONE - wx) + d * wx;
+			int value = (topValue * (ONE - wy) + bottomValue * wy + (1 << (2 * FRACTION_BITS - 1)))
+				>> (2 * FRACTION_BITS);
+			result |= value << shift;
+		}
+		return result;
+	}
+
+	private static double distance(float[] quad, int i, int j)
+	{
+		double dx = quad[2 * j] - quad[2 * i];
+		double dy = quad[2 * j + 1] - quad[2 * i + 1];
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+}
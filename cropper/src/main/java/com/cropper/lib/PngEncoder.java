@@ -0,0 +1,437 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that deflates bands of rows in parallel, in the style of pigz. Every band is
+ * compressed by its own {@code Deflater} primed with the last 32 KB of the previous band as
+ * dictionary and ended with a sync flush, so the concatenated bands form one valid zlib stream.
+ * Bands are written to the output in order as soon as they are ready.
+ * <p/>
+ * Sync flushing needs {@code Deflater.SYNC_FLUSH}, which Android supports from KitKat.
+ */
+final class PngEncoder
+{
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int WINDOW_SIZE = 32768;
+	private static final int MIN_BAND_BYTES = 128 * 1024;
+	private static final int ADLER_BASE = 65521;
+	static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	private static final int COLOR_TYPE_RGB = 2;
+	private static final int COLOR_TYPE_RGBA = 6;
+
+	private final ExecutorService mExecutor;
+	private final int mParallelism;
+	private int mCompressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+	PngEncoder(ExecutorService executor, int parallelism)
+	{
+		mExecutor = executor;
+		mParallelism = Math.max(1, parallelism);
+	}
+
+	// Sets the deflate level from 0 (store) to 9 (smallest).
+	public void setCompressionLevel(int level)
+	{
+		mCompressionLevel = Math.max(0, Math.min(9, level));
+	}
+
+	/**
+	 * Encode the raster. The alpha channel is written only if some pixel isn't opaque.
+	 */
+	public void encode(Raster raster, OutputStream out) throws IOException
+	{
+		boolean alpha = !raster.isOpaque();
+		int bpp = alpha ? 4 : 3;
+		int stride = raster.width * bpp + 1;
+
+		out.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, raster.width);
+		putInt(header, 4, raster.height);
+		header[8] = 8;
+		header[9] = (byte) (alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+		writeChunk(out, "IHDR", null, header, 0, header.length, null);
+
+		int rowsPerBand = Math.max(1, MIN_BAND_BYTES / stride);
+		int bands = (raster.height + rowsPerBand - 1) / rowsPerBand;
+
+		LinkedList<Future<Band>> pending = new LinkedList<Future<Band>>();
+		int adler = 1;
+		int next = 0;
+		try
+		{
+			for (int written = 0; written < bands; written++)
+			{
+				// Keep a bounded number of bands in flight to bound memory.
+				while (next < bands && pending.size() < mParallelism * 2)
+				{
+					int top = next * rowsPerBand;
+					int bottom = Math.min(raster.height, top + rowsPerBand);
+					pending.add(mExecutor.submit(
+						new BandTask(raster, bpp, top, bottom, next == bands - 1)));
+					next++;
+				}
+
+				Band band = pending.poll().get();
+				adler = combineAdler(adler, band.adler, band.rawLength);
+
+				byte[] prefix = null;
+				if (written == 0)
+				{
+					prefix = zlibHeader();
+				}
+				byte[] suffix = null;
+				if (written == bands - 1)
+				{
+					suffix = new byte[4];
+					putInt(suffix, 0, adler);
+				}
+				writeChunk(out, "IDAT", prefix, band.data, 0, band.length, suffix);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			cancel(pending);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			cancel(pending);
+			throw new IOException(e.getCause());
+		}
+
+		writeChunk(out, "IEND", null, new byte[0], 0, 0, null);
+		out.flush();
+	}
+
+	private static void cancel(LinkedList<Future<Band>> pending)
+	{
+		for (Future<Band> f : pending)
+		{
+			f.cancel(true);
+		}
+	}
+
+	private byte[] zlibHeader()
+	{
+		int level;
+		if (mCompressionLevel < 2)
+		{
+			level = 0;
+		}
+		else if (mCompressionLevel < 6)
+		{
+			level = 1;
+		}
+		else if (mCompressionLevel == 6)
+		{
+			level = 2;
+		}
+		else
+		{
+			level = 3;
+		}
+		int cmf = 0x78;
+		int flg = level << 6;
+		flg += 31 - ((cmf << 8) + flg) % 31;
+		return new byte[]{(byte) cmf, (byte) flg};
+	}
+
+	// Same as zlib's adler32_combine.
+	static int combineAdler(int adler1, int adler2, long length2)
+	{
+		long rem = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+		if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return (int) (sum1 | (sum2 << 16));
+	}
+
+	private static void writeChunk(OutputStream out, String type, byte[] prefix,
+	                               byte[] data, int offset, int length, byte[] suffix)
+		throws IOException
+	{
+		int total = length + (prefix != null ? prefix.length : 0) + (suffix != null ? suffix.length : 0);
+		byte[] head = new byte[8];
+		putInt(head, 0, total);
+		for (int i = 0; i < 4; i++)
+		{
+			head[4 + i] = (byte) type.charAt(i);
+		}
+		out.write(head);
+
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		if (prefix != null)
+		{
+			out.write(prefix);
+			crc.update(prefix, 0, prefix.length);
+		}
+		out.write(data, offset, length);
+		crc.update(data, offset, length);
+		if (suffix != null)
+		{
+			out.write(suffix);
+			crc.update(suffix, 0, suffix.length);
+		}
+
+		byte[] tail = new byte[4];
+		putInt(tail, 0, (int) crc.getValue());
+		out.write(tail);
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	// Writes row y as raw bytes, without the filter type byte.
+	static void readRow(Raster raster, int y, int bpp, byte[] row)
+	{
+		int[] pixels = raster.pixels;
+		int p = y * raster.width;
+		int i = 0;
+		for (int x = 0; x < raster.width; x++)
+		{
+			int c = pixels[p + x];
+			row[i++] = (byte) (c >> 16);
+			row[i++] = (byte) (c >> 8);
+			row[i++] = (byte) c;
+			if (bpp == 4)
+			{
+				row[i++] = (byte) (c >>> 24);
+			}
+		}
+	}
+
+	// Filters the row with the filter giving the smallest sum of absolute residuals, the usual
+	// heuristic for choosing PNG filters. Writes the filter type byte and the filtered row.
+	// Scratch holds one row buffer for each of the five filter types.
+	static void filterRow(byte[] cur, byte[] prev, int bpp, byte[][] scratch, byte[] out, int offset)
+	{
+		int n = cur.length;
+		byte[] none = scratch[0];
+		byte[] sub = scratch[1];
+		byte[] up = scratch[2];
+		byte[] avg = scratch[3];
+		byte[] pth = scratch[4];
+		long sumNone = 0, sumSub = 0, sumUp = 0, sumAvg = 0, sumPaeth = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int x = cur[i] & 0xFF;
+			int b = prev[i] & 0xFF;
+			int a = 0;
+			int c = 0;
+			if (i >= bpp)
+			{
+				a = cur[i - bpp] & 0xFF;
+				c = prev[i - bpp] & 0xFF;
+			}
+
+			byte v = (byte) x;
+			none[i] = v;
+			sumNone += v < 0 ? -v : v;
+
+			v = (byte) (x - a);
+			sub[i] = v;
+			sumSub += v < 0 ? -v : v;
+
+			v = (byte) (x - b);
+			up[i] = v;
+			sumUp += v < 0 ? -v : v;
+
+			v = (byte) (x - ((a + b) >>> 1));
+			avg[i] = v;
+			sumAvg += v < 0 ? -v : v;
+
+			v = (byte) (x - paeth(a, b, c));
+			pth[i] = v;
+			sumPaeth += v < 0 ? -v : v;
+		}
+
+		int type = 0;
+		long best = sumNone;
+		if (sumSub < best)
+		{
+			best = sumSub;
+			type = 1;
+		}
+		if (sumUp < best)
+		{
+			best = sumUp;
+			type = 2;
+		}
+		if (sumAvg < best)
+		{
+			best = sumAvg;
+			type = 3;
+		}
+		if (sumPaeth < best)
+		{
+			type = 4;
+		}
+
+		out[offset] = (byte) type;
+		System.arraycopy(scratch[type], 0, out, offset + 1, n);
+	}
+
+	private static int paeth(int a, int b, int c)
+	{
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+		{
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	private static class Band
+	{
+		byte[] data;
+		int length;
+		int adler;
+		int rawLength;
+	}
+
+	private class BandTask implements Callable<Band>
+	{
+		private final Raster mRaster;
+		private final int mBpp;
+		private final int mTop;
+		private final int mBottom;
+		private final boolean mLast;
+
+		BandTask(Raster raster, int bpp, int top, int bottom, boolean last)
+		{
+			mRaster = raster;
+			mBpp = bpp;
+			mTop = top;
+			mBottom = bottom;
+			mLast = last;
+		}
+
+		public Band call() throws Exception
+		{
+			int rowBytes = mRaster.width * mBpp;
+			int stride = rowBytes + 1;
+
+			// Re-filter the tail of the previous band to recover the dictionary. Filtering is
+			// deterministic, so the bytes match what the previous band compressed.
+			int dictRows = mTop == 0 ? 0 : Math.min(mTop, (WINDOW_SIZE + stride - 1) / stride);
+			int first = mTop - dictRows;
+			int rows = mBottom - first;
+
+			byte[] filtered = new byte[rows * stride];
+			byte[] prev = new byte[rowBytes];
+			byte[] cur = new byte[rowBytes];
+			byte[][] scratch = new byte[5][rowBytes];
+			if (first > 0)
+			{
+				readRow(mRaster, first - 1, mBpp, prev);
+			}
+			for (int y = first; y < mBottom; y++)
+			{
+				if (Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+				readRow(mRaster, y, mBpp, cur);
+				filterRow(cur, prev, mBpp, scratch, filtered, (y - first) * stride);
+				byte[] t = prev;
+				prev = cur;
+				cur = t;
+			}
+
+			int start = dictRows * stride;
+			int length = filtered.length - start;
+
+			Band band = new Band();
+			band.rawLength = length;
+			Adler32 adler = new Adler32();
+			adler.update(filtered, start, length);
+			band.adler = (int) adler.getValue();
+
+			Deflater deflater = new Deflater(mCompressionLevel, true);
+			try
+			{
+				if (dictRows > 0)
+				{
+					int dictLength = Math.min(WINDOW_SIZE, start);
+					deflater.setDictionary(filtered, start - dictLength, dictLength);
+				}
+				deflater.setInput(filtered, start, length);
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+				byte[] buffer = new byte[16384];
+				if (mLast)
+				{
+					deflater.finish();
+					while (!deflater.finished())
+					{
+						int n = deflater.deflate(buffer);
+						out.write(buffer, 0, n);
+					}
+				}
+				else
+				{
+					int n;
+					do
+					{
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, n);
+					}
+					while (n == buffer.length);
+				}
+				band.data = out.toByteArray();
+				band.length = band.data.length;
+			}
+			finally
+			{
+				deflater.end();
+			}
+			return band;
+		}
+	}
+}
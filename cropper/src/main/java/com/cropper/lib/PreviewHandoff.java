@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.graphics.Bitmap;
+
+/**
+ * Process-wide slot handing the preview bitmap from {@link CropImageActivity} to the caller.
+ * Only a token travels in the result intent, the pixels never go through a Parcel.
+ */
+final class PreviewHandoff
+{
+	private static long sCounter;
+	private static String sToken;
+	private static Bitmap sPreview;
+
+	private PreviewHandoff()
+	{
+		// Hiding constructor
+	}
+
+	// Stores the preview, replacing any preview that was never taken.
+	public static synchronized String put(Bitmap preview)
+	{
+		sToken = "preview-" + (++sCounter);
+		sPreview = preview;
+		return sToken;
+	}
+
+	public static synchronized Bitmap take(String token)
+	{
+		if (token == null || !token.equals(sToken))
+		{
+			return null;
+		}
+		Bitmap preview = sPreview;
+		sToken = null;
+		sPreview = null;
+		return preview;
+	}
+}
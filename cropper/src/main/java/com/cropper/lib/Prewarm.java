@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Does the work of opening the crop screen that doesn't need the screen itself ahead of time,
+ * see {@link Cropper#prewarm}. The results that aren't kept in a system cache are held here
+ * until CropImageActivity takes them.
+ */
+final class Prewarm
+{
+	private static final String TAG = "Prewarm";
+	// How long the free storage probe stays valid.
+	private static final long STORAGE_TTL_MS = 30000;
+
+	private static final int[] DRAWABLES = {
+		R.drawable.cropper_circle,
+		R.drawable.cropper_bg_blue_selector,
+		R.drawable.cropper_bg_green_selector,
+		R.drawable.cropper_bg_red_selector,
+		R.drawable.cropper_progress_background,
+		R.drawable.cropper_ic_close_white_24dp,
+		R.drawable.cropper_ic_done_white_24dp,
+		R.drawable.cropper_ic_rotate_left_white_24dp,
+		R.drawable.cropper_ic_rotate_right_white_24dp,
+	};
+	private static final int[] LAYOUTS = {
+		R.layout.cropper_cropimage,
+		R.layout.cropper_progress_layout,
+	};
+	private static final Class<?>[] CLASSES = {
+		CropImageActivity.class,
+		CropImageView.class,
+		HighlightView.class,
+		CropGeometry.class,
+		RegionIndex.class,
+		FrameScheduler.class,
+		RotateBitmap.class,
+		ImageLoader.class,
+		ImageType.class,
+		OutputEncoder.class,
+		Resampler.class,
+		Raster.class,
+		RowBands.class,
+		Util.class,
+	};
+
+	// Keeps the drawables' constant states, which the resources cache only weakly.
+	private static final List<Drawable> sDrawables = new ArrayList<Drawable>();
+
+	private static int sPicturesRemaining;
+	private static long sPicturesRemainingTime;
+
+	private static Uri sBoundsUri;
+	private static int[] sBounds;
+
+	private Prewarm()
+	{
+		// Hiding constructor
+	}
+
+	public static void run(Context context, Uri source)
+	{
+		for (Class<?> c : CLASSES)
+		{
+			try
+			{
+				Class.forName(c.getName(), true, c.getClassLoader());
+			}
+			catch (ClassNotFoundException e)
+			{
+				// Can't happen, they are referenced above
+			}
+		}
+
+		Resources resources = context.getResources();
+		synchronized (sDrawables)
+		{
+			if (sDrawables.isEmpty())
+			{
+				for (int id : DRAWABLES)
+				{
+					sDrawables.add(resources.getDrawable(id));
+				}
+			}
+		}
+		// Views can only be made on the main thread, but parsing the layouts fills the cache of
+		// compiled XML the inflater reads from.
+		for (int id : LAYOUTS)
+		{
+			XmlResourceParser parser = resources.getLayout(id);
+			parser.close();
+		}
+		resources.getColor(R.color.cropper_green);
+		resources.getDimension(R.dimen.cropper_border_size);
+
+		Workers.prestart();
+		setPicturesRemaining(CropImageActivity.calculatePicturesRemaining(context));
+
+		if (source != null)
+		{
+			try
+			{
+				int[] bounds = ImageLoader.decodeBounds(context.getContentResolver(), source);
+				synchronized (Prewarm.class)
+				{
+					sBoundsUri = source;
+					sBounds = bounds;
+				}
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "Cannot read " + source, e);
+			}
+		}
+	}
+
+	// Returns the bounds read for the URI, once, or null if there are none.
+	public static synchronized int[] takeBounds(Uri uri)
+	{
+		if (sBounds == null || !uri.equals(sBoundsUri))
+		{
+			return null;
+		}
+		int[] bounds = sBounds;
+		sBoundsUri = null;
+		sBounds = null;
+		return bounds;
+	}
+
+	// Returns the last result of CropImageActivity.calculatePicturesRemaining if it is recent.
+	public static synchronized Integer getPicturesRemaining()
+	{
+		if (sPicturesRemainingTime == 0
+			|| SystemClock.elapsedRealtime() - sPicturesRemainingTime > STORAGE_TTL_MS)
+		{
+			return null;
+		}
+		return sPicturesRemaining;
+	}
+
+	private static synchronized void setPicturesRemaining(int remaining)
+	{
+		sPicturesRemaining = remaining;
+		sPicturesRemainingTime = SystemClock.elapsedRealtime();
+	}
+}
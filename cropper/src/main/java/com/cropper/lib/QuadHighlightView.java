@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.content.res.Resources;
+import android.graphics.*;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+// Four cornered counterpart of HighlightView used for perspective correction. The corners are
+// kept in image space, in the order top left, top right, bottom right, bottom left, and mapped
+// to screen space with mMatrix. The grid inside the quad is drawn through the homography of
+// the quad, so it shows how the rectified output lines up.
+class QuadHighlightView
+{
+	public static final int NONE = -1;
+	public static final int MOVE = 4;
+
+	private static final int GRID_DIVISIONS = 3;
+	private static final float[] UNIT_SQUARE = {0F, 0F, 1F, 0F, 1F, 1F, 0F, 1F};
+
+	View mContext;  // The View displaying the image.
+	Matrix mMatrix;
+
+	private final float[] mQuad = new float[8];  // in image space
+	private final float[] mDrawQuad = new float[8];  // in screen space
+	private RectF mImageRect;  // in image space
+	private int mActive = NONE;
+
+	private final Matrix mGridMatrix = new Matrix();
+	private final Matrix mInverse = new Matrix();
+	private final float[] mPoints = new float[4];
+	private final Path mPath = new Path();
+
+	private Drawable mHandleDrawable;
+	private float mHysteresis;
+
+	private final Paint mDimPaint = new Paint();
+	private final Paint mOutlinePaint = new Paint();
+	private final Paint mGridPaint = new Paint();
+
+	private int highlightColor;
+	private int highlightSelectedColor;
+
+	public QuadHighlightView(View ctx)
+	{
+		mContext = ctx;
+	}
+
+	protected void draw(Canvas canvas)
+	{
+		mPath.reset();
+		mPath.moveTo(mDrawQuad[0], mDrawQuad[1]);
+		for (int i = 2; i < 8; i += 2)
+		{
+			mPath.lineTo(mDrawQuad[i], mDrawQuad[i + 1]);
+		}
+		mPath.close();
+
+		Rect viewDrawingRect = new Rect();
+		mContext.getDrawingRect(viewDrawingRect);
+		canvas.save();
+		canvas.clipPath(mPath, Region.Op.DIFFERENCE);
+		canvas.drawRect(viewDrawingRect, mDimPaint);
+		canvas.restore();
+
+		// Straight lines stay straight under a homography, so mapping the end points is enough.
+		mGridMatrix.setPolyToPoly(UNIT_SQUARE, 0, mDrawQuad, 0, 4);
+		for (int i = 1; i < GRID_DIVISIONS; i++)
+		{
+			float t = (float) i / GRID_DIVISIONS;
+			drawGridLine(canvas, t, 0F, t, 1F);
+			drawGridLine(canvas, 0F, t, 1F, t);
+		}
+
+		mOutlinePaint.setColor(mActive != NONE ? highlightSelectedColor : highlightColor);
+		canvas.drawPath(mPath, mOutlinePaint);
+
+		int width = mHandleDrawable.getIntrinsicWidth() / 2;
+		int height = mHandleDrawable.getIntrinsicHeight() / 2;
+		for (int i = 0; i < 8; i += 2)
+		{
+			int x = Math.round(mDrawQuad[i]);
+			int y = Math.round(mDrawQuad[i + 1]);
+			mHandleDrawable.setBounds(x - width, y - height, x + width, y + height);
+			mHandleDrawable.draw(canvas);
+		}
+	}
+
+	private void drawGridLine(Canvas canvas, float x0, float y0, float x1, float y1)
+	{
+		mPoints[0] = x0;
+		mPoints[1] = y0;
+		mPoints[2] = x1;
+		mPoints[3] = y1;
+		mGridMatrix.mapPoints(mPoints);
+		canvas.drawLine(mPoints[0], mPoints[1], mPoints[2], mPoints[3], mGridPaint);
+	}
+
+	public void setActive(int active)
+	{
+		if (active != mActive)
+		{
+			mActive = active;
+			mContext.invalidate();
+		}
+	}
+
+	// Determines which corner is hit by touching at (x, y), or MOVE if the touch is inside.
+	public int getHit(float x, float y)
+	{
+		int hit = NONE;
+		float best = mHysteresis * mHysteresis;
+		for (int i = 0; i < 4; i++)
+		{
+			float dx = x - mDrawQuad[2 * i];
+			float dy = y - mDrawQuad[2 * i + 1];
+			float distance = dx * dx + dy * dy;
+			if (distance <= best)
+			{
+				best = distance;
+				hit = i;
+			}
+		}
+		if (hit == NONE && isConvex(mDrawQuad, x, y, -1))
+		{
+			hit = MOVE;
+		}
+		return hit;
+	}
+
+	// Handles motion (dx, dy) in screen space of the corner or the whole quad.
+	void handleMotion(int hit, float dx, float dy)
+	{
+		if (hit == NONE)
+		{
+			return;
+		}
+
+		// Convert to image space.
+		mPoints[0] = dx;
+		mPoints[1] = dy;
+		mMatrix.invert(mInverse);
+		mInverse.mapVectors(mPoints, 0, mPoints, 0, 1);
+		dx = mPoints[0];
+		dy = mPoints[1];
+
+		if (hit == MOVE)
+		{
+			// Keep all the corners inside the image rectangle.
+			for (int i = 0; i < 8; i += 2)
+			{
+				dx = Math.max(mImageRect.left - mQuad[i], Math.min(mImageRect.right - mQuad[i], dx));
+				dy = Math.max(mImageRect.top - mQuad[i + 1], Math.min(mImageRect.bottom - mQuad[i + 1], dy));
+			}
+			for (int i = 0; i < 8; i += 2)
+			{
+				mQuad[i] += dx;
+				mQuad[i + 1] += dy;
+			}
+		}
+		else
+		{
+			float x = Math.max(mImageRect.left, Math.min(mImageRect.right, mQuad[2 * hit] + dx));
+			float y = Math.max(mImageRect.top, Math.min(mImageRect.bottom, mQuad[2 * hit + 1] + dy));
+			// Don't let the quad fold over, the warp needs it convex.
+			if (!isConvex(mQuad, x, y, hit))
+			{
+				return;
+			}
+			mQuad[2 * hit] = x;
+			mQuad[2 * hit + 1] = y;
+		}
+
+		invalidate();
+		mContext.invalidate();
+	}
+
+	// Whether the quad with the given corner replaced by (x, y) is convex. With corner -1 it
+	// tells whether (x, y) lies inside the quad instead.
+	private static boolean isConvex(float[] quad, float x, float y, int corner)
+	{
+		float[] q = quad.clone();
+		if (corner >= 0)
+		{
+			q[2 * corner] = x;
+			q[2 * corner + 1] = y;
+		}
+		int sign = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			int j = (i + 1) % 4;
+			float ax = q[2 * j] - q[2 * i];
+			float ay = q[2 * j + 1] - q[2 * i + 1];
+			float bx;
+			float by;
+			if (corner >= 0)
+			{
+				int k = (j + 1) % 4;
+				bx = q[2 * k] - q[2 * j];
+				by = q[2 * k + 1] - q[2 * j + 1];
+			}
+			else
+			{
+				bx = x - q[2 * j];
+				by = y - q[2 * j + 1];
+			}
+			float cross = ax * by - ay * bx;
+			int s = cross > 0 ? 1 : cross < 0 ? -1 : 0;
+			if (s == 0 || (sign != 0 && s != sign))
+			{
+				return false;
+			}
+			sign = s;
+		}
+		return true;
+	}
+
+	// Returns the corners in image space.
+	public float[] getQuad()
+	{
+		return mQuad.clone();
+	}
+
+	// Bounds of the quad in screen space.
+	public Rect getDrawBounds()
+	{
+		RectF r = new RectF(mDrawQuad[0], mDrawQuad[1], mDrawQuad[0], mDrawQuad[1]);
+		for (int i = 2; i < 8; i += 2)
+		{
+			r.union(mDrawQuad[i], mDrawQuad[i + 1]);
+		}
+		return new Rect(Math.round(r.left), Math.round(r.top), Math.round(r.right), Math.round(r.bottom));
+	}
+
+	// Maps the quad from image space to screen space.
+	public void invalidate()
+	{
+		mMatrix.mapPoints(mDrawQuad, mQuad);
+	}
+
+	public void setup(Matrix m, Rect imageRect, RectF cropRect,
+	                  int highlightColorResId, int highlightSelectedColorResId,
+	                  int handleIconResId, int borderSizeResId)
+	{
+		mMatrix = new Matrix(m);
+		mImageRect = new RectF(imageRect);
+		mQuad[0] = cropRect.left;
+		mQuad[1] = cropRect.top;
+		mQuad[2] = cropRect.right;
+		mQuad[3] = cropRect.top;
+		mQuad[4] = cropRect.right;
+		mQuad[5] = cropRect.bottom;
+		mQuad[6] = cropRect.left;
+		mQuad[7] = cropRect.bottom;
+		invalidate();
+
+		Resources resources = mContext.getResources();
+		mHandleDrawable = resources.getDrawable(handleIconResId);
+		highlightColor = resources.getColor(highlightColorResId);
+		highlightSelectedColor = resources.getColor(highlightSelectedColorResId);
+		mHysteresis = Math.max(20F, mHandleDrawable.getIntrinsicWidth());
+
+		mDimPaint.setARGB(125, 50, 50, 50);
+		mOutlinePaint.setStyle(Paint.Style.STROKE);
+		mOutlinePaint.setAntiAlias(true);
+		mOutlinePaint.setStrokeWidth(resources.getDimension(borderSizeResId));
+		mGridPaint.setARGB(125, 255, 255, 255);
+		mGridPaint.setAntiAlias(true);
+		mActive = NONE;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+/**
+ * Plain ARGB pixel buffer used by the pixel processing code that doesn't depend on Android.
+ * Pixels are stored row by row as non-premultiplied {@code 0xAARRGGBB} values.
+ */
+final class Raster
+{
+	final int width;
+	final int height;
+	final int[] pixels;
+
+	Raster(int width, int height)
+	{
+		this(width, height, new int[width * height]);
+	}
+
+	Raster(int width, int height, int[] pixels)
+	{
+		if (width <= 0 || height <= 0 || pixels.length < width * height)
+		{
+			throw new IllegalArgumentException("Invalid raster " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	int get(int x, int y)
+	{
+		return pixels[y * width + x];
+	}
+
+	void set(int x, int y, int argb)
+	{
+		pixels[y * width + x] = argb;
+	}
+
+	// Whether every pixel is fully opaque.
+	boolean isOpaque()
+	{
+		int n = width * height;
+		for (int i = 0; i < n; i++)
+		{
+			if ((pixels[i] >>> 24) != 0xFF)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
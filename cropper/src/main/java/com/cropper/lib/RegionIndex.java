@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+// A small R-tree over the crop regions in image space, used to find the regions under a touch
+// without hit testing every one of them. It is bulk loaded with sort-tile-recursive packing
+// when regions are added, and a region that is moved or resized only refits the bounds on its
+// path to the root, so the tree stays valid, if less tight, while the user drags.
+final class RegionIndex
+{
+	private static final int FANOUT = 4;
+
+	// Bounds of each node as left, top, right, bottom. Nodes [0, mCount) are the regions
+	// themselves, the rest are internal nodes with the root last.
+	private float[] mBounds = new float[0];
+	private int[] mParent = new int[0];
+	private int[] mFirstChild = new int[0];
+	private int[] mChildCount = new int[0];
+	// Children of the internal nodes, FANOUT slots per node.
+	private int[] mChildren = new int[0];
+	private int mCount;
+	private int mRoot = -1;
+
+	int size()
+	{
+		return mCount;
+	}
+
+	// Rebuilds the tree over count regions with the given bounds, four values per region.
+	void build(float[] bounds, int count)
+	{
+		int capacity = 2 * count + 2;
+		mBounds = new float[4 * capacity];
+		mParent = new int[capacity];
+		mFirstChild = new int[capacity];
+		mChildCount = new int[capacity];
+		mChildren = new int[FANOUT * capacity];
+		mCount = count;
+		mRoot = -1;
+		if (count == 0)
+		{
+			return;
+		}
+		System.arraycopy(bounds, 0, mBounds, 0, 4 * count);
+
+		int nodes = count;
+		int[] level = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			level[i] = i;
+		}
+		boolean leaves = true;
+		while (leaves || level.length > 1)
+		{
+			leaves = false;
+			int groups = (level.length + FANOUT - 1) / FANOUT;
+			int slices = (int) Math.ceil(Math.sqrt(groups));
+			int perSlice = (groups + slices - 1) / slices * FANOUT;
+			sort(level, 0, level.length, 0);
+
+			int[] next = new int[groups];
+			int count2 = 0;
+			for (int start = 0; start < level.length; start += perSlice)
+			{
+				int end = Math.min(level.length, start + perSlice);
+				sort(level, start, end, 1);
+				for (int i = start; i < end; i += FANOUT)
+				{
+					int node = nodes++;
+					int children = Math.min(FANOUT, end - i);
+					mFirstChild[node] = FANOUT * node;
+					mChildCount[node] = children;
+					for (int c = 0; c < children; c++)
+					{
+						mChildren[FANOUT * node + c] = level[i + c];
+						mParent[level[i + c]] = node;
+					}
+					refit(node);
+					next[count2++] = node;
+				}
+			}
+			if (count2 < next.length)
+			{
+				int[] trimmed = new int[count2];
+				System.arraycopy(next, 0, trimmed, 0, count2);
+				next = trimmed;
+			}
+			level = next;
+		}
+		mRoot = level[0];
+		mParent[mRoot] = -1;
+	}
+
+	// Changes the bounds of a region and refits its ancestors.
+	void update(int region, float left, float top, float right, float bottom)
+	{
+		int i = 4 * region;
+		mBounds[i] = left;
+		mBounds[i + 1] = top;
+		mBounds[i + 2] = right;
+		mBounds[i + 3] = bottom;
+		for (int node = mParent[region]; node != -1; node = mParent[node])
+		{
+			refit(node);
+		}
+	}
+
+	// Finds the regions within slop of (x, y) and writes them to out in ascending order.
+	// Returns how many were found, which may be more than fit into out.
+	int query(float x, float y, float slop, int[] out)
+	{
+		if (mRoot == -1)
+		{
+			return 0;
+		}
+		int found = query(mRoot, x, y, slop, out, 0);
+		// Keep the order of the regions stable regardless of the shape of the tree.
+		sortInts(out, Math.min(found, out.length));
+		return found;
+	}
+
+	private int query(int node, float x, float y, float slop, int[] out, int found)
+	{
+		int i = 4 * node;
+		if (x < mBounds[i] - slop || y < mBounds[i + 1] - slop
+			|| x > mBounds[i + 2] + slop || y > mBounds[i + 3] + slop)
+		{
+			return found;
+		}
+		if (node < mCount)
+		{
+			if (found < out.length)
+			{
+				out[found] = node;
+			}
+			return found + 1;
+		}
+		for (int c = 0; c < mChildCount[node]; c++)
+		{
+			found = query(mChildren[mFirstChild[node] + c], x, y, slop, out, found);
+		}
+		return found;
+	}
+
+	private void refit(int node)
+	{
+		float left = Float.MAX_VALUE, top = Float.MAX_VALUE;
+		float right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+		for (int c = 0; c < mChildCount[node]; c++)
+		{
+			int i = 4 * mChildren[mFirstChild[node] + c];
+			left = Math.min(left, mBounds[i]);
+			top = Math.min(top, mBounds[i + 1]);
+			right = Math.max(right, mBounds[i + 2]);
+			bottom = Math.max(bottom, mBounds[i + 3]);
+		}
+		int i = 4 * node;
+		mBounds[i] = left;
+		mBounds[i + 1] = top;
+		mBounds[i + 2] = right;
+		mBounds[i + 3] = bottom;
+	}
+
+	// Insertion sort of nodes by the center of their bounds along an axis, 0 for x and 1 for y.
+	// There are only ever a few regions.
+	private void sort(int[] nodes, int from, int to, int axis)
+	{
+		for (int i = from + 1; i < to; i++)
+		{
+			int node = nodes[i];
+			float center = center(node, axis);
+			int j = i - 1;
+			while (j >= from && center(nodes[j], axis) > center)
+			{
+				nodes[j + 1] = nodes[j];
+				j--;
+			}
+			nodes[j + 1] = node;
+		}
+	}
+
+	private float center(int node, int axis)
+	{
+		return mBounds[4 * node + axis] + mBounds[4 * node + axis + 2];
+	}
+
+	private static void sortInts(int[] values, int count)
+	{
+		for (int i = 1; i < count; i++)
+		{
+			int value = values[i];
+			int j = i - 1;
+			while (j >= 0 && values[j] > value)
+			{
+				values[j + 1] = values[j];
+				j--;
+			}
+			values[j + 1] = value;
+		}
+	}
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches http(s) sources into a disk cache. A stream can be read while its download is
+ * still running, so the format and size of an image are known from its first bytes. Every
+ * open of a URL that is being downloaded shares the same download. An interrupted download
+ * continues with a range request, also after the process was restarted. Cached entries are
+ * revalidated with a conditional request once they are no longer fresh.
+ */
+final class RemoteFetcher
+{
+	static final String DIRECTORY = "cropper-remote";
+	private static final long MAX_BYTES = 64L * 1024 * 1024;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int TIMEOUT_MS = 15000;
+	private static final int BUFFER_SIZE = 16384;
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	// Validators and freshness of an entry, kept next to it.
+	static final String TAG_SUFFIX = ".tag";
+	// An entry is fresh at least this long after it was checked, so the several opens of one
+	// crop don't each make a request.
+	private static final long MIN_FRESH_MS = 5000;
+
+	private static File sDirectory;
+	private static RemoteFetcher sInstance;
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+	private final Map<String, Download> mDownloads = new HashMap<String, Download>();
+
+	/**
+	 * @param maxBytes Size of the cache, no single resource may be larger.
+	 */
+	RemoteFetcher(File directory, long maxBytes)
+	{
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		// Also deletes partial downloads that weren't resumed for long.
+		ResultCache.trim(directory, maxBytes);
+	}
+
+	// Sets where the fetcher keeps its files, the app's cache directory should be used.
+	static synchronized void setDirectory(File directory)
+	{
+		if (sInstance != null && !sInstance.mDirectory.equals(directory))
+		{
+			sInstance = null;
+		}
+		sDirectory = directory;
+	}
+
+	static synchronized RemoteFetcher get()
+	{
+		if (sInstance == null)
+		{
+			File directory = sDirectory;
+			if (directory == null)
+			{
+				directory = new File(System.getProperty("java.io.tmpdir"), DIRECTORY);
+			}
+			sInstance = new RemoteFetcher(directory, MAX_BYTES);
+		}
+		return sInstance;
+	}
+
+	static boolean isRemote(String scheme)
+	{
+		return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+	}
+
+	/**
+	 * Opens the resource from the cache, or while it is being downloaded into it. Reads block
+	 * until the bytes have arrived.
+	 */
+	InputStream open(String url) throws IOException
+	{
+		Download download;
+		synchronized (this)
+		{
+			download = mDownloads.get(url);
+			if (download == null)
+			{
+				File file = new File(mDirectory, ResultCache.key(url));
+				if (file.isFile())
+				{
+					Tag tag = Tag.read(new File(file.getPath() + TAG_SUFFIX));
+					if (tag != null && System.currentTimeMillis() < tag.freshUntil)
+					{
+						// Touch the entry so it's evicted last.
+						//noinspection ResultOfMethodCallIgnored
+						file.setLastModified(System.currentTimeMillis());
+						return new FileInputStream(file);
+					}
+				}
+
+				if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+				{
+					throw new IOException("Cannot create " + mDirectory);
+				}
+				download = new Download(url, file);
+				mDownloads.put(url, download);
+				Thread thread = new Thread(download, "cropper-fetch");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return new DownloadInputStream(download);
+	}
+
+	synchronized boolean isFetching(String url)
+	{
+		return mDownloads.containsKey(url);
+	}
+
+	private synchronized void finished(Download download)
+	{
+		mDownloads.remove(download.mUrl);
+		ResultCache.trim(mDirectory, mMaxBytes);
+	}
+
+	// Thrown for a resource larger than the whole cache, which isn't worth retrying.
+	private static final class TooLargeException extends IOException
+	{
+		TooLargeException(String url)
+		{
+			super("Too large for the cache: " + url);
+		}
+	}
+
+	private final class Download implements Runnable
+	{
+		final String mUrl;
+		private final File mFile;
+		private final File mFileTag;
+		private final File mPartial;
+		private final File mPartialTag;
+		// Validators of the entry being revalidated, or null if there is none.
+		private Tag mCached;
+		// Validators of the bytes in the partial file.
+		private Tag mTag;
+		// Bytes of the partial file that belong to the resource.
+		private long mWritten;
+		// Whether the cached entry turned out to be still valid.
+		private boolean mNotModified;
+
+		// Bytes readers may read, guarded by this like the state after it.
+		private long mAvailable;
+		private boolean mComplete;
+		private IOException mError;
+
+		Download(String url, File file)
+		{
+			mUrl = url;
+			mFile = file;
+			mFileTag = new File(file.getPath() + TAG_SUFFIX);
+			mPartial = new File(file.getPath() + ResultCache.TEMP_SUFFIX);
+			mPartialTag = new File(file.getPath() + TAG_SUFFIX + ResultCache.TEMP_SUFFIX);
+		}
+
+		public void run()
+		{
+			try
+			{
+				download();
+			}
+			catch (IOException e)
+			{
+				if (e instanceof TooLargeException)
+				{
+					deletePartial();
+				}
+				synchronized (this)
+				{
+					mError = e;
+					notifyAll();
+				}
+			}
+			finally
+			{
+				finished(this);
+			}
+		}
+
+		private void download() throws IOException
+		{
+			mCached = mFile.isFile() ? Tag.read(mFileTag) : null;
+			// A partial download left behind is resumed if it is known what it was of.
+			mTag = mPartial.isFile() ? Tag.read(mPartialTag) : null;
+			mWritten = mTag != null ? mPartial.length() : 0;
+			for (int attempt = 1; ; attempt++)
+			{
+				try
+				{
+					transfer();
+					break;
+				}
+				catch (InterruptedIOException e)
+				{
+					throw e;
+				}
+				catch (FileNotFoundException e)
+				{
+					throw e;
+				}
+				catch (TooLargeException e)
+				{
+					throw e;
+				}
+				catch (IOException e)
+				{
+					if (attempt == MAX_ATTEMPTS)
+					{
+						throw e;
+					}
+				}
+			}
+
+			if (mNotModified)
+			{
+				mCached.write(mFileTag);
+				deletePartial();
+				synchronized (this)
+				{
+					mAvailable = mFile.length();
+					mComplete = true;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this)
+			{
+				if (!mPartial.renameTo(mFile))
+				{
+					throw new IOException("Cannot write " + mFile);
+				}
+				mComplete = true;
+				notifyAll();
+			}
+			mTag.write(mFileTag);
+			//noinspection ResultOfMethodCallIgnored
+			mPartialTag.delete();
+		}
+
+		// Requests the resource from mWritten on and appends it to the partial file.
+		private void transfer() throws IOException
+		{
+			HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+			connection.setConnectTimeout(TIMEOUT_MS);
+			connection.setReadTimeout(TIMEOUT_MS);
+			// Ranges count the bytes as they are sent.
+			connection.setRequestProperty("Accept-Encoding", "identity");
+			long offset = mWritten;
+			if (offset > 0)
+			{
+				connection.setRequestProperty("Range", "bytes=" + offset + "-");
+				connection.setRequestProperty("If-Range", mTag.validator());
+			}
+			else if (mCached != null && mCached.validator() != null)
+			{
+				if (mCached.etag != null)
+				{
+					connection.setRequestProperty("If-None-Match", mCached.etag);
+				}
+				if (mCached.lastModified != null)
+				{
+					connection.setRequestProperty("If-Modified-Since", mCached.lastModified);
+				}
+			}
+
+			InputStream in = null;
+			RandomAccessFile out = null;
+			try
+			{
+				int code = connection.getResponseCode();
+				Tag tag = new Tag(connection);
+				long skip = 0;
+				long total = -1;
+				if (code == HttpURLConnection.HTTP_NOT_MODIFIED && offset == 0 && mCached != null)
+				{
+					mCached.freshUntil = tag.freshUntil;
+					mNotModified = true;
+					return;
+				}
+				else if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0)
+				{
+					long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+					if (range == null || range[0] != offset)
+					{
+						throw new IOException("Unexpected range for " + mUrl);
+					}
+					total = range[1];
+				}
+				else if (code == HttpURLConnection.HTTP_OK)
+				{
+					total = connection.getContentLength();
+					if (offset > 0 && mAvailable == 0)
+					{
+						// Nothing was read yet, start over.
+						offset = 0;
+					}
+					else if (offset > 0)
+					{
+						String validator = tag.validator();
+						if (validator != null && !validator.equals(mTag.validator()))
+						{
+							throw new IOException("Changed while fetching: " + mUrl);
+						}
+						// The server ignored the range, drop what we already have.
+						skip = offset;
+					}
+				}
+				else if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0 && mAvailable == 0)
+				{
+					// Most likely the partial file is already complete. The next attempt starts over.
+					mWritten = 0;
+					throw new IOException("Cannot resume " + mUrl);
+				}
+				else if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+				{
+					throw new FileNotFoundException(mUrl);
+				}
+				else
+				{
+					throw new IOException("HTTP " + code + " for " + mUrl);
+				}
+				if (total > mMaxBytes)
+				{
+					throw new TooLargeException(mUrl);
+				}
+
+				if (offset == 0)
+				{
+					mWritten = 0;
+					mTag = tag;
+					if (tag.validator() != null)
+					{
+						tag.write(mPartialTag);
+					}
+					else
+					{
+						//noinspection ResultOfMethodCallIgnored
+						mPartialTag.delete();
+					}
+				}
+				else
+				{
+					// Keep the freshness of the latest response.
+					mTag.freshUntil = tag.freshUntil;
+				}
+				in = connection.getInputStream();
+				out = new RandomAccessFile(mPartial, "rw");
+				out.setLength(mWritten);
+				out.seek(mWritten);
+				publish();
+
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) > 0)
+				{
+					if (skip > 0)
+					{
+						int skipped = (int) Math.min(skip, n);
+						skip -= skipped;
+						if (skipped == n)
+						{
+							continue;
+						}
+						out.write(buffer, skipped, n - skipped);
+						mWritten += n - skipped;
+					}
+					else
+					{
+						out.write(buffer, 0, n);
+						mWritten += n;
+					}
+					if (mWritten > mMaxBytes)
+					{
+						throw new TooLargeException(mUrl);
+					}
+					publish();
+				}
+				if (total >= 0 && mWritten < total)
+				{
+					throw new IOException("Truncated " + mUrl);
+				}
+			}
+			finally
+			{
+				Util.closeSilently(in);
+				Util.closeSilently(out);
+				connection.disconnect();
+			}
+		}
+
+		private void deletePartial()
+		{
+			//noinspection ResultOfMethodCallIgnored
+			mPartial.delete();
+			//noinspection ResultOfMethodCallIgnored
+			mPartialTag.delete();
+		}
+
+		private synchronized void publish()
+		{
+			mAvailable = mWritten;
+			notifyAll();
+		}
+
+		// Waits until there are bytes at the position and returns how many bytes are there.
+		synchronized long await(long position) throws IOException
+		{
+			while (mAvailable <= position && !mComplete && mError == null)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if (mAvailable <= position && mError != null)
+			{
+				IOException e = new IOException("Cannot fetch " + mUrl);
+				e.initCause(mError);
+				throw e;
+			}
+			return mAvailable;
+		}
+
+		synchronized RandomAccessFile openFile() throws IOException
+		{
+			return new RandomAccessFile(mComplete ? mFile : mPartial, "r");
+		}
+	}
+
+	// Validators and freshness of a response, stored as one line each.
+	private static final class Tag
+	{
+		final String etag;
+		final String lastModified;
+		long freshUntil;
+
+		Tag(String etag, String lastModified, long freshUntil)
+		{
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.freshUntil = freshUntil;
+		}
+
+		Tag(HttpURLConnection connection)
+		{
+			this(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"),
+				freshUntil(connection));
+		}
+
+		// What If-Range is given, the ETag if there is one.
+		String validator()
+		{
+			return etag != null ? etag : lastModified;
+		}
+
+		static Tag read(File file)
+		{
+			if (!file.isFile())
+			{
+				return null;
+			}
+			InputStream in = null;
+			try
+			{
+				in = new FileInputStream(file);
+				byte[] b = new byte[(int) file.length()];
+				int length = 0;
+				int n;
+				while (length < b.length && (n = in.read(b, length, b.length - length)) > 0)
+				{
+					length += n;
+				}
+				String[] lines = new String(b, 0, length, "UTF-8").split("\n", -1);
+				if (lines.length < 3)
+				{
+					return null;
+				}
+				return new Tag(lines[0].length() > 0 ? lines[0] : null,
+					lines[1].length() > 0 ? lines[1] : null, Long.parseLong(lines[2]));
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+			finally
+			{
+				Util.closeSilently(in);
+			}
+		}
+
+		void write(File file) throws IOException
+		{
+			OutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(((etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "")
+					+ "\n" + freshUntil).getBytes("UTF-8"));
+			}
+			finally
+			{
+				Util.closeSilently(out);
+			}
+		}
+
+		// When the response stops being fresh, from Cache-Control or Expires.
+		private static long freshUntil(HttpURLConnection connection)
+		{
+			long now = System.currentTimeMillis();
+			long until = now + MIN_FRESH_MS;
+			String cacheControl = connection.getHeaderField("Cache-Control");
+			if (cacheControl != null)
+			{
+				for (String directive : cacheControl.split(","))
+				{
+					directive = directive.trim();
+					if (directive.startsWith("max-age="))
+					{
+						try
+						{
+							return Math.max(until, now + 1000 * Long.parseLong(directive.substring(8).trim()));
+						}
+						catch (NumberFormatException e)
+						{
+							return until;
+						}
+					}
+					if (directive.equals("no-cache") || directive.equals("no-store"))
+					{
+						return until;
+					}
+				}
+			}
+			return Math.max(until, connection.getExpiration());
+		}
+	}
+
+	// Reads the start and total length of "bytes start-end/total", total is -1 if unknown.
+	static long[] parseContentRange(String value)
+	{
+		if (value == null || !value.startsWith("bytes "))
+		{
+			return null;
+		}
+		int dash = value.indexOf('-');
+		int slash = value.indexOf('/');
+		if (dash < 0 || slash < dash)
+		{
+			return null;
+		}
+		try
+		{
+			long start = Long.parseLong(value.substring(6, dash).trim());
+			String total = value.substring(slash + 1).trim();
+			return new long[]{start, "*".equals(total) ? -1 : Long.parseLong(total)};
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	// Reads a download through the partial file, following it as it grows.
+	private static final class DownloadInputStream extends InputStream
+	{
+		private final Download mDownload;
+		private RandomAccessFile mFile;
+		private long mPosition;
+
+		DownloadInputStream(Download download)
+		{
+			mDownload = download;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			long available = mDownload.await(mPosition);
+			if (mPosition >= available)
+			{
+				return -1;
+			}
+			if (mFile == null)
+			{
+				mFile = mDownload.openFile();
+			}
+			mFile.seek(mPosition);
+			int n = mFile.read(b, off, (int) Math.min(len, available - mPosition));
+			if (n > 0)
+			{
+				mPosition += n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close()
+		{
+			Util.closeSilently(mFile);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Scales a window of a raster with a separable filter. Rows are filtered horizontally first
+ * and the result vertically, each pass using a precomputed table of fixed-point weights.
+ * When reducing, the kernel is widened by the reduction factor so every source pixel
+ * contributes and the result doesn't alias.
+ */
+final class Resampler
+{
+	// Bits of the fractional part of the weights.
+	private static final int WEIGHT_BITS = 14;
+	private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+	enum Filter
+	{
+		// Averages the covered source pixels. Fastest, good for thumbnails.
+		BOX(0.5),
+		// Catmull-Rom cubic. Sharp without much ringing, good for enlarging.
+		BICUBIC(2),
+		// Windowed sinc over three lobes. Sharpest, good for reducing.
+		LANCZOS3(3);
+
+		final double radius;
+
+		Filter(double radius)
+		{
+			this.radius = radius;
+		}
+
+		double weight(double x)
+		{
+			x = Math.abs(x);
+			switch (this)
+			{
+				case BOX:
+					return x < 0.5 ? 1 : x == 0.5 ? 0.5 : 0;
+				case BICUBIC:
+					if (x < 1)
+					{
+						return (1.5 * x - 2.5) * x * x + 1;
+					}
+					if (x < 2)
+					{
+						return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+					}
+					return 0;
+				default:
+					if (x < 1e-8)
+					{
+						return 1;
+					}
+					if (x >= 3)
+					{
+						return 0;
+					}
+					double px = Math.PI * x;
+					return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+			}
+		}
+
+		// Filter to use for the given scale factor.
+		static Filter forScale(float scale)
+		{
+			return scale > 1F ? BICUBIC : LANCZOS3;
+		}
+	}
+
+	private Resampler()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Scales the source window to the destination rectangle. Pixels of the destination outside
+	 * of the rectangle are left untouched. Samples outside of the source raster are clamped to
+	 * its edges.
+	 *
+	 * @param left   Position of the window in the source, may be fractional.
+	 * @param top    Position of the window in the source, may be fractional.
+	 * @param width  Size of the window in the source.
+	 * @param height Size of the window in the source.
+	 */
+	public static void resample(final Raster source, double left, double top, double width, double height,
+	                            final Raster destination, final int dstLeft, final int dstTop,
+	                            int dstWidth, int dstHeight, Filter filter,
+	                            ExecutorService executor, int parallelism)
+		throws InterruptedException
+	{
+		if (dstWidth <= 0 || dstHeight <= 0)
+		{
+			return;
+		}
+
+		final Weights horizontal = new Weights(filter, left, width, dstWidth, source.width);
+		final Weights vertical = new Weights(filter, top, height, dstHeight, source.height);
+		final boolean premultiply = !source.isOpaque();
+
+		// Horizontal pass over the source rows the vertical kernels read.
+		final int firstRow = vertical.first;
+		final Raster temp = new Raster(dstWidth, vertical.last - firstRow + 1);
+		RowBands.run(executor, parallelism, temp.height, new RowBands.Task()
+		{
+			public void run(int top, int bottom)
+			{
+				for (int y = top; y < bottom; y++)
+				{
+					filterRow(source.pixels, (firstRow + y) * source.width,
+						temp.pixels, y * temp.width, horizontal, premultiply);
+				}
+			}
+		});
+
+		// Vertical pass into the destination rectangle, one output row at a time.
+		vertical.offset(-firstRow);
+		RowBands.run(executor, parallelism, dstHeight, new RowBands.Task()
+		{
+			public void run(int top, int bottom)
+			{
+				int[] sums = new int[4 * temp.width];
+				for (int y = top; y < bottom; y++)
+				{
+					filterColumns(temp, vertical, y, sums, destination.pixels,
+						(dstTop + y) * destination.width + dstLeft, premultiply);
+				}
+			}
+		});
+	}
+
+	// Computes one output row of the vertical pass, accumulating whole input rows at a time.
+	private static void filterColumns(Raster in, Weights weights, int i, int[] sums,
+	                                  int[] out, int outOffset, boolean unpremultiply)
+	{
+		Arrays.fill(sums, 0);
+		int width = in.width;
+		int k = i * weights.taps;
+		int row = weights.start[i];
+		for (int j = 0; j < weights.taps; j++, k++, row++)
+		{
+			int weight = weights.values[k];
+			if (weight == 0)
+			{
+				continue;
+			}
+			int p = row * width;
+			for (int x = 0, q = 0; x < width; x++, p++, q += 4)
+			{
+				int c = in.pixels[p];
+				sums[q] += (c >>> 24) * weight;
+				sums[q + 1] += ((c >> 16) & 0xFF) * weight;
+				sums[q + 2] += ((c >> 8) & 0xFF) * weight;
+				sums[q + 3] += (c & 0xFF) * weight;
+			}
+		}
+		for (int x = 0, q = 0; x < width; x++, q += 4)
+		{
+			out[outOffset + x] = pack(sums[q], sums[q + 1], sums[q + 2], sums[q + 3], unpremultiply);
+		}
+	}
+
+	// Computes one row of the horizontal pass, optionally converting to premultiplied alpha.
+	private static void filterRow(int[] in, int inOffset, int[] out, int outOffset,
+	                              Weights weights, boolean premultiply)
+	{
+		int[] w = weights.values;
+		int n = weights.taps;
+		for (int i = 0; i < weights.count; i++)
+		{
+			int a = 0, r = 0, g = 0, b = 0;
+			int start = weights.start[i];
+			int k = i * n;
+			int p = inOffset + start;
+			for (int j = 0; j < n; j++, k++, p++)
+			{
+				int weight = w[k];
+				if (weight == 0)
+				{
+					continue;
+				}
+				int c = in[p];
+				int ca = c >>> 24;
+				int cr = (c >> 16) & 0xFF;
+				int cg = (c >> 8) & 0xFF;
+				int cb = c & 0xFF;
+				if (premultiply && ca != 0xFF)
+				{
+					cr = (cr * ca + 127) / 255;
+					cg = (cg * ca + 127) / 255;
+					cb = (cb * ca + 127) / 255;
+				}
+				a += ca * weight;
+				r += cr * weight;
+				g += cg * weight;
+				b += cb * weight;
+			}
+			out[outOffset + i] = pack(a, r, g, b, false);
+		}
+	}
+
+	// Rounds fixed-point channel sums into a pixel.
+	private static int pack(int a, int r, int g, int b, boolean unpremultiply)
+	{
+		a = clamp(a);
+		r = clamp(r);
+		g = clamp(g);
+		b = clamp(b);
+		if (unpremultiply)
+		{
+			if (a == 0)
+			{
+				r = g = b = 0;
+			}
+			else if (a != 0xFF)
+			{
+				r = Math.min(255, (r * 255 + a / 2) / a);
+				g = Math.min(255, (g * 255 + a / 2) / a);
+				b = Math.min(255, (b * 255 + a / 2) / a);
+			}
+		}
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	private static int clamp(int value)
+	{
+		value = (value + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	// Weights of every output pixel along one axis. Output pixel i reads taps consecutive input
+	// pixels from start[i], padded with zero weights where the kernel is clamped to the edge.
+	private static final class Weights
+	{
+		final int count;
+		final int taps;
+		final int[] start;
+		final int[] values;
+		// Range of input pixels read.
+		int first;
+		int last;
+
+		Weights(Filter filter, double offset, double length, int count, int inputSize)
+		{
+			double scale = count / length;
+			// Widen the kernel when reducing so it covers every input pixel.
+			double stretch = Math.max(1, 1 / scale);
+			double support = filter.radius * stretch;
+
+			this.count = count;
+			taps = Math.min(inputSize, (int) Math.ceil(2 * support) + 1);
+			start = new int[count];
+			values = new int[count * taps];
+			first = inputSize;
+			last = 0;
+
+			double[] raw = new double[taps];
+			for (int i = 0; i < count; i++)
+			{
+				double center = offset + (i + 0.5) / scale;
+				int s = (int) Math.floor(center - support + 0.5);
+				s = Math.max(0, Math.min(inputSize - taps, s));
+				start[i] = s;
+
+				double sum = 0;
+				for (int j = 0; j < taps; j++)
+				{
+					raw[j] = filter.weight((s + j + 0.5 - center) / stretch);
+					sum += raw[j];
+				}
+				if (sum == 0)
+				{
+					// The window is outside of the input, take the nearest pixel.
+					int nearest = Math.max(0, Math.min(inputSize - 1, (int) Math.floor(center))) - s;
+					raw[nearest] = sum = 1;
+				}
+
+				// Normalize in fixed point, letting the largest weight absorb the rounding error.
+				int total = 0;
+				int largest = 0;
+				int base = i * taps;
+				for (int j = 0; j < taps; j++)
+				{
+					int w = (int) Math.round(raw[j] / sum * WEIGHT_ONE);
+					values[base + j] = w;
+					total += w;
+					if (Math.abs(w) > Math.abs(values[base + largest]))
+					{
+						largest = j;
+					}
+					if (w != 0)
+					{
+						first = Math.min(first, s + j);
+						last = Math.max(last, s + j);
+					}
+				}
+				values[base + largest] += WEIGHT_ONE - total;
+			}
+			if (first > last)
+			{
+				first = last = 0;
+			}
+		}
+
+		// Shifts the input positions, used when the input is a part of the original.
+		void offset(int delta)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				start[i] += delta;
+			}
+		}
+
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of encoded crop results. Entries are keyed by a content hash of the source
+ * together with the normalized crop rectangle and every output option, so a changed source
+ * never maps to an old entry. The cache is bounded in size and evicts the least recently used
+ * entries first.
+ */
+final class ResultCache
+{
+	static final String TEMP_SUFFIX = ".tmp";
+	// Temporary files not written to for this long were left by a killed writer.
+	static final long STALE_MS = 24L * 60 * 60 * 1000;
+	private static final int BUFFER_SIZE = 16384;
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+
+	ResultCache(File directory, long maxBytes)
+	{
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+	}
+
+	// Hashes the complete content of the stream and closes it.
+	public static String hash(InputStream in) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				digest.update(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+		return toHex(digest.digest());
+	}
+
+	public static String key(String... parts)
+	{
+		MessageDigest digest = newDigest();
+		for (String part : parts)
+		{
+			digest.update(String.valueOf(part).getBytes());
+			digest.update((byte) 0);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Copy the cached result to the stream.
+	 *
+	 * @return Whether the entry was found.
+	 */
+	public synchronized boolean get(String key, OutputStream out) throws IOException
+	{
+		File file = new File(mDirectory, key);
+		if (!file.isFile())
+		{
+			return false;
+		}
+		// Touch the entry so it's evicted last.
+		//noinspection ResultOfMethodCallIgnored
+		file.setLastModified(System.currentTimeMillis());
+
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+		return true;
+	}
+
+	public File getFile(String key)
+	{
+		File file = new File(mDirectory, key);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Wrap the output stream so everything written to it is also stored under the key. The
+	 * entry becomes visible only after {@code Writer.commit}.
+	 */
+	public Writer writer(String key, OutputStream out) throws IOException
+	{
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+		{
+			throw new IOException("Cannot create " + mDirectory);
+		}
+		return new Writer(key, out);
+	}
+
+	// Stores everything the stream has under the key and closes the stream.
+	public void put(String key, InputStream in) throws IOException
+	{
+		try
+		{
+			if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			{
+				throw new IOException("Cannot create " + mDirectory);
+			}
+			File temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) > 0)
+				{
+					out.write(buffer, 0, n);
+				}
+			}
+			catch (IOException e)
+			{
+				Util.closeSilently(out);
+				//noinspection ResultOfMethodCallIgnored
+				temp.delete();
+				throw e;
+			}
+			out.close();
+			commit(temp, key);
+		}
+		finally
+		{
+			Util.closeSilently(in);
+		}
+	}
+
+	private synchronized void commit(File temp, String key)
+	{
+		File file = new File(mDirectory, key);
+		if (!temp.renameTo(file))
+		{
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+			return;
+		}
+		trim(mDirectory, mMaxBytes);
+	}
+
+	// Evicts least recently used files of the directory until it fits the size. Files still
+	// being written, named with TEMP_SUFFIX, are kept unless they are stale.
+	static void trim(File directory, long maxBytes)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long total = 0;
+		for (File f : files)
+		{
+			if (f.getName().endsWith(TEMP_SUFFIX) && now - f.lastModified() > STALE_MS && f.delete())
+			{
+				continue;
+			}
+			total += f.length();
+		}
+		if (total <= maxBytes)
+		{
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (File f : files)
+		{
+			if (total <= maxBytes)
+			{
+				break;
+			}
+			if (f.getName().endsWith(TEMP_SUFFIX))
+			{
+				continue;
+			}
+			long length = f.length();
+			if (f.delete())
+			{
+				total -= length;
+			}
+		}
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stream writing both to the destination and to a temporary cache file.
+	 */
+	final class Writer extends OutputStream
+	{
+		private final String mKey;
+		private final OutputStream mOut;
+		private final File mTemp;
+		private OutputStream mCache;
+
+		private Writer(String key, OutputStream out) throws IOException
+		{
+			mKey = key;
+			mOut = out;
+			mTemp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+			mCache = new FileOutputStream(mTemp);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			mOut.write(b);
+			mCache.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			mOut.write(b, off, len);
+			mCache.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			mOut.flush();
+			mCache.flush();
+		}
+
+		// Publishes the cache entry. Closes only the cache file, not the destination.
+		public void commit() throws IOException
+		{
+			mCache.close();
+			ResultCache.this.commit(mTemp, mKey);
+		}
+
+		// Drops the cache entry.
+		public void abort()
+		{
+			Util.closeSilently(mCache);
+			//noinspection ResultOfMethodCallIgnored
+			mTemp.delete();
+		}
+	}
+}
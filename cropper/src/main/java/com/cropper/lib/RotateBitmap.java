@@ -24,6 +24,8 @@ class RotateBitmap
 {
 	private Bitmap mBitmap;
 	private int mRotation;
+	// Arbitrary rotation in degrees applied around the center after mRotation.
+	private float mStraighten;
 
 	public RotateBitmap(Bitmap bitmap)
 	{
@@ -41,6 +43,16 @@ class RotateBitmap
 		return mRotation;
 	}
 
+	public void setStraighten(float degrees)
+	{
+		mStraighten = degrees;
+	}
+
+	public float getStraighten()
+	{
+		return mStraighten;
+	}
+
 	public Bitmap getBitmap()
 	{
 		return mBitmap;
@@ -66,6 +78,10 @@ class RotateBitmap
 			matrix.postRotate(mRotation);
 			matrix.postTranslate(getWidth() / 2, getHeight() / 2);
 		}
+		if (mStraighten != 0F)
+		{
+			matrix.postRotate(mStraighten, getWidth() / 2F, getHeight() / 2F);
+		}
 		return matrix;
 	}
 
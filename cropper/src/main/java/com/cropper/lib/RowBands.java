@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits rows of an image into bands processed in parallel.
+ */
+final class RowBands
+{
+	// More bands than threads so uneven bands don't leave threads idle.
+	private static final int BANDS_PER_THREAD = 4;
+
+	interface Task
+	{
+		// Processes rows from top inclusive to bottom exclusive.
+		void run(int top, int bottom);
+	}
+
+	private RowBands()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Runs the task over all the rows and waits for it to finish.
+	 */
+	public static void run(ExecutorService executor, int parallelism, int rows, final Task task)
+		throws InterruptedException
+	{
+		int bands = Math.min(rows, Math.max(1, parallelism * BANDS_PER_THREAD));
+		if (bands <= 1)
+		{
+			task.run(0, rows);
+			return;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(bands);
+		for (int i = 0; i < bands; i++)
+		{
+			final int top = i * rows / bands;
+			final int bottom = (i + 1) * rows / bands;
+			futures.add(executor.submit(new Runnable()
+			{
+				public void run()
+				{
+					task.run(top, bottom);
+				}
+			}));
+		}
+		try
+		{
+			for (Future<?> f : futures)
+			{
+				f.get();
+			}
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			for (Future<?> f : futures)
+			{
+				f.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+/**
+ * Content aware crop suggestion. A saliency map combining edge strength and local entropy is
+ * computed on a heavily downsampled copy of the image, and a summed-area table of it finds the
+ * window of the requested aspect ratio holding the most saliency in time linear in the number
+ * of analysed pixels.
+ */
+final class SmartCrop
+{
+	// Longer side of the analysed copy.
+	static final int ANALYSIS_SIZE = 96;
+	private static final int ENTROPY_RADIUS = 2;
+	private static final int ENTROPY_BINS = 16;
+
+	private SmartCrop()
+	{
+		// Hiding constructor
+	}
+
+	/**
+	 * Find the most salient window.
+	 *
+	 * @param raster      Image to analyse, any size.
+	 * @param aspectX     Horizontal part of the aspect ratio, 0 for a square window.
+	 * @param aspectY     Vertical part of the aspect ratio, 0 for a square window.
+	 * @param windowScale Size of the window relative to the largest one fitting the image.
+	 * @return Window as {left, top, right, bottom} in raster coordinates.
+	 */
+	public static float[] suggest(Raster raster, int aspectX, int aspectY, float windowScale)
+	{
+		float scale = Math.min(1F, (float) ANALYSIS_SIZE / Math.max(raster.width, raster.height));
+		int width = Math.max(1, Math.round(raster.width * scale));
+		int height = Math.max(1, Math.round(raster.height * scale));
+
+		int[] luma = downsampleLuma(raster, width, height);
+		float[] saliency = saliency(luma, width, height);
+		double[] table = summedArea(saliency, width, height);
+
+		float aspect = aspectX > 0 && aspectY > 0 ? (float) aspectX / aspectY : 1F;
+		float fitWidth = Math.min(width, height * aspect);
+		int windowWidth = Math.max(1, Math.min(width, Math.round(fitWidth * windowScale)));
+		int windowHeight = Math.max(1, Math.min(height, Math.round(fitWidth / aspect * windowScale)));
+
+		int bestX = (width - windowWidth) / 2;
+		int bestY = (height - windowHeight) / 2;
+		double best = -1;
+		long bestDistance = Long.MAX_VALUE;
+		int stride = width + 1;
+		for (int y = 0; y + windowHeight <= height; y++)
+		{
+			for (int x = 0; x + windowWidth <= width; x++)
+			{
+				double sum = table[(y + windowHeight) * stride + x + windowWidth]
+					- table[y * stride + x + windowWidth]
+					- table[(y + windowHeight) * stride + x]
+					+ table[y * stride + x];
+				// Prefer windows closer to the center among equally salient ones.
+				long dx = 2 * x + windowWidth - width;
+				long dy = 2 * y + windowHeight - height;
+				long distance = dx * dx + dy * dy;
+				if (sum > best + 1e-6 || (sum > best - 1e-6 && distance < bestDistance))
+				{
+					best = sum;
+					bestDistance = distance;
+					bestX = x;
+					bestY = y;
+				}
+			}
+		}
+
+		float sx = (float) raster.width / width;
+		float sy = (float) raster.height / height;
+		return new float[]{bestX * sx, bestY * sy,
+			(bestX + windowWidth) * sx, (bestY + windowHeight) * sy};
+	}
+
+	// Box filtered luminance in the range 0-255.
+	static int[] downsampleLuma(Raster raster, int width, int height)
+	{
+		int[] luma = new int[width * height];
+		for (int y = 0; y < height; y++)
+		{
+			int y0 = y * raster.height / height;
+			int y1 = Math.max(y0 + 1, (y + 1) * raster.height / height);
+			for (int x = 0; x < width; x++)
+			{
+				int x0 = x * raster.width / width;
+				int x1 = Math.max(x0 + 1, (x + 1) * raster.width / width);
+				long sum = 0;
+				for (int sy = y0; sy < y1; sy++)
+				{
+					int p = sy * raster.width;
+					for (int sx = x0; sx < x1; sx++)
+					{
+						int c = raster.pixels[p + sx];
+						// Rec. 601 weights, transparent pixels count as black.
+						int l = (77 * ((c >> 16) & 0xFF) + 150 * ((c >> 8) & 0xFF) + 29 * (c & 0xFF)) >> 8;
+						sum += l * (c >>> 24) / 255;
+					}
+				}
+				luma[y * width + x] = (int) (sum / ((y1 - y0) * (x1 - x0)));
+			}
+		}
+		return luma;
+	}
+
+	// Sum of normalized edge strength and normalized local entropy.
+	static float[] saliency(int[] luma, int width, int height)
+	{
+		float[] edges = new float[width * height];
+		float maxEdge = 0;
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int gx = at(luma, width, height, x + 1, y) - at(luma, width, height, x - 1, y);
+				int gy = at(luma, width, height, x, y + 1) - at(luma, width, height, x, y - 1);
+				float e = Math.abs(gx) + Math.abs(gy);
+				edges[y * width + x] = e;
+				maxEdge = Math.max(maxEdge, e);
+			}
+		}
+
+		float[] entropy = new float[width * height];
+		float maxEntropy = 0;
+		int[] histogram = new int[ENTROPY_BINS];
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int count = 0;
+				for (int i = 0; i < ENTROPY_BINS; i++)
+				{
+					histogram[i] = 0;
+				}
+				for (int sy = Math.max(0, y - ENTROPY_RADIUS); sy <= Math.min(height - 1, y + ENTROPY_RADIUS); sy++)
+				{
+					for (int sx = Math.max(0, x - ENTROPY_RADIUS); sx <= Math.min(width - 1, x + ENTROPY_RADIUS); sx++)
+					{
+						histogram[luma[sy * width + sx] * ENTROPY_BINS / 256]++;
+						count++;
+					}
+				}
+				float h = 0;
+				for (int i = 0; i < ENTROPY_BINS; i++)
+				{
+					if (histogram[i] > 0)
+					{
+						float p = (float) histogram[i] / count;
+						h -= p * (float) Math.log(p);
+					}
+				}
+				entropy[y * width + x] = h;
+				maxEntropy = Math.max(maxEntropy, h);
+			}
+		}
+
+		float[] saliency = new float[width * height];
+		for (int i = 0; i < saliency.length; i++)
+		{
+			float e = maxEdge > 0 ? edges[i] / maxEdge : 0;
+			float h = maxEntropy > 0 ? entropy[i] / maxEntropy : 0;
+			saliency[i] = e + h;
+		}
+		return saliency;
+	}
+
+	// Table with one extra leading row and column of zeros.
+	static double[] summedArea(float[] values, int width, int height)
+	{
+		int stride = width + 1;
+		double[] table = new double[stride * (height + 1)];
+		for (int y = 0; y < height; y++)
+		{
+			double row = 0;
+			for (int x = 0; x < width; x++)
+			{
+				row += values[y * width + x];
+				table[(y + 1) * stride + x + 1] = table[y * stride + x + 1] + row;
+			}
+		}
+		return table;
+	}
+
+	private static int at(int[] luma, int width, int height, int x, int y)
+	{
+		x = Math.max(0, Math.min(width - 1, x));
+		y = Math.max(0, Math.min(height - 1, y));
+		return luma[y * width + x];
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+// Extrapolates a touch pointer a short time ahead from its recent samples to hide part of the
+// latency between the digitizer and the display. The velocity is a least squares fit over the
+// last few tens of milliseconds, which includes the historical samples of each MotionEvent.
+final class TouchPredictor
+{
+	// Only samples this recent are used for the velocity.
+	private static final long WINDOW_MS = 40;
+	// Fewer samples or a shorter span give too noisy a velocity.
+	private static final int MIN_SAMPLES = 3;
+	private static final long MIN_SPAN_MS = 8;
+	private static final int CAPACITY = 32;
+
+	private final float[] mX = new float[CAPACITY];
+	private final float[] mY = new float[CAPACITY];
+	private final long[] mTime = new long[CAPACITY];
+	// Index of the newest sample and the number of samples kept.
+	private int mHead = -1;
+	private int mCount;
+
+	void reset()
+	{
+		mHead = -1;
+		mCount = 0;
+	}
+
+	void add(float x, float y, long timeMs)
+	{
+		if (mCount > 0 && timeMs < mTime[mHead])
+		{
+			// Out of order, e.g. a new gesture without a reset.
+			reset();
+		}
+		mHead = (mHead + 1) % CAPACITY;
+		mX[mHead] = x;
+		mY[mHead] = y;
+		mTime[mHead] = timeMs;
+		mCount = Math.min(mCount + 1, CAPACITY);
+	}
+
+	// Writes the position expected horizonMs after the newest sample into out. Falls back to
+	// the newest sample when the motion is too short or slowing down to be extrapolated.
+	void predict(long horizonMs, float[] out)
+	{
+		if (mCount == 0)
+		{
+			return;
+		}
+		float lastX = mX[mHead];
+		float lastY = mY[mHead];
+		long lastTime = mTime[mHead];
+		out[0] = lastX;
+		out[1] = lastY;
+
+		// Sums for the fit, relative to the newest sample to keep the numbers small.
+		int n = 0;
+		double st = 0, stt = 0, sx = 0, sy = 0, stx = 0, sty = 0;
+		long span = 0;
+		// Oldest sample within the prediction horizon.
+		int recent = mHead;
+		long recentAge = 0;
+		for (int i = 0; i < mCount; i++)
+		{
+			int index = (mHead - i + CAPACITY) % CAPACITY;
+			long age = lastTime - mTime[index];
+			if (age > WINDOW_MS)
+			{
+				break;
+			}
+			double t = -age;
+			double x = mX[index] - lastX;
+			double y = mY[index] - lastY;
+			st += t;
+			stt += t * t;
+			sx += x;
+			sy += y;
+			stx += t * x;
+			sty += t * y;
+			span = age;
+			if (age <= horizonMs)
+			{
+				recent = index;
+				recentAge = age;
+			}
+			n++;
+		}
+		if (n < MIN_SAMPLES || span < MIN_SPAN_MS)
+		{
+			return;
+		}
+		double denominator = n * stt - st * st;
+		if (denominator <= 0)
+		{
+			return;
+		}
+		double vx = (n * stx - st * sx) / denominator;
+		double vy = (n * sty - st * sy) / denominator;
+
+		// Don't extrapolate further than the pointer actually moved over the last horizon, which
+		// keeps the crop edge from overshooting when the finger slows down or stops.
+		double dx = vx * horizonMs;
+		double dy = vy * horizonMs;
+		if (recentAge == 0)
+		{
+			recent = (mHead - (n - 1) + CAPACITY) % CAPACITY;
+			recentAge = span;
+		}
+		double moved = Math.hypot(lastX - mX[recent], lastY - mY[recent]) * horizonMs / recentAge;
+		double predicted = Math.hypot(dx, dy);
+		if (predicted > moved)
+		{
+			double scale = moved / predicted;
+			dx *= scale;
+			dy *= scale;
+		}
+		out[0] = (float) (lastX + dx);
+		out[1] = (float) (lastY + dy);
+	}
+}
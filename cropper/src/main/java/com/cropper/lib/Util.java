@@ -22,7 +22,12 @@ import android.app.Dialog;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Region;
 import android.os.Handler;
 import android.view.Surface;
 import android.view.Window;
@@ -34,121 +39,214 @@ import java.io.Closeable;
  */
 final class Util
 {
+	// Longer side of the copy the backdrop is blurred at, and the blur radius at that size.
+	private static final int BACKDROP_SIZE = 48;
+	private static final int BACKDROP_BLUR_RADIUS = 4;
+
 	private Util()
 	{
 		// Hiding constructor
 	}
 
 	/**
-	 * Compute the sample size as a function of minSideLength
-	 * and maxNumOfPixels.
-	 * minSideLength is used to specify that minimal width or height of a bitmap.
-	 * maxNumOfPixels is used to specify the maximal size in pixels that are tolerable
-	 * in terms of memory usage.
-	 * <p/>
-	 * The function returns a sample size based on the constraints.
-	 * Both size and minSideLength can be passed in as IImage.UNCONSTRAINED,
-	 * which indicates no care of the corresponding constraint.
-	 * The functions prefers returning a sample size that
-	 * generates a smaller bitmap, unless minSideLength = IImage.UNCONSTRAINED.
+	 * Scales the region of the source so it covers the target size and crops the overflow
+	 * around the center. Unless scaleUp is set, a region smaller than the target is not scaled
+	 * but centered, leaving the rest transparent or filled with a blurred backdrop. Cropping,
+	 * scaling and centering are done in one pass into the output bitmap.
+	 *
+	 * @return The transformed bitmap or null if the thread was interrupted.
 	 */
-	public static Bitmap transform(Matrix scaler,
-	                               Bitmap source,
+	public static Bitmap transform(Bitmap source, Rect region,
 	                               int targetWidth,
 	                               int targetHeight,
-	                               boolean scaleUp)
+	                               boolean scaleUp,
+	                               boolean blurBackground)
 	{
+		return transform(source, region, 0F, targetWidth, targetHeight, scaleUp, blurBackground);
+	}
 
-		int deltaX = source.getWidth() - targetWidth;
-		int deltaY = source.getHeight() - targetHeight;
-		if (!scaleUp && (deltaX < 0 || deltaY < 0))
+	/**
+	 * Same as above for a region of the source rotated by the angle around its center. The
+	 * rotation is folded into the sampling, so the pixels are still resampled only once.
+	 */
+	public static Bitmap transform(Bitmap source, Rect region, float degrees,
+	                               int targetWidth,
+	                               int targetHeight,
+	                               boolean scaleUp,
+	                               boolean blurBackground)
+	{
+		float scale = getTransformScale(region.width(), region.height(), targetWidth, targetHeight, scaleUp);
+		double windowWidth = targetWidth / scale;
+		double windowHeight = targetHeight / scale;
+		double windowLeft = region.exactCenterX() - windowWidth / 2;
+		double windowTop = region.exactCenterY() - windowHeight / 2;
+		if (scale == 1F)
 		{
-		    /*
-		     * In this case the bitmap is smaller, at least in one dimension,
-             * than the target.  Transform it by placing as much of the image
-             * as possible into the target and leaving the top/bottom or
-             * left/right (or both) black.
-             */
-			Bitmap b2 = Bitmap.createBitmap(targetWidth, targetHeight,
-				Bitmap.Config.ARGB_8888);
-			Canvas c = new Canvas(b2);
-
-			int deltaXHalf = Math.max(0, deltaX / 2);
-			int deltaYHalf = Math.max(0, deltaY / 2);
-			Rect src = new Rect(
-				deltaXHalf,
-				deltaYHalf,
-				deltaXHalf + Math.min(targetWidth, source.getWidth()),
-				deltaYHalf + Math.min(targetHeight, source.getHeight()));
-			int dstX = (targetWidth - src.width()) / 2;
-			int dstY = (targetHeight - src.height()) / 2;
-			Rect dst = new Rect(
-				dstX,
-				dstY,
-				targetWidth - dstX,
-				targetHeight - dstY);
-			c.drawBitmap(source, src, dst, null);
-			return b2;
+			// Keep unscaled pixels aligned so they are copied as they are.
+			windowLeft = Math.floor(windowLeft);
+			windowTop = Math.floor(windowTop);
 		}
-		float bitmapWidthF = source.getWidth();
-		float bitmapHeightF = source.getHeight();
 
-		float bitmapAspect = bitmapWidthF / bitmapHeightF;
-		float viewAspect = (float) targetWidth / targetHeight;
+		// Part of the window covered by the region and where it ends up in the output.
+		double left = Math.max(region.left, windowLeft);
+		double top = Math.max(region.top, windowTop);
+		double right = Math.min(region.right, windowLeft + windowWidth);
+		double bottom = Math.min(region.bottom, windowTop + windowHeight);
+		int dstLeft = (int) Math.round((left - windowLeft) * scale);
+		int dstTop = (int) Math.round((top - windowTop) * scale);
+		int dstRight = Math.min(targetWidth, (int) Math.round((right - windowLeft) * scale));
+		int dstBottom = Math.min(targetHeight, (int) Math.round((bottom - windowTop) * scale));
 
-		if (bitmapAspect > viewAspect)
+		Raster output = new Raster(targetWidth, targetHeight);
+		try
 		{
-			float scale = targetHeight / bitmapHeightF;
-			if (scale < .9F || scale > 1F)
+			if (blurBackground && (dstRight - dstLeft < targetWidth || dstBottom - dstTop < targetHeight))
 			{
-				scaler.setScale(scale, scale);
+				drawBackdrop(source, region, degrees, output);
 			}
-			else
+			if (degrees != 0F)
 			{
-				scaler = null;
+				drawStraightened(source, new RectF((float) left, (float) top, (float) right, (float) bottom),
+					degrees, output, dstLeft, dstTop, dstRight - dstLeft, dstBottom - dstTop);
+				return toBitmap(output);
 			}
+
+			// Only the sampled part of the region is copied, with a margin for the filter kernel.
+			Resampler.Filter filter = Resampler.Filter.forScale(scale);
+			int margin = (int) Math.ceil(filter.radius * Math.max(1F, 1F / scale)) + 1;
+			int inputLeft = Math.max(region.left, (int) Math.floor(left) - margin);
+			int inputTop = Math.max(region.top, (int) Math.floor(top) - margin);
+			int inputRight = Math.min(region.right, (int) Math.ceil(right) + margin);
+			int inputBottom = Math.min(region.bottom, (int) Math.ceil(bottom) + margin);
+			Raster input = new Raster(inputRight - inputLeft, inputBottom - inputTop);
+			source.getPixels(input.pixels, 0, input.width, inputLeft, inputTop, input.width, input.height);
+			Resampler.resample(input, left - inputLeft, top - inputTop, right - left, bottom - top,
+				output, dstLeft, dstTop, dstRight - dstLeft, dstBottom - dstTop,
+				filter, Workers.compute(), Workers.parallelism());
 		}
-		else
+		catch (InterruptedException e)
 		{
-			float scale = targetWidth / bitmapWidthF;
-			if (scale < .9F || scale > 1F)
-			{
-				scaler.setScale(scale, scale);
-			}
-			else
-			{
-				scaler = null;
-			}
+			Thread.currentThread().interrupt();
+			return null;
 		}
+		return toBitmap(output);
+	}
 
-		Bitmap b1;
-		if (scaler != null)
+	/**
+	 * Creates a blurred copy of the region enlarged to cover the target size, used to fill the
+	 * bars around an image smaller than the output. The blur runs on a tiny copy, which is
+	 * then scaled up, so it costs about the same for any output size.
+	 */
+	public static Bitmap createBackdrop(Bitmap source, Rect region, int targetWidth, int targetHeight)
+	{
+		Bitmap small = toBitmap(createSmallBackdrop(source, region, 0F, targetWidth, targetHeight));
+		Bitmap backdrop = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+		new Canvas(backdrop).drawBitmap(small, null, new Rect(0, 0, targetWidth, targetHeight),
+			new Paint(Paint.FILTER_BITMAP_FLAG));
+		small.recycle();
+		return backdrop;
+	}
+
+	// Same as createBackdrop() but scales the blurred copy straight into the raster.
+	private static void drawBackdrop(Bitmap source, Rect region, float degrees, Raster output)
+		throws InterruptedException
+	{
+		Raster small = createSmallBackdrop(source, region, degrees, output.width, output.height);
+		Resampler.resample(small, 0, 0, small.width, small.height, output, 0, 0, output.width, output.height,
+			Resampler.Filter.BICUBIC, Workers.compute(), Workers.parallelism());
+	}
+
+	// Blurred tiny copy of the part of the region with the aspect ratio of the target.
+	private static Raster createSmallBackdrop(Bitmap source, Rect region, float degrees,
+	                                          int targetWidth, int targetHeight)
+	{
+		float scale = Math.max((float) targetWidth / region.width(), (float) targetHeight / region.height());
+		float windowWidth = targetWidth / scale;
+		float windowHeight = targetHeight / scale;
+		RectF window = new RectF(region.exactCenterX() - windowWidth / 2F,
+			region.exactCenterY() - windowHeight / 2F,
+			region.exactCenterX() + windowWidth / 2F,
+			region.exactCenterY() + windowHeight / 2F);
+		Rect src = new Rect();
+		window.round(src);
+
+		float smallScale = (float) BACKDROP_SIZE / Math.max(targetWidth, targetHeight);
+		int smallWidth = Math.max(1, Math.round(targetWidth * smallScale));
+		int smallHeight = Math.max(1, Math.round(targetHeight * smallScale));
+		Bitmap small = Bitmap.createBitmap(smallWidth, smallHeight, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(small);
+		if (degrees != 0F)
 		{
-			// this is used for minithumb and crop, so we want to mFilter here.
-			b1 = Bitmap.createBitmap(source, 0, 0,
-				source.getWidth(), source.getHeight(), scaler, true);
+			// The backdrop is blurred anyway, so it's drawn from the rotated source directly.
+			canvas.scale(smallWidth / window.width(), smallHeight / window.height());
+			canvas.translate(-window.left, -window.top);
+			canvas.rotate(degrees, source.getWidth() / 2F, source.getHeight() / 2F);
+			canvas.drawBitmap(source, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
 		}
 		else
 		{
-			b1 = source;
+			canvas.drawBitmap(source, src, new Rect(0, 0, smallWidth, smallHeight),
+				new Paint(Paint.FILTER_BITMAP_FLAG));
 		}
 
-		int dx1 = Math.max(0, b1.getWidth() - targetWidth);
-		int dy1 = Math.max(0, b1.getHeight() - targetHeight);
+		Raster raster = toRaster(small);
+		small.recycle();
+		BoxBlur.blur(raster, BACKDROP_BLUR_RADIUS, 3);
+		return raster;
+	}
 
-		Bitmap b2 = Bitmap.createBitmap(
-			b1,
-			dx1 / 2,
-			dy1 / 2,
-			targetWidth,
-			targetHeight);
+	// Scale transform() applies to a width by height region.
+	public static float getTransformScale(int width, int height, int targetWidth, int targetHeight,
+	                                      boolean scaleUp)
+	{
+		float scale = Math.max((float) targetWidth / width, (float) targetHeight / height);
+		return !scaleUp && scale > 1F ? 1F : scale;
+	}
 
-		if (b1 != source)
+	// Scales the whole bitmap to the given size with a box filter, which is cheap and good
+	// enough for previews.
+	public static Bitmap resize(Bitmap source, int width, int height)
+	{
+		Raster output = new Raster(width, height);
+		try
 		{
-			b1.recycle();
+			Resampler.resample(toRaster(source), 0, 0, source.getWidth(), source.getHeight(),
+				output, 0, 0, width, height, Resampler.Filter.BOX,
+				Workers.compute(), Workers.parallelism());
 		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return toBitmap(output);
+	}
 
-		return b2;
+	// Bitmaps are inherently rectangular but we want to return something that's basically a
+	// circle. So we fill in the area around the circle with alpha. Note the all important
+	// PorterDuff.Mode.CLEAR.
+	public static void clearOutsideCircle(Bitmap b, float cx, float cy, float radius)
+	{
+		Canvas c = new Canvas(b);
+		Path p = new Path();
+		p.addCircle(cx, cy, radius, Path.Direction.CW);
+		c.clipPath(p, Region.Op.DIFFERENCE);
+		c.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
+	}
+
+	// Copies the pixels of the bitmap into a raster.
+	public static Raster toRaster(Bitmap bitmap)
+	{
+		Raster raster = new Raster(bitmap.getWidth(), bitmap.getHeight());
+		bitmap.getPixels(raster.pixels, 0, raster.width, 0, 0, raster.width, raster.height);
+		return raster;
+	}
+
+	public static Bitmap toBitmap(Raster raster)
+	{
+		Bitmap b = Bitmap.createBitmap(raster.width, raster.height, Bitmap.Config.ARGB_8888);
+		b.setPixels(raster.pixels, 0, raster.width, 0, 0, raster.width, raster.height);
+		return b;
 	}
 
 	public static void closeSilently(Closeable c)
@@ -248,6 +346,102 @@ final class Util
 		return Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), matrix, true);
 	}
 
+	// Largest axis aligned rectangle inside the image rotated by the angle around its center, in
+	// the coordinates of the unrotated image.
+	public static RectF getStraightenedBounds(int width, int height, float degrees)
+	{
+		double angle = Math.toRadians(degrees);
+		double sin = Math.abs(Math.sin(angle));
+		double cos = Math.abs(Math.cos(angle));
+		double w;
+		double h;
+		if (sin < 1e-6)
+		{
+			w = width;
+			h = height;
+		}
+		else
+		{
+			boolean widthIsLonger = width >= height;
+			double longSide = widthIsLonger ? width : height;
+			double shortSide = widthIsLonger ? height : width;
+			if (shortSide <= 2 * sin * cos * longSide || Math.abs(sin - cos) < 1e-10)
+			{
+				// The rectangle touches both long sides of the rotated image.
+				double x = shortSide / 2;
+				w = widthIsLonger ? x / sin : x / cos;
+				h = widthIsLonger ? x / cos : x / sin;
+			}
+			else
+			{
+				double cos2 = cos * cos - sin * sin;
+				w = (width * cos - height * sin) / cos2;
+				h = (height * cos - width * sin) / cos2;
+			}
+		}
+		float left = (float) (width - w) / 2F;
+		float top = (float) (height - h) / 2F;
+		return new RectF(left, top, left + (float) w, top + (float) h);
+	}
+
+	// Crops the region out of the source rotated by the angle around its center, resampling once.
+	public static Bitmap straighten(Bitmap source, Rect region, float degrees)
+	{
+		Bitmap b = Bitmap.createBitmap(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(b);
+		canvas.translate(-region.left, -region.top);
+		canvas.rotate(degrees, source.getWidth() / 2F, source.getHeight() / 2F);
+		canvas.drawBitmap(source, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
+		return b;
+	}
+
+	// Same as above but scales the region to the given size in the same pass.
+	public static Raster straighten(Bitmap source, Rect region, float degrees, int width, int height)
+		throws InterruptedException
+	{
+		Raster output = new Raster(width, height);
+		drawStraightened(source, new RectF(region), degrees, output, 0, 0, width, height);
+		return output;
+	}
+
+	// Samples the region of the source rotated by the angle around its center into a rectangle
+	// of the output. Each output pixel maps back through the rotation into the source, and a
+	// reduction averages several taps per pixel.
+	private static void drawStraightened(Bitmap source, RectF region, float degrees,
+	                                     Raster output, int dstLeft, int dstTop, int width, int height)
+		throws InterruptedException
+	{
+		if (width <= 0 || height <= 0)
+		{
+			return;
+		}
+
+		// Corners of the region in the unrotated source.
+		float[] quad = {region.left, region.top, region.right, region.top,
+			region.right, region.bottom, region.left, region.bottom};
+		Matrix m = new Matrix();
+		m.setRotate(-degrees, source.getWidth() / 2F, source.getHeight() / 2F);
+		m.mapPoints(quad);
+
+		RectF bounds = new RectF(quad[0], quad[1], quad[0], quad[1]);
+		for (int i = 2; i < 8; i += 2)
+		{
+			bounds.union(quad[i], quad[i + 1]);
+		}
+		Rect input = new Rect((int) Math.floor(bounds.left) - 1, (int) Math.floor(bounds.top) - 1,
+			(int) Math.ceil(bounds.right) + 1, (int) Math.ceil(bounds.bottom) + 1);
+		if (!input.intersect(0, 0, source.getWidth(), source.getHeight()))
+		{
+			return;
+		}
+		Raster raster = new Raster(input.width(), input.height());
+		source.getPixels(raster.pixels, 0, raster.width, input.left, input.top, raster.width, raster.height);
+
+		int samples = (int) Math.ceil(Math.max(region.width() / width, region.height() / height) - 1e-3);
+		PerspectiveWarp.warp(raster, input.left, input.top, quad, output, dstLeft, dstTop, width, height,
+			Math.max(1, samples), Workers.compute(), Workers.parallelism());
+	}
+
 	public static int getOrientationInDegree(Activity activity)
 	{
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Luka Cindro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cropper.lib;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pool for pixel work that is split across cores.
+ */
+final class Workers
+{
+	private static ExecutorService sCompute;
+	private static ExecutorService sBackground;
+	private static ExecutorService sEncode;
+	private static ExecutorService sIo;
+	private static ExecutorService sDetection;
+
+	private Workers()
+	{
+		// Hiding constructor
+	}
+
+	public static int parallelism()
+	{
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static synchronized ExecutorService compute()
+	{
+		if (sCompute == null)
+		{
+			sCompute = Executors.newFixedThreadPool(parallelism(),
+				new PriorityThreadFactory("cropper-compute", Process.THREAD_PRIORITY_BACKGROUND));
+		}
+		return sCompute;
+	}
+
+	// Encodes of whole files. Kept apart from compute() since the encoders split their work
+	// onto it and wait for it.
+	public static synchronized ExecutorService encode()
+	{
+		if (sEncode == null)
+		{
+			sEncode = Executors.newFixedThreadPool(parallelism(),
+				new PriorityThreadFactory("cropper-encode", Process.THREAD_PRIORITY_BACKGROUND));
+		}
+		return sEncode;
+	}
+
+	// Reads of sources that may block on a slow provider or the network. Kept apart from
+	// compute() so a slow source doesn't stall the pixel work of other crops.
+	public static synchronized ExecutorService io()
+	{
+		if (sIo == null)
+		{
+			sIo = Executors.newCachedThreadPool(
+				new PriorityThreadFactory("cropper-io", Process.THREAD_PRIORITY_BACKGROUND));
+		}
+		return sIo;
+	}
+
+	// Face detection, on its own thread so its budget measures the detection and not the
+	// wait for a shared one.
+	public static synchronized ExecutorService detection()
+	{
+		if (sDetection == null)
+		{
+			sDetection = Executors.newSingleThreadExecutor(
+				new PriorityThreadFactory("cropper-detect", Process.THREAD_PRIORITY_BACKGROUND));
+		}
+		return sDetection;
+	}
+
+	// Single low priority thread for speculative work that must not compete with the UI.
+	public static synchronized ExecutorService background()
+	{
+		if (sBackground == null)
+		{
+			sBackground = Executors.newSingleThreadExecutor(
+				new PriorityThreadFactory("cropper-background", Process.THREAD_PRIORITY_LOWEST));
+		}
+		return sBackground;
+	}
+
+	// Starts the threads of all pools so the first task doesn't wait for them.
+	public static void prestart()
+	{
+		prestart(compute());
+		prestart(encode());
+		prestart(background());
+		prestart(detection());
+	}
+
+	private static void prestart(ExecutorService executor)
+	{
+		if (executor instanceof ThreadPoolExecutor)
+		{
+			((ThreadPoolExecutor) executor).prestartAllCoreThreads();
+		}
+		else
+		{
+			executor.submit(new Runnable()
+			{
+				public void run()
+				{
+				}
+			});
+		}
+	}
+
+	static class PriorityThreadFactory implements ThreadFactory
+	{
+		private final String mName;
+		private final int mPriority;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		PriorityThreadFactory(String name, int priority)
+		{
+			mName = name;
+			mPriority = priority;
+		}
+
+		public Thread newThread(final Runnable r)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Process.setThreadPriority(mPriority);
+					r.run();
+				}
+			}, mName + "-" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
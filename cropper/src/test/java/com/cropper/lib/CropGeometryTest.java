@@ -0,0 +1,129 @@
+package com.cropper.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CropGeometryTest
+{
+	private static final float[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+	private static final float DELTA = 1e-3F;
+
+	private CropGeometry mGeometry;
+
+	@Before
+	public void setUp()
+	{
+		mGeometry = new CropGeometry();
+		mGeometry.setup(0, 0, 1000, 1000, 100, 100, 300, 200, false, false);
+		mGeometry.setMatrix(IDENTITY);
+	}
+
+	@Test
+	public void hitTestingUsesSlop()
+	{
+		assertEquals(CropGeometry.GROW_LEFT_EDGE, getHit(115, 150));
+		assertEquals(CropGeometry.GROW_LEFT_EDGE, getHit(85, 150));
+		assertEquals(CropGeometry.GROW_LEFT_EDGE | CropGeometry.GROW_TOP_EDGE, getHit(105, 95));
+		assertEquals(CropGeometry.MOVE, getHit(200, 150));
+		assertEquals(CropGeometry.GROW_NONE, getHit(50, 150));
+
+		mGeometry.setHitSlop(10);
+		assertEquals(CropGeometry.MOVE, getHit(115, 150));
+		assertEquals(CropGeometry.GROW_NONE, getHit(85, 150));
+		assertEquals(CropGeometry.GROW_LEFT_EDGE, getHit(105, 150));
+	}
+
+	@Test
+	public void hitSlopIsInScreenPixels()
+	{
+		mGeometry.setMatrix(new float[]{2, 0, 10, 0, 2, 20, 0, 0, 1});
+		// The left edge is at 210 on the screen.
+		assertEquals(CropGeometry.GROW_LEFT_EDGE, getHit(225, 300));
+		assertEquals(CropGeometry.MOVE, getHit(235, 300));
+	}
+
+	@Test
+	public void growByKeepsAspectRatio()
+	{
+		mGeometry.setup(0, 0, 1000, 1000, 100, 100, 300, 200, false, true);
+		mGeometry.growBy(10, 0);
+		assertCrop(90, 95, 310, 205);
+		mGeometry.growBy(0, 10);
+		assertCrop(70, 85, 330, 215);
+
+		// Growth is limited by the image and the crop is moved back into it.
+		mGeometry.growBy(1000, 0);
+		assertCrop(0, 0, 1000, 500);
+		assertEquals(2F, mGeometry.getWidth() / mGeometry.getHeight(), DELTA);
+	}
+
+	@Test
+	public void growByWithoutAspectRatio()
+	{
+		mGeometry.growBy(10, 0);
+		assertCrop(90, 100, 310, 200);
+
+		// Doesn't shrink below the minimum size.
+		mGeometry.growBy(0, -100);
+		assertEquals(25F, mGeometry.getHeight(), DELTA);
+	}
+
+	@Test
+	public void moveByClampsToImage()
+	{
+		mGeometry.moveBy(50, 25);
+		assertCrop(150, 125, 350, 225);
+		mGeometry.moveBy(-500, 0);
+		assertCrop(0, 125, 200, 225);
+		mGeometry.moveBy(5000, 5000);
+		assertCrop(800, 900, 1000, 1000);
+	}
+
+	@Test
+	public void handleMotionConvertsToImageSpace()
+	{
+		mGeometry.setMatrix(new float[]{2, 0, 0, 0, 2, 0, 0, 0, 1});
+		mGeometry.handleMotion(CropGeometry.MOVE, 20, 10);
+		assertCrop(110, 105, 310, 205);
+		mGeometry.handleMotion(CropGeometry.GROW_RIGHT_EDGE, 20, 10);
+		assertCrop(100, 105, 320, 205);
+	}
+
+	@Test
+	public void screenRectIsCachedUntilMatrixOrCropChanges()
+	{
+		assertEquals(100, mGeometry.getDrawLeft());
+		int updates = mGeometry.getDrawUpdates();
+		mGeometry.getDrawTop();
+		getHit(150, 150);
+		mGeometry.setMatrix(IDENTITY.clone());
+		assertEquals(300, mGeometry.getDrawRight());
+		assertEquals(updates, mGeometry.getDrawUpdates());
+
+		mGeometry.setMatrix(new float[]{2, 0, 5, 0, 2, 0, 0, 0, 1});
+		assertEquals(205, mGeometry.getDrawLeft());
+		assertEquals(updates + 1, mGeometry.getDrawUpdates());
+
+		mGeometry.moveBy(10, 0);
+		assertEquals(225, mGeometry.getDrawLeft());
+		assertEquals(400, mGeometry.getDrawBottom());
+		assertEquals(updates + 2, mGeometry.getDrawUpdates());
+	}
+
+	// Hits on edges keep the GROW_NONE bit, as they always have in HighlightView.
+	private int getHit(float x, float y)
+	{
+		int hit = mGeometry.getHit(x, y);
+		return hit == CropGeometry.GROW_NONE ? hit : hit & ~CropGeometry.GROW_NONE;
+	}
+
+	private void assertCrop(float left, float top, float right, float bottom)
+	{
+		assertEquals(left, mGeometry.getLeft(), DELTA);
+		assertEquals(top, mGeometry.getTop(), DELTA);
+		assertEquals(right, mGeometry.getRight(), DELTA);
+		assertEquals(bottom, mGeometry.getBottom(), DELTA);
+	}
+}
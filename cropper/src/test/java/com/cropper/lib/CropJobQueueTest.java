@@ -0,0 +1,192 @@
+package com.cropper.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Runs the queue with a fake processor on executors the test controls. Jobs are added through
+// the package-private add() so no Android classes are needed.
+public class CropJobQueueTest
+{
+	private static final Executor DIRECT = new Executor()
+	{
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	private final List<String> mProcessed = new ArrayList<String>();
+	private volatile boolean mFail;
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		mFile = File.createTempFile("cropper", "queue");
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+	}
+
+	@Test
+	public void runsAddedJobs() throws IOException
+	{
+		CropJobQueue queue = open(DIRECT, 1);
+		add(queue, "a");
+		add(queue, "b");
+		assertEquals(0, mProcessed.size());
+
+		queue.start();
+		assertEquals(2, mProcessed.size());
+		assertEquals(2, queue.getCompleted());
+		assertEquals(0, queue.getFailed());
+		assertTrue(queue.isIdle());
+
+		// Jobs added after start run right away.
+		add(queue, "c");
+		assertEquals(3, mProcessed.size());
+		queue.close();
+	}
+
+	@Test
+	public void skipsDoneJobsOnReopen() throws IOException
+	{
+		CropJobQueue queue = open(DIRECT, 1);
+		add(queue, "a");
+		queue.start();
+		// Added after close, as if the process died before it ran.
+		queue.close();
+		CropJournal journal = new CropJournal(mFile);
+		journal.add("b", 0, 0, 10, 10, "opts", "out-b");
+		journal.close();
+
+		queue = open(DIRECT, 1);
+		assertEquals(1, queue.getCompleted());
+		queue.start();
+		assertEquals(2, mProcessed.size());
+		assertEquals("b", mProcessed.get(1));
+		assertEquals(2, queue.getCompleted());
+		assertEquals(2, queue.getTotal());
+		queue.close();
+	}
+
+	@Test
+	public void dedupesJobAddedAgain() throws IOException
+	{
+		CropJobQueue queue = open(DIRECT, 1);
+		CropJournal.Job job = add(queue, "a");
+		assertSame(job, add(queue, "a"));
+		queue.start();
+		queue.close();
+
+		// Also when the first one ran in an earlier process.
+		queue = open(DIRECT, 1);
+		queue.start();
+		add(queue, "a");
+		assertEquals(1, mProcessed.size());
+		assertEquals(1, queue.getTotal());
+		queue.close();
+	}
+
+	@Test
+	public void givesUpAfterMaxAttempts() throws IOException
+	{
+		mFail = true;
+		CropJobQueue queue = open(DIRECT, 1);
+		add(queue, "a");
+		queue.start();
+		assertEquals(CropJobQueue.MAX_ATTEMPTS, mProcessed.size());
+		assertEquals(1, queue.getFailed());
+		assertTrue(queue.isIdle());
+		queue.close();
+
+		// The attempts are counted over all runs.
+		mFail = false;
+		queue = open(DIRECT, 1);
+		queue.start();
+		assertEquals(CropJobQueue.MAX_ATTEMPTS, mProcessed.size());
+		assertEquals(1, queue.getFailed());
+		queue.close();
+	}
+
+	@Test
+	public void runsAtMostMaxConcurrent() throws IOException
+	{
+		Deferred executor = new Deferred();
+		CropJobQueue queue = open(executor, 2);
+		for (int i = 0; i < 5; i++)
+		{
+			add(queue, "job" + i);
+		}
+		assertEquals(0, executor.mTasks.size());
+
+		queue.start();
+		assertEquals(2, executor.mTasks.size());
+		// A finished job frees its slot for the next one.
+		executor.runNext();
+		assertEquals(2, executor.mTasks.size());
+		while (!executor.mTasks.isEmpty())
+		{
+			assertTrue(executor.mTasks.size() <= 2);
+			executor.runNext();
+		}
+		assertEquals(5, mProcessed.size());
+		assertEquals(5, queue.getCompleted());
+		queue.close();
+	}
+
+	private CropJobQueue open(Executor executor, int maxConcurrent) throws IOException
+	{
+		return new CropJobQueue(new CropJournal(mFile), executor, maxConcurrent, new CropJobQueue.Processor()
+		{
+			public void process(CropJournal.Job job) throws Exception
+			{
+				mProcessed.add(job.source);
+				if (mFail)
+				{
+					throw new IOException("Cannot write " + job.destination);
+				}
+			}
+		});
+	}
+
+	private static CropJournal.Job add(CropJobQueue queue, String source) throws IOException
+	{
+		return queue.add(source, 0, 0, 10, 10, "opts", "out-" + source);
+	}
+
+	// Holds the tasks until the test runs them.
+	private static final class Deferred implements Executor
+	{
+		private final Queue<Runnable> mTasks = new LinkedList<Runnable>();
+
+		public void execute(Runnable command)
+		{
+			mTasks.add(command);
+		}
+
+		void runNext()
+		{
+			mTasks.poll().run();
+		}
+	}
+}
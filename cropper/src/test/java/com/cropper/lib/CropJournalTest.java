@@ -0,0 +1,103 @@
+package com.cropper.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Reopens journals as a new process would after a crash.
+public class CropJournalTest
+{
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		mFile = File.createTempFile("cropper", "journal");
+	}
+
+	@After
+	public void tearDown()
+	{
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+	}
+
+	@Test
+	public void replaysJobsAndOutcomes() throws IOException
+	{
+		CropJournal journal = new CropJournal(mFile);
+		CropJournal.Job first = journal.add("content://a\tb", 1, 2, 3, 4, "opts", "file:///x\ny");
+		CropJournal.Job second = journal.add("content://c", 5, 6, 7, 8, "opts", "file:///z");
+		journal.markDone(first);
+		journal.markFailed(second);
+		journal.close();
+
+		List<CropJournal.Job> jobs = new CropJournal(mFile).getJobs();
+		assertEquals(2, jobs.size());
+		assertEquals(first.describe(), jobs.get(0).describe());
+		assertEquals("content://a\tb", jobs.get(0).source);
+		assertEquals("file:///x\ny", jobs.get(0).destination);
+		assertTrue(jobs.get(0).done);
+		assertFalse(jobs.get(1).done);
+		assertEquals(1, jobs.get(1).failures);
+	}
+
+	@Test
+	public void dropsTornLastLine() throws IOException
+	{
+		CropJournal journal = new CropJournal(mFile);
+		CropJournal.Job job = journal.add("content://a", 1, 2, 3, 4, "opts", "file:///x");
+		journal.close();
+		long length = mFile.length();
+		// The process died while writing the done record.
+		append("done\t" + job.id);
+
+		journal = new CropJournal(mFile);
+		assertEquals(length, mFile.length());
+		assertEquals(1, journal.getJobs().size());
+		assertFalse(journal.getJobs().get(0).done);
+
+		// Records written after the cut are read back whole.
+		journal.markDone(journal.getJobs().get(0));
+		journal.close();
+		assertTrue(new CropJournal(mFile).getJobs().get(0).done);
+	}
+
+	@Test
+	public void stopsAtGarbage() throws IOException
+	{
+		CropJournal journal = new CropJournal(mFile);
+		journal.add("content://a", 1, 2, 3, 4, "opts", "file:///x");
+		journal.close();
+		append("add\t7\tcontent://b\n");
+		append("done\t0\n");
+
+		journal = new CropJournal(mFile);
+		assertEquals(1, journal.getJobs().size());
+		assertFalse(journal.getJobs().get(0).done);
+		journal.close();
+	}
+
+	private void append(String s) throws IOException
+	{
+		OutputStream out = new FileOutputStream(mFile, true);
+		try
+		{
+			out.write(s.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
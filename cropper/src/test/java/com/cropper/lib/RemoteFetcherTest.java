@@ -0,0 +1,346 @@
+package com.cropper.lib;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Runs RemoteFetcher against a local HTTP server.
+public class RemoteFetcherTest
+{
+	private static final int SIZE = 1000000;
+	private static final int CHUNK = 50000;
+
+	private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+	private volatile byte[] mPayload;
+	private volatile String mETag = "\"v1\"";
+	private volatile int mDropAfter = -1;
+	private volatile boolean mIgnoreRange;
+	private volatile int mDelayMs;
+	private HttpServer mServer;
+	private String mBase;
+	private File mDirectory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		mPayload = payload(1);
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.createContext("/", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				serve(exchange);
+			}
+		});
+		mServer.start();
+		mBase = "http://127.0.0.1:" + mServer.getAddress().getPort();
+		mDirectory = File.createTempFile("cropper", "remote");
+		assertTrue(mDirectory.delete() && mDirectory.mkdir());
+	}
+
+	@After
+	public void tearDown()
+	{
+		mServer.stop(0);
+		File[] files = mDirectory.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				//noinspection ResultOfMethodCallIgnored
+				f.delete();
+			}
+		}
+		//noinspection ResultOfMethodCallIgnored
+		mDirectory.delete();
+	}
+
+	@Test
+	public void sharesOneDownloadAndStreamsIt() throws IOException
+	{
+		mDelayMs = 20;
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		long start = System.nanoTime();
+		InputStream first = fetcher.open(mBase + "/a.jpg");
+		InputStream second = fetcher.open(mBase + "/a.jpg");
+		byte[] head = new byte[12];
+		int n = first.read(head);
+		long headMs = (System.nanoTime() - start) / 1000000;
+		byte[] all = readAll(second);
+		long allMs = (System.nanoTime() - start) / 1000000;
+
+		assertArrayEquals(mPayload, all);
+		byte[] rest = readAll(first);
+		assertArrayEquals(Arrays.copyOf(mPayload, n), Arrays.copyOf(head, n));
+		assertArrayEquals(Arrays.copyOfRange(mPayload, n, SIZE), rest);
+		assertEquals(1, mRequests.size());
+		assertTrue("First bytes after " + headMs + " of " + allMs + " ms", headMs < allMs / 2);
+	}
+
+	@Test
+	public void servesFreshEntryFromCache() throws Exception
+	{
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		awaitIdle(fetcher, mBase + "/a.jpg");
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		assertEquals(1, mRequests.size());
+	}
+
+	@Test
+	public void revalidatesStaleEntry() throws Exception
+	{
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		awaitIdle(fetcher, mBase + "/a.jpg");
+
+		expire(mBase + "/a.jpg");
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		awaitIdle(fetcher, mBase + "/a.jpg");
+		assertEquals(2, mRequests.size());
+		assertTrue(mRequests.get(1), mRequests.get(1).contains("If-None-Match=\"v1\""));
+
+		// Changed on the server, the new bytes replace the entry.
+		expire(mBase + "/a.jpg");
+		mPayload = payload(2);
+		mETag = "\"v2\"";
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		awaitIdle(fetcher, mBase + "/a.jpg");
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/a.jpg")));
+		assertEquals(3, mRequests.size());
+	}
+
+	@Test
+	public void resumesDroppedTransfer() throws IOException
+	{
+		mDropAfter = 300000;
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/b.jpg")));
+		assertEquals(2, mRequests.size());
+		assertTrue(mRequests.get(1), mRequests.get(1).contains("Range=bytes=300000-"));
+	}
+
+	@Test
+	public void resumesPartialOfPreviousProcess() throws IOException
+	{
+		File file = new File(mDirectory, ResultCache.key(mBase + "/c.jpg"));
+		write(new File(file.getPath() + ResultCache.TEMP_SUFFIX), Arrays.copyOf(mPayload, 123456));
+		write(new File(file.getPath() + RemoteFetcher.TAG_SUFFIX + ResultCache.TEMP_SUFFIX),
+			"\"v1\"\n\n0".getBytes("UTF-8"));
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/c.jpg")));
+		assertEquals(1, mRequests.size());
+		assertTrue(mRequests.get(0), mRequests.get(0).contains("Range=bytes=123456-"));
+	}
+
+	@Test
+	public void skipsBytesWhenRangeIsIgnored() throws IOException
+	{
+		mIgnoreRange = true;
+		mDropAfter = 400000;
+		mDelayMs = 5;
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/d.jpg")));
+		assertEquals(2, mRequests.size());
+	}
+
+	@Test
+	public void restartsCompletePartial() throws IOException
+	{
+		File file = new File(mDirectory, ResultCache.key(mBase + "/e.jpg"));
+		write(new File(file.getPath() + ResultCache.TEMP_SUFFIX), mPayload);
+		write(new File(file.getPath() + RemoteFetcher.TAG_SUFFIX + ResultCache.TEMP_SUFFIX),
+			"\"v1\"\n\n0".getBytes("UTF-8"));
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		assertArrayEquals(mPayload, readAll(fetcher.open(mBase + "/e.jpg")));
+		assertEquals(2, mRequests.size());
+	}
+
+	@Test
+	public void failsWithoutRetryingMissing() throws IOException
+	{
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, 10 * SIZE);
+		try
+		{
+			readAll(fetcher.open(mBase + "/missing"));
+			fail();
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getCause() instanceof FileNotFoundException);
+		}
+		assertEquals(1, mRequests.size());
+	}
+
+	@Test
+	public void abortsResourceLargerThanCache() throws Exception
+	{
+		RemoteFetcher fetcher = new RemoteFetcher(mDirectory, SIZE / 2);
+		try
+		{
+			readAll(fetcher.open(mBase + "/a.jpg"));
+			fail();
+		}
+		catch (IOException e)
+		{
+			// Expected
+		}
+		awaitIdle(fetcher, mBase + "/a.jpg");
+		assertEquals(1, mRequests.size());
+		assertEquals(0, mDirectory.list().length);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String etag = mETag;
+		byte[] payload = mPayload;
+		mRequests.add(exchange.getRequestURI().getPath() + " Range=" + range
+			+ " If-None-Match=" + exchange.getRequestHeaders().getFirst("If-None-Match"));
+		if (exchange.getRequestURI().getPath().equals("/missing"))
+		{
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+		{
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+
+		int start = 0;
+		int code = 200;
+		if (range != null && !mIgnoreRange)
+		{
+			start = Integer.parseInt(range.substring(6, range.indexOf('-')));
+			if (start >= payload.length)
+			{
+				exchange.sendResponseHeaders(416, -1);
+				exchange.close();
+				return;
+			}
+			code = 206;
+			exchange.getResponseHeaders().add("Content-Range",
+				"bytes " + start + "-" + (payload.length - 1) + "/" + payload.length);
+		}
+		exchange.getResponseHeaders().add("ETag", etag);
+		exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+		exchange.sendResponseHeaders(code, payload.length - start);
+
+		int drop = mDropAfter;
+		mDropAfter = -1;
+		OutputStream out = exchange.getResponseBody();
+		try
+		{
+			for (int p = start; p < payload.length; p += CHUNK)
+			{
+				if (drop >= 0 && p - start >= drop)
+				{
+					// Cuts the connection short.
+					exchange.close();
+					return;
+				}
+				out.write(payload, p, Math.min(CHUNK, payload.length - p));
+				out.flush();
+				if (mDelayMs > 0)
+				{
+					Thread.sleep(mDelayMs);
+				}
+			}
+			out.close();
+		}
+		catch (InterruptedException e)
+		{
+			exchange.close();
+		}
+		catch (IOException e)
+		{
+			exchange.close();
+		}
+	}
+
+	// Makes the entry of the URL stale, as if its max-age had passed.
+	private void expire(String url) throws IOException
+	{
+		File tag = new File(mDirectory, ResultCache.key(url) + RemoteFetcher.TAG_SUFFIX);
+		assertTrue(tag.isFile());
+		write(tag, (mETag + "\n\n0").getBytes("UTF-8"));
+	}
+
+	// The download thread finishes a moment after its last bytes were read.
+	private static void awaitIdle(RemoteFetcher fetcher, String url) throws InterruptedException
+	{
+		for (int i = 0; i < 100 && fetcher.isFetching(url); i++)
+		{
+			Thread.sleep(20);
+		}
+		assertFalse(fetcher.isFetching(url));
+	}
+
+	private static byte[] payload(int seed)
+	{
+		byte[] payload = new byte[SIZE];
+		new Random(seed).nextBytes(payload);
+		return payload;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[7000];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException
+	{
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(bytes);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
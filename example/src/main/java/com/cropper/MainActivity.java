@@ -100,10 +100,18 @@ public class MainActivity extends AppCompatActivity
 			Cropper.crop(getApplicationContext(), uri, Uri.fromFile(file))
 				.outputSize(decorView.getWidth(), decorView.getHeight() / 2)
 				.scale(true)
+				.previewSize(decorView.getWidth())
 				.start(this);
 		}
 		else if (requestCode == Cropper.CROP && data != null)
 		{
+			Bitmap preview = Cropper.getPreview(data);
+			if (preview != null)
+			{
+				croppedImageView.setImageBitmap(preview);
+				return;
+			}
+
 			String filePath = data.getStringExtra(Cropper.SAVE_PATH);
 			BitmapTask task = new BitmapTask();
 			task.execute(filePath);